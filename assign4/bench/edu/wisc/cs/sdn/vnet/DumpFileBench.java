@@ -0,0 +1,100 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Frames per second logged to a PCAP file by writing and flushing each one
+ * on the calling thread (as DumpFile used to) against DumpFile, which only
+ * copies it into its capture buffer, for frames of 64 to 1400 bytes. Frames
+ * DumpFile dropped because its writer fell behind do not count as logged;
+ * their share of all frames dumped is shown next to it.
+ * Run with: ant bench
+ * @author Prasoon Tandon and John Lee
+ */
+public class DumpFileBench
+{
+	/** Time spent measuring each case, in nanoseconds */
+	private static final long MEASURE_NANOS = 1000000000L;
+
+	public static void main(String[] args) throws IOException
+	{
+		File file = File.createTempFile("dumpfile", ".pcap");
+		file.deleteOnExit();
+
+		System.out.println("Frame\t\tFlushed\t\tDumpFile\tDropped");
+		for (int size : new int[] { 64, 512, 1400 })
+		{
+			byte[] frame = new byte[size];
+			if (64 == size)
+			{
+				// Warm up both before the first measurement
+				measureFlushed(file, frame);
+				measureDumpFile(file, frame, null);
+			}
+			double flushed = measureFlushed(file, frame);
+			double[] dropped = new double[1];
+			double dumped = measureDumpFile(file, frame, dropped);
+			System.out.println(String.format("%d\t\t%.0f/s\t\t%.0f/s\t%.1f%%",
+					size, flushed, dumped, 100 * dropped[0]));
+		}
+	}
+
+	/**
+	 * @return frames logged per second the way DumpFile used to do it
+	 */
+	private static double measureFlushed(File file, byte[] frame)
+			throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(
+				new FileOutputStream(file));
+		long frames = 0;
+		long start = System.nanoTime();
+		long elapsed = 0;
+		do
+		{
+			int sec = (int)(System.currentTimeMillis()/1000);
+			int usec = (int)((System.currentTimeMillis() % 1000)*1000);
+			out.writeInt(sec);
+			out.writeInt(usec);
+			out.writeInt(frame.length);
+			out.writeInt(frame.length);
+			out.write(frame, 0, frame.length);
+			out.flush();
+			frames++;
+			elapsed = System.nanoTime() - start;
+		}
+		while (elapsed < MEASURE_NANOS);
+		out.close();
+		return frames / (elapsed / 1e9);
+	}
+
+	/**
+	 * @return frames logged (not dropped) per second by DumpFile, including
+	 *         closing it; the share of frames it dropped goes in dropped, if
+	 *         not null
+	 */
+	private static double measureDumpFile(File file, byte[] frame,
+			double[] dropped)
+	{
+		DumpFile dumpFile = DumpFile.open(file.getPath());
+		long frames = 0;
+		long start = System.nanoTime();
+		long elapsed = 0;
+		do
+		{
+			for (int i = 0; i < 16; i++, frames++)
+			{ dumpFile.dump(frame, 0, frame.length); }
+			elapsed = System.nanoTime() - start;
+		}
+		while (elapsed < MEASURE_NANOS);
+		dumpFile.close();
+		elapsed = System.nanoTime() - start;
+		long logged = frames - dumpFile.getDropped();
+		if (dropped != null)
+		{ dropped[0] = (double)dumpFile.getDropped() / frames; }
+		return logged / (elapsed / 1e9);
+	}
+}
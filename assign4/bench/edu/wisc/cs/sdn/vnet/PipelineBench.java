@@ -0,0 +1,223 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.sw.Switch;
+import edu.wisc.cs.sdn.vnet.vns.Command;
+import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+
+import net.floodlightcontroller.packet.BasePacket;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * Packets per second a router (forwarding raw frames) and a switch
+ * (parsing every packet) get through with everything on the reading thread
+ * and with 1 to 8 worker threads. A fake VNS server on loopback keeps
+ * sending 64 flows of small UDP packets and counts what comes back, so the
+ * server's own work is part of what is measured. What the devices print
+ * per packet goes to a stream that drops it.
+ * Run with: ant bench
+ * @author Prasoon Tandon and John Lee
+ */
+public class PipelineBench
+{
+	/** Time spent measuring each case, after as long a warm up */
+	private static final long MEASURE_NANOS = 1000000000L;
+
+	private static final int NUM_FLOWS = 64;
+
+	public static void main(String[] args) throws Exception
+	{
+		BasePacket.setLazyDeserialization(true);
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		stdout.println(String.format("Workers (%d cores)\tRouter\t\tSwitch",
+				Runtime.getRuntime().availableProcessors()));
+		for (int workers : new int[] { 0, 1, 2, 4, 8 })
+		{
+			double router = measure(new Router("r1", null), workers);
+			double sw = measure(new Switch("s1", null), workers);
+			stdout.println(String.format("%s\t\t\t%.0f/s\t%.0f/s",
+					(0 == workers) ? "none" : String.valueOf(workers),
+					router, sw));
+		}
+
+		// The switch's MAC table keeps a thread of its own running
+		System.exit(0);
+	}
+
+	/**
+	 * @return packets per second that come back from device with this
+	 *         number of workers (0 to handle them on the reading thread)
+	 */
+	private static double measure(final Device device, final int workers)
+			throws Exception
+	{
+		final ServerSocket server = bind();
+		final short port = (short)server.getLocalPort();
+		Thread deviceThread = new Thread(new Runnable() {
+			public void run()
+			{
+				VNSComm vnsComm = new VNSComm(device);
+				if (!vnsComm.connectToServer(port, "localhost")
+						|| !vnsComm.readFromServerExpect(Command.VNS_HW_INFO))
+				{ return; }
+				if (device instanceof Router)
+				{ setUpRoutes((Router)device); }
+				if (workers > 0)
+				{ vnsComm.startWorkers(workers); }
+				while (vnsComm.readFromServer());
+				vnsComm.stopWorkers();
+			}
+		});
+		deviceThread.start();
+
+		final Socket socket = server.accept();
+		socket.setTcpNoDelay(true);
+		final OutputStream out = socket.getOutputStream();
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(socket.getInputStream()));
+		in.readFully(new byte[40]); // VNS_OPEN
+		out.write(hwInfo());
+		out.flush();
+
+		// Keep sending packets until the socket is closed
+		final byte[] packets = packets();
+		Thread sender = new Thread(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					while (true)
+					{ out.write(packets); }
+				}
+				catch (IOException e) { }
+			}
+		});
+		sender.start();
+
+		// Count what comes back, after a warm up
+		long received = 0;
+		long start = System.nanoTime();
+		long measureStart = start + MEASURE_NANOS;
+		long end = measureStart + MEASURE_NANOS;
+		long now;
+		while ((now = System.nanoTime()) < end)
+		{
+			int len = in.readInt();
+			in.skipBytes(len - 4);
+			if (now >= measureStart)
+			{ received++; }
+		}
+
+		socket.close();
+		server.close();
+		sender.join();
+		deviceThread.join();
+		return received / (MEASURE_NANOS / 1e9);
+	}
+
+	/**
+	 * @return a server socket on a port that fits in a short
+	 */
+	private static ServerSocket bind() throws IOException
+	{
+		for (int port = 20000; ; port++)
+		{
+			try
+			{ return new ServerSocket(port, 1, InetAddress.getByName("localhost")); }
+			catch (IOException e)
+			{
+				if (port > 30000)
+				{ throw e; }
+			}
+		}
+	}
+
+	/**
+	 * @return a VNS_HW_INFO command for interfaces eth0 (10.0.1.1/24) and
+	 *         eth1 (10.0.2.1/24)
+	 */
+	private static byte[] hwInfo()
+	{
+		ByteBuffer buf = ByteBuffer.allocate(8 + 8 * 36);
+		buf.putInt(buf.capacity());
+		buf.putInt(Command.VNS_HW_INFO);
+		for (int i = 1; i <= 2; i++)
+		{
+			putHwEntry(buf, 1, ("eth" + (i - 1)).getBytes());
+			putHwEntry(buf, 2, MACAddress.valueOf("00:00:00:00:0" + i + ":01").toBytes());
+			putHwEntry(buf, 4, IPv4.toIPv4AddressBytes("10.0." + i + ".1"));
+			putHwEntry(buf, 8, IPv4.toIPv4AddressBytes("255.255.255.0"));
+		}
+		return buf.array();
+	}
+
+	private static void putHwEntry(ByteBuffer buf, int key, byte[] value)
+	{
+		buf.putInt(key);
+		byte[] tmp = new byte[32];
+		System.arraycopy(value, 0, tmp, 0, value.length);
+		buf.put(tmp);
+	}
+
+	private static void setUpRoutes(Router router)
+	{
+		router.getRouteTable().insert(IPv4.toIPv4Address("10.0.2.0"), 0,
+				IPv4.toIPv4Address("255.255.255.0"), router.getInterface("eth1"));
+		router.getArpCache().insert(MACAddress.valueOf("00:00:00:00:02:02"),
+				IPv4.toIPv4Address("10.0.2.2"));
+	}
+
+	/**
+	 * @return VNS_PACKET commands for one UDP packet of each flow, from a
+	 *         host behind eth0 to 10.0.2.2 (behind eth1)
+	 */
+	private static byte[] packets()
+	{
+		ByteBuffer buf = ByteBuffer.allocate(NUM_FLOWS * 1024);
+		for (int flow = 0; flow < NUM_FLOWS; flow++)
+		{
+			UDP udp = new UDP();
+			udp.setSourcePort((short)5000);
+			udp.setDestinationPort((short)5001);
+			udp.setPayload(new Data(new byte[64]));
+			IPv4 ip = new IPv4();
+			ip.setTtl((byte)64);
+			ip.setProtocol(IPv4.PROTOCOL_UDP);
+			ip.setSourceAddress(IPv4.toIPv4Address("10.0.1.2") + flow);
+			ip.setDestinationAddress("10.0.2.2");
+			ip.setPayload(udp);
+			Ethernet ether = new Ethernet();
+			ether.setEtherType(Ethernet.TYPE_IPv4);
+			ether.setSourceMACAddress("00:00:00:00:01:02");
+			ether.setDestinationMACAddress("00:00:00:00:01:01");
+			ether.setPayload(ip);
+			byte[] frame = ether.serialize();
+
+			buf.putInt(24 + frame.length);
+			buf.putInt(Command.VNS_PACKET);
+			byte[] name = new byte[16];
+			System.arraycopy("eth0".getBytes(), 0, name, 0, 4);
+			buf.put(name);
+			buf.put(frame);
+		}
+		byte[] packets = new byte[buf.position()];
+		System.arraycopy(buf.array(), 0, packets, 0, packets.length);
+		return packets;
+	}
+}
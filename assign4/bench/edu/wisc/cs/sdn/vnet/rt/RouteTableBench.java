@@ -0,0 +1,238 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Lookups per second of RouteTable against the linear scan it used to do,
+ * for tables of 10, 10k and 1M random routes (mostly /16 to /24, like a
+ * full table). Half of the looked up addresses fall inside some route.
+ * Then total lookups per second of 1 to 8 threads on 10k routes while
+ * another thread keeps updating routes, with and without a lock around
+ * every lookup and update (as RouteTable used to take).
+ * Run with: ant bench
+ * @author Prasoon Tandon and John Lee
+ */
+public class RouteTableBench
+{
+	/** Time spent measuring each case, in nanoseconds */
+	private static final long MEASURE_NANOS = 1000000000L;
+
+	private static final int NUM_ADDRESSES = 1 << 16;
+
+	public static void main(String[] args)
+	{
+		int[] sizes = { 10, 10000, 1000000 };
+		if (args.length > 0)
+		{
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+			{ sizes[i] = Integer.parseInt(args[i]); }
+		}
+
+		Iface[] ifaces = { new Iface("eth0"), new Iface("eth1"),
+				new Iface("eth2"), new Iface("eth3") };
+		// Table (and what it was built from) for the concurrent runs
+		RouteTable concurrent = null;
+		List<RouteEntry> concurrentRoutes = null;
+		int[] concurrentAddresses = null;
+
+		System.out.println("Routes\t\tLinear scan\t\tRouteTable");
+		for (int size : sizes)
+		{
+			Random random = new Random(size);
+			RouteTable table = new RouteTable();
+			List<RouteEntry> list = new ArrayList<RouteEntry>(size);
+			HashSet<Long> prefixes = new HashSet<Long>();
+			int[] addresses = new int[NUM_ADDRESSES];
+			while (list.size() < size)
+			{
+				int length = 16 + random.nextInt(9);
+				if (random.nextInt(10) == 0)
+				{ length = 8 + random.nextInt(25); }
+				int mask = PrefixTrie.mask(length);
+				int dstIp = random.nextInt() & mask;
+				int gwIp = random.nextInt();
+				Iface iface = ifaces[random.nextInt(ifaces.length)];
+				if (!prefixes.add(((long)dstIp << 6) | length))
+				{ continue; }
+				table.insert(dstIp, gwIp, mask, iface);
+				list.add(new RouteEntry(dstIp, gwIp, mask, iface));
+			}
+			for (int i = 0; i < NUM_ADDRESSES; i++)
+			{
+				RouteEntry route = list.get(random.nextInt(list.size()));
+				addresses[i] = ((i & 1) == 0) ? random.nextInt()
+						: route.getDestinationAddress()
+						| (random.nextInt() & ~route.getMaskAddress());
+			}
+
+			// Both have to agree before their speed means anything
+			for (int i = 0; i < 1000; i++)
+			{
+				RouteEntry expected = linearLookup(list, addresses[i]);
+				RouteEntry actual = table.lookup(addresses[i]);
+				if ((null == expected) != (null == actual) || (expected != null
+						&& expected.getMaskAddress() != actual.getMaskAddress()))
+				{
+					System.err.println("RouteTable disagrees with linear scan for "
+							+ addresses[i]);
+					System.exit(1);
+				}
+			}
+
+			double linear = measure(addresses, list, null);
+			double trie = measure(addresses, null, table);
+			System.out.println(String.format("%d\t\t%.0f/s\t\t%.0f/s",
+					size, linear, trie));
+
+			if (10000 == size)
+			{
+				concurrent = table;
+				concurrentRoutes = list;
+				concurrentAddresses = addresses;
+			}
+		}
+
+		if (null == concurrent)
+		{ return; }
+		System.out.println(String.format("\nReaders (%d cores)\tLocked\t\tSnapshots",
+				Runtime.getRuntime().availableProcessors()));
+		for (int readers = 1; readers <= 8; readers *= 2)
+		{
+			double locked = measureConcurrent(concurrent, concurrentRoutes,
+					concurrentAddresses, readers, new Object());
+			double snapshots = measureConcurrent(concurrent, concurrentRoutes,
+					concurrentAddresses, readers, null);
+			System.out.println(String.format("%d\t\t\t%.0f/s\t%.0f/s",
+					readers, locked, snapshots));
+		}
+	}
+
+	/**
+	 * @return total lookups per second of readers threads on table, while
+	 *         one more thread keeps updating the gateway of random routes;
+	 *         every lookup and update holds lock if it is not null
+	 */
+	private static double measureConcurrent(final RouteTable table,
+			final List<RouteEntry> routes, final int[] addresses, int readers,
+			final Object lock)
+	{
+		final AtomicBoolean done = new AtomicBoolean();
+		final LongAdder lookups = new LongAdder();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int r = 0; r < readers; r++)
+		{
+			final int first = r * 4099;
+			threads.add(new Thread(new Runnable() {
+				public void run()
+				{
+					for (int i = first; !done.get(); i += 16)
+					{
+						for (int j = 0; j < 16; j++)
+						{
+							int ip = addresses[(i + j) & (NUM_ADDRESSES - 1)];
+							if (lock != null)
+							{ synchronized(lock) { table.lookup(ip); } }
+							else
+							{ table.lookup(ip); }
+						}
+						lookups.add(16);
+					}
+				}
+			}));
+		}
+		threads.add(new Thread(new Runnable() {
+			public void run()
+			{
+				Random random = new Random(1);
+				while (!done.get())
+				{
+					RouteEntry route = routes.get(random.nextInt(routes.size()));
+					if (lock != null)
+					{
+						synchronized(lock)
+						{
+							table.update(route.getDestinationAddress(),
+									route.getMaskAddress(), random.nextInt(),
+									route.getInterface());
+						}
+					}
+					else
+					{
+						table.update(route.getDestinationAddress(),
+								route.getMaskAddress(), random.nextInt(),
+								route.getInterface());
+					}
+				}
+			}
+		}));
+
+		long start = System.nanoTime();
+		for (Thread thread : threads)
+		{ thread.start(); }
+		try
+		{
+			Thread.sleep(MEASURE_NANOS / 1000000);
+			done.set(true);
+			for (Thread thread : threads)
+			{ thread.join(); }
+		}
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+		return lookups.sum() / ((System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * How RouteTable.lookup used to work, longest mask wins.
+	 */
+	private static RouteEntry linearLookup(List<RouteEntry> list, int ip)
+	{
+		RouteEntry bestMatch = null;
+		for (RouteEntry entry : list)
+		{
+			if ((ip & entry.getMaskAddress()) == entry.getDestinationAddress()
+					&& ((null == bestMatch) || Integer.compareUnsigned(
+					entry.getMaskAddress(), bestMatch.getMaskAddress()) > 0))
+			{ bestMatch = entry; }
+		}
+		return bestMatch;
+	}
+
+	/**
+	 * @return lookups per second, in list if it is not null, else in table
+	 */
+	private static double measure(int[] addresses, List<RouteEntry> list,
+			RouteTable table)
+	{
+		long lookups = 0;
+		int found = 0;
+		long start = System.nanoTime();
+		long elapsed = 0;
+		do
+		{
+			// Check the clock every batch, which is about a microsecond of
+			// work even for the fastest case
+			for (int i = 0; i < 16; i++, lookups++)
+			{
+				int ip = addresses[(int)lookups & (NUM_ADDRESSES - 1)];
+				RouteEntry entry = (list != null) ? linearLookup(list, ip)
+						: table.lookup(ip);
+				if (entry != null)
+				{ found++; }
+			}
+			elapsed = System.nanoTime() - start;
+		}
+		while (elapsed < MEASURE_NANOS);
+
+		if (found < 0)
+		{ System.out.println(); } // Keeps the lookups from being optimized away
+		return lookups / (elapsed / 1e9);
+	}
+}
@@ -0,0 +1,136 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * Frames per second the router forwards, parsing each one into packet
+ * objects and serializing it again (handlePacket) against rewriting its
+ * bytes in place (handleFrame), for UDP payloads of 64 to 1400 bytes.
+ * Frames are sent nowhere, and what handlePacket prints per packet goes to
+ * a stream that drops it, so only the work on the frame itself counts.
+ * Run with: ant bench
+ * @author Prasoon Tandon and John Lee
+ */
+public class RouterBench
+{
+	/** Time spent measuring each case, in nanoseconds */
+	private static final long MEASURE_NANOS = 1000000000L;
+
+	/** Bytes before the frame in a buffer from VNSComm */
+	private static final int HEADER_SIZE = 24;
+
+	/** Number of frames that reached sendPacket or sendFrame */
+	private static long sent;
+
+	public static void main(String[] args)
+	{
+		Router router = new Router("r1", null) {
+			public boolean sendPacket(Ethernet etherPacket, Iface iface)
+			{
+				// Serializing is part of sending a packet object
+				if (etherPacket.serialize().length > 0)
+				{ sent++; }
+				return true;
+			}
+
+			public boolean sendFrame(byte[] frame, int offset, int length,
+					Iface iface)
+			{
+				sent++;
+				return true;
+			}
+		};
+		Iface in = router.addInterface("eth0");
+		in.setIpAddress(IPv4.toIPv4Address("10.0.1.1"));
+		in.setMacAddress(MACAddress.valueOf("00:00:00:00:01:01"));
+		Iface out = router.addInterface("eth1");
+		out.setIpAddress(IPv4.toIPv4Address("10.0.2.1"));
+		out.setMacAddress(MACAddress.valueOf("00:00:00:00:02:01"));
+		router.getRouteTable().insert(IPv4.toIPv4Address("10.0.2.0"), 0,
+				IPv4.toIPv4Address("255.255.255.0"), out);
+		router.getArpCache().insert(MACAddress.valueOf("00:00:00:00:02:02"),
+				IPv4.toIPv4Address("10.0.2.2"));
+
+		PrintStream stdout = System.out;
+		stdout.println("Payload\t\thandlePacket\t\thandleFrame");
+		for (int size : new int[] { 64, 512, 1400 })
+		{
+			UDP udp = new UDP();
+			udp.setSourcePort((short)5000);
+			udp.setDestinationPort((short)5001);
+			udp.setPayload(new Data(new byte[size]));
+			IPv4 ip = new IPv4();
+			ip.setTtl((byte)64);
+			ip.setProtocol(IPv4.PROTOCOL_UDP);
+			ip.setSourceAddress("10.0.1.2");
+			ip.setDestinationAddress("10.0.2.2");
+			ip.setPayload(udp);
+			Ethernet ether = new Ethernet();
+			ether.setEtherType(Ethernet.TYPE_IPv4);
+			ether.setSourceMACAddress("00:00:00:00:01:02");
+			ether.setDestinationMACAddress("00:00:00:00:01:01");
+			ether.setPayload(ip);
+			byte[] frame = ether.serialize();
+
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+			if (64 == size)
+			{
+				// Warm up both paths before the first measurement
+				measure(router, frame, in, false);
+				measure(router, frame, in, true);
+			}
+			double parsed = measure(router, frame, in, false);
+			double raw = measure(router, frame, in, true);
+			System.setOut(stdout);
+			stdout.println(String.format("%d\t\t%.0f/s\t\t%.0f/s",
+					size, parsed, raw));
+		}
+	}
+
+	/**
+	 * @return frames handled per second, by handleFrame if raw, else by
+	 *         handlePacket
+	 */
+	private static double measure(Router router, byte[] frame, Iface in,
+			boolean raw)
+	{
+		// Every frame arrives in a buffer of its own, as from VNSComm
+		byte[] buf = new byte[HEADER_SIZE + frame.length];
+		long frames = 0;
+		sent = 0;
+		long start = System.nanoTime();
+		long elapsed = 0;
+		do
+		{
+			for (int i = 0; i < 16; i++, frames++)
+			{
+				System.arraycopy(frame, 0, buf, HEADER_SIZE, frame.length);
+				if (raw && router.handleFrame(buf, HEADER_SIZE, frame.length, in))
+				{ continue; }
+				Ethernet etherPacket = new Ethernet();
+				etherPacket.deserialize(buf, HEADER_SIZE, frame.length);
+				router.handlePacket(etherPacket, in);
+			}
+			elapsed = System.nanoTime() - start;
+		}
+		while (elapsed < MEASURE_NANOS);
+
+		// About 5% are dropped on purpose; more means the frame was not forwarded
+		if (sent < frames * 9 / 10)
+		{
+			System.err.println("Only " + sent + " of " + frames
+					+ " frames were forwarded");
+			System.exit(1);
+		}
+		return frames / (elapsed / 1e9);
+	}
+}
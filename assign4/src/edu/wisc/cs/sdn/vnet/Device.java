@@ -72,10 +72,15 @@ public abstract class Device
 	{ this.vnsComm = vnsComm; }
 	
 	/**
-	 * Close the PCAP dump file for the router, if logging is enabled.
+	 * Print the packet counters of the interfaces and close the PCAP dump
+	 * file for the router, if logging is enabled.
 	 */
 	public void destroy()
 	{
+		Log.log(Log.INFO, "Interface counters:");
+		for (Iface iface : this.interfaces.values())
+		{ Log.log(Log.INFO, iface.countersToString()); }
+
 		if (logfile != null)
 		{ this.logfile.close(); }
 	}
@@ -108,7 +113,46 @@ public abstract class Device
 	 * @return true if the packet was sent successfully, otherwise false
 	 */
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
-	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
+	{
+		if (!this.vnsComm.sendPacket(etherPacket, iface.getName()))
+		{ return false; }
+		iface.countSent();
+		return true;
+	}
+	
+	/**
+	 * Send a serialized Ethernet frame out a specific interface.
+	 * @param frame holds the frame at offset, which is copied before this
+	 * 		  returns (it may go out later, with the rest of a batch)
+	 * @param offset where the frame starts in frame
+	 * @param length length of the frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(byte[] frame, int offset, int length, Iface iface)
+	{
+		if (!this.vnsComm.sendFrame(frame, offset, length, iface.getName()))
+		{ return false; }
+		iface.countSent();
+		return true;
+	}
+	
+	/**
+	 * Handle an Ethernet frame received on a specific interface, straight
+	 * from its bytes. A device that can forward some frames without parsing
+	 * them overrides this; the frame may be rewritten in place and passed to
+	 * sendFrame, but it must not be kept: the buffer is reused once this
+	 * returns.
+	 * @param frame holds the frame at offset
+	 * @param offset where the frame starts in frame
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was handled, false (leaving the frame as it
+	 * 		   was) to have it parsed and passed to handlePacket
+	 */
+	public boolean handleFrame(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{ return false; }
 	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
@@ -1,70 +1,144 @@
 package edu.wisc.cs.sdn.vnet;
 
-import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.floodlightcontroller.packet.Ethernet;
 
+/**
+ * A PCAP file (with nanosecond timestamps) of the packets a device sends
+ * and receives. Dumping a packet only copies it into a capture buffer; a
+ * writer thread swaps that buffer for its spare one and writes it out
+ * whenever it is half full, and at least every FLUSH_INTERVAL otherwise.
+ * When the writer falls behind and the buffer is full, packets are dropped
+ * from the log (and counted) rather than holding up the device. With a
+ * maximum file size, the log continues in file.1, file.2 and so on.
+ */
 public class DumpFile
 {
-	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
+	private static final int TCPDUMP_MAGIC_NSEC = 0xa1b23c4d;
 	private static final short PCAP_VERSION_MAJOR = 2;
 	private static final short PCAP_VERSION_MINOR = 4;
 	private static final int THIS_ZONE = 0;
 	private static final int SIG_FIGS = 0;
 	private static final int SNAP_LEN = 65535;
 	private static final int LINKTYPE_ETHERNET = 1;
-	
-	private FileOutputStream fileStream;
-	DataOutputStream outStream;
-	
-	private DumpFile(FileOutputStream fileStream)
-	{
-		this.fileStream = fileStream;
-		outStream = new DataOutputStream(fileStream);
-	}
-	
-	private DumpFile()
+	private static final int FILE_HEADER_SIZE = 24;
+	private static final int RECORD_HEADER_SIZE = 16;
+
+	/** Size of the capture buffer and of the writer's spare one */
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/** Longest a packet waits in the capture buffer, in milliseconds */
+	private static final long FLUSH_INTERVAL = 1000;
+
+	/** Name of the file, null when writing to standard output */
+	private final String filename;
+
+	/** Size at which to continue in a new file; 0 for no limit */
+	private final long maxFileSize;
+
+	private OutputStream outStream;
+	private long fileSize;
+	private int fileIndex;
+
+	/** Wall clock time, in nanoseconds, when System.nanoTime was startNanos */
+	private final long startTime;
+	private final long startNanos;
+
+	/** Guards the capture buffer and everything below */
+	private final ReentrantLock lock;
+	private final Condition filled;
+
+	/** Packets captured and not handed to the writer yet */
+	private ByteBuffer buffer;
+
+	/** Packets that did not fit in the capture buffer */
+	private long dropped;
+
+	/** Whether the writer is to write what is left and stop */
+	private boolean closing;
+
+	private Thread writer;
+
+	private DumpFile(String filename, OutputStream outStream, long maxFileSize)
 	{
-		this.fileStream = null;
-		outStream = new DataOutputStream(System.out);
+		this.filename = filename;
+		this.outStream = outStream;
+		this.maxFileSize = maxFileSize;
+		this.fileSize = 0;
+		this.fileIndex = 0;
+		this.startTime = System.currentTimeMillis() * 1000000L;
+		this.startNanos = System.nanoTime();
+		this.lock = new ReentrantLock();
+		this.filled = this.lock.newCondition();
+		this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		this.dropped = 0;
+		this.closing = false;
 	}
-	
+
 	public static DumpFile open(String filename)
+	{ return open(filename, 0); }
+
+	/**
+	 * @param filename name of the file, or - for standard output
+	 * @param maxFileSize size in bytes at which to continue in a new file
+	 *        (unless writing to standard output); 0 for no limit
+	 * @return the dump file, or null if it could not be opened
+	 */
+	public static DumpFile open(String filename, long maxFileSize)
 	{
 		DumpFile dumpFile = null;
 		if (filename.equals("-"))
-		{ dumpFile = new DumpFile(); }
+		{ dumpFile = new DumpFile(null, System.out, 0); }
 		else
 		{
-			try 
-			{ dumpFile = new DumpFile(new FileOutputStream(filename)); } 
-			catch (FileNotFoundException e) 
+			try
+			{
+				dumpFile = new DumpFile(filename,
+						new FileOutputStream(filename), maxFileSize);
+			}
+			catch (FileNotFoundException e)
 			{
 				System.err.println("Cannot open " + filename);
 				return null;
 			}
 		}
-		
+
 		if (!dumpFile.writeHeader())
 		{ return null; }
+
+		final DumpFile writerFile = dumpFile;
+		dumpFile.writer = new Thread(new Runnable() {
+			public void run()
+			{ writerFile.writeLoop(); }
+		}, "pcap-writer");
+		dumpFile.writer.setDaemon(true);
+		dumpFile.writer.start();
 		return dumpFile;
 	}
-	
+
 	private boolean writeHeader()
-	{        
-		try 
+	{
+		ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+		header.putInt(TCPDUMP_MAGIC_NSEC);
+		header.putShort(PCAP_VERSION_MAJOR);
+		header.putShort(PCAP_VERSION_MINOR);
+		header.putInt(THIS_ZONE);
+		header.putInt(SIG_FIGS);
+		header.putInt(SNAP_LEN);
+		header.putInt(LINKTYPE_ETHERNET);
+		try
 		{
-			this.outStream.writeInt(TCPDUMP_MAGIC);
-			this.outStream.writeShort(PCAP_VERSION_MAJOR);
-			this.outStream.writeShort(PCAP_VERSION_MINOR);
-			this.outStream.writeInt(THIS_ZONE);
-			this.outStream.writeInt(SIG_FIGS);
-			this.outStream.writeInt(SNAP_LEN);
-			this.outStream.writeInt(LINKTYPE_ETHERNET);
+			this.outStream.write(header.array());
 	        this.outStream.flush();
+	        this.fileSize = FILE_HEADER_SIZE;
 	        return true;
 		}
 		catch (IOException e)
@@ -74,34 +148,176 @@ public class DumpFile
 		}
 
 	}
-	
+
 	public void dump(Ethernet etherPacket)
 	{
 		byte[] buf = etherPacket.serialize();
-		
-		int sec = (int)(System.currentTimeMillis()/1000);
-		int usec = (int)((System.currentTimeMillis() % 1000)*1000);
+		this.dump(buf, 0, buf.length);
+	}
+
+	/**
+	 * Capture a frame; it is copied, so buf may be reused right away.
+	 */
+	public void dump(byte[] buf, int offset, int length)
+	{
+		long time = this.startTime + (System.nanoTime() - this.startNanos);
+		int captured = Math.min(length, SNAP_LEN);
+		this.lock.lock();
 		try
 		{
-			this.outStream.writeInt(sec);
-			this.outStream.writeInt(usec);
-			this.outStream.writeInt(buf.length);
-			this.outStream.writeInt(buf.length);
-			this.outStream.write(buf);
-			this.outStream.flush();
+			if (this.closing)
+			{ return; }
+			if (this.buffer.remaining() < RECORD_HEADER_SIZE + captured)
+			{
+				this.dropped++;
+				this.filled.signal();
+				return;
+			}
+			this.buffer.putInt((int)(time / 1000000000L));
+			this.buffer.putInt((int)(time % 1000000000L));
+			this.buffer.putInt(captured);
+			this.buffer.putInt(length);
+			this.buffer.put(buf, offset, captured);
+			if (this.buffer.position() >= BUFFER_SIZE / 2)
+			{ this.filled.signal(); }
 		}
-		catch (IOException e)
-		{ e.printStackTrace(); }
+		finally
+		{ this.lock.unlock(); }
 	}
-	
+
+	/**
+	 * @return number of packets that were not logged because the capture
+	 *         buffer was full
+	 */
+	public long getDropped()
+	{
+		this.lock.lock();
+		try
+		{ return this.dropped; }
+		finally
+		{ this.lock.unlock(); }
+	}
+
+	/**
+	 * Write out the packets captured so far and close the file.
+	 */
 	public void close()
 	{
+		this.lock.lock();
+		try
+		{
+			this.closing = true;
+			this.filled.signal();
+		}
+		finally
+		{ this.lock.unlock(); }
+
+		try
+		{ this.writer.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+
 		try
 		{
 			this.outStream.flush();
-			if (this.fileStream != null)
+			if (this.filename != null)
 			{ this.outStream.close(); }
 		}
 		catch(IOException e) { }
+
+		if (this.dropped > 0)
+		{
+			System.err.println(String.format("%d packets were dropped from "
+					+ "the log", this.dropped));
+		}
+	}
+
+	/**
+	 * Writer thread: takes the capture buffer whenever it is half full,
+	 * or when it has waited for FLUSH_INTERVAL, and writes it to the file.
+	 */
+	private void writeLoop()
+	{
+		ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+		while (true)
+		{
+			boolean last;
+			this.lock.lock();
+			try
+			{
+				if (!this.closing && this.buffer.position() < BUFFER_SIZE / 2)
+				{
+					try
+					{ this.filled.await(FLUSH_INTERVAL, TimeUnit.MILLISECONDS); }
+					catch (InterruptedException e)
+					{ return; }
+				}
+				last = this.closing;
+				ByteBuffer full = this.buffer;
+				this.buffer = buf;
+				buf = full;
+			}
+			finally
+			{ this.lock.unlock(); }
+
+			if (!this.write(buf) || last)
+			{ return; }
+		}
+	}
+
+	/**
+	 * Write the packets in buf to the file, continuing in a new file
+	 * between packets where the file would grow beyond its maximum size,
+	 * and clear buf.
+	 */
+	private boolean write(ByteBuffer buf)
+	{
+		byte[] data = buf.array();
+		int end = buf.position();
+		buf.clear();
+		if (0 == end)
+		{ return true; }
+
+		try
+		{
+			int start = 0;
+			int pos = 0;
+			while (pos < end)
+			{
+				int recordSize = RECORD_HEADER_SIZE + buf.getInt(pos + 8);
+				if (this.maxFileSize > 0 && this.filename != null
+						&& this.fileSize > FILE_HEADER_SIZE
+						&& this.fileSize + recordSize > this.maxFileSize)
+				{
+					this.outStream.write(data, start, pos - start);
+					this.rotate();
+					start = pos;
+				}
+				this.fileSize += recordSize;
+				pos += recordSize;
+			}
+			this.outStream.write(data, start, end - start);
+			this.outStream.flush();
+			return true;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error writing to the log");
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Close the current file and continue in the next one.
+	 */
+	private void rotate() throws IOException
+	{
+		this.outStream.close();
+		this.fileIndex++;
+		this.outStream = new FileOutputStream(this.filename + "."
+				+ this.fileIndex);
+		if (!this.writeHeader())
+		{ throw new IOException("Cannot write header of the log"); }
 	}
 }
@@ -1,5 +1,7 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.util.concurrent.atomic.LongAdder;
+
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
@@ -13,12 +15,21 @@ public class Iface
 	private MACAddress macAddress;
 	private int ipAddress;
     private int subnetMask;
+
+	/** Packets received, sent and dropped on the interface; worker
+	 *  threads may count at the same time */
+	private final LongAdder received;
+	private final LongAdder sent;
+	private final LongAdder dropped;
 	
 	public Iface(String name)
 	{
 		this.name = name;
 		this.macAddress = null;
 		this.ipAddress = 0;
+		this.received = new LongAdder();
+		this.sent = new LongAdder();
+		this.dropped = new LongAdder();
 	}
 	
 	public String getName()
@@ -42,6 +53,33 @@ public class Iface
 	public int getSubnetMask()
 	{ return this.subnetMask; }
 
+	public void countReceived()
+	{ this.received.increment(); }
+
+	public long getReceived()
+	{ return this.received.sum(); }
+
+	public void countSent()
+	{ this.sent.increment(); }
+
+	public long getSent()
+	{ return this.sent.sum(); }
+
+	public void countDropped()
+	{ this.dropped.increment(); }
+
+	public long getDropped()
+	{ return this.dropped.sum(); }
+
+	/**
+	 * @return the interface's packet counters, on one line
+	 */
+	public String countersToString()
+	{
+		return String.format("%s\treceived %d sent %d dropped %d", this.name,
+				this.getReceived(), this.getSent(), this.getDropped());
+	}
+
 	public String toString()
 	{
 		if ((null == this.macAddress) || (0 == this.ipAddress)
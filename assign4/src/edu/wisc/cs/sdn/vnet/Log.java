@@ -0,0 +1,99 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Level-gated logging for the devices. A message above the current level
+ * costs a comparison; messages built from packets are passed as suppliers,
+ * so they are only built when printed. Packet traces are sampled on top of
+ * that: with tracing on, one in every traceSampling packets is traced.
+ * @author Prasoon Tandon and John Lee
+ */
+public class Log
+{
+	public static final int ERROR = 0;
+	public static final int WARN = 1;
+	public static final int INFO = 2;
+	public static final int DEBUG = 3;
+	public static final int TRACE = 4;
+
+	private static final String[] LEVEL_NAMES =
+			{ "error", "warn", "info", "debug", "trace" };
+
+	/** Most detailed level that is printed */
+	private static volatile int level = INFO;
+
+	/** Trace one in this many packets */
+	private static volatile int traceSampling = 1;
+
+	/** Packets considered for tracing so far */
+	private static final AtomicLong traceCount = new AtomicLong();
+
+	public static void setLevel(int level)
+	{ Log.level = level; }
+
+	public static int getLevel()
+	{ return Log.level; }
+
+	/**
+	 * @return the level with this name (error, warn, info, debug or
+	 *         trace), or -1 if there is none
+	 */
+	public static int parseLevel(String name)
+	{
+		for (int i = 0; i < LEVEL_NAMES.length; i++)
+		{
+			if (LEVEL_NAMES[i].equalsIgnoreCase(name))
+			{ return i; }
+		}
+		return -1;
+	}
+
+	/**
+	 * @param traceSampling trace one in this many packets (at least 1)
+	 */
+	public static void setTraceSampling(int traceSampling)
+	{ Log.traceSampling = Math.max(1, traceSampling); }
+
+	/**
+	 * @return true if messages of this level are printed
+	 */
+	public static boolean isEnabled(int level)
+	{ return level <= Log.level; }
+
+	/**
+	 * Print a message, if its level is enabled; errors and warnings go to
+	 * standard error.
+	 */
+	public static void log(int level, String message)
+	{
+		if (level > Log.level)
+		{ return; }
+		if (level <= WARN)
+		{ System.err.println(message); }
+		else
+		{ System.out.println(message); }
+	}
+
+	/**
+	 * Print a message, building it only if its level is enabled.
+	 */
+	public static void log(int level, Supplier<String> message)
+	{
+		if (level > Log.level)
+		{ return; }
+		log(level, message.get());
+	}
+
+	/**
+	 * Print a packet trace, if tracing is on and this packet is sampled.
+	 */
+	public static void trace(Supplier<String> message)
+	{
+		if (TRACE > Log.level
+				|| traceCount.getAndIncrement() % traceSampling != 0)
+		{ return; }
+		System.out.println(message.get());
+	}
+}
@@ -1,5 +1,7 @@
 package edu.wisc.cs.sdn.vnet;
 
+import net.floodlightcontroller.packet.BasePacket;
+
 import edu.wisc.cs.sdn.vnet.rt.Router;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
 import edu.wisc.cs.sdn.vnet.vns.Command;
@@ -17,7 +19,9 @@ public class Main
 		String routeTableFile = null;
 		String arpCacheFile = null;
 		String logfile = null;
+		long maxLogSize = 0;
 		short port = DEFAULT_PORT;
+		int workers = 0;
 		VNSComm vnsComm = null;
 		Device dev = null;
 		
@@ -38,10 +42,26 @@ public class Main
 			{ server = args[++i]; }
 			else if (arg.equals("-l"))
 			{ logfile = args[++i]; }
+			else if (arg.equals("-m"))
+			{ maxLogSize = Long.parseLong(args[++i]) * 1024 * 1024; }
 			else if (arg.equals("-r"))
 			{ routeTableFile = args[++i]; }
 			else if (arg.equals("-a"))
 			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-w"))
+			{ workers = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-L"))
+			{
+				int level = Log.parseLevel(args[++i]);
+				if (level < 0)
+				{
+					usage();
+					return;
+				}
+				Log.setLevel(level);
+			}
+			else if (arg.equals("-T"))
+			{ Log.setTraceSampling(Integer.parseInt(args[++i])); }
 		}
 		
 		if (null == host)
@@ -54,7 +74,7 @@ public class Main
 		DumpFile dump = null;
 		if (logfile != null)
 		{
-			dump = DumpFile.open(logfile);
+			dump = DumpFile.open(logfile, maxLogSize);
 			if (null == dump)
 			{
 				System.err.println("Error opening up dump file "+logfile);
@@ -75,6 +95,10 @@ public class Main
 			return;
 		}
 		
+		// Parse each layer of a packet only when the device asks for it; every
+		// packet is read into a buffer of its own, which nothing changes later
+		BasePacket.setLazyDeserialization(true);
+		
 		// Connect to Virtual Network Simulator server and negotiate session
 		System.out.println(String.format("Connecting to server %s:%d", 
 				server, port));
@@ -94,9 +118,14 @@ public class Main
 			{ ((Router)dev).loadArpCache(arpCacheFile); }
 		}
 
+		// Handle packets on worker threads, if asked to
+		if (workers > 0)
+		{ vnsComm.startWorkers(workers); }
+		
 		// Read messages from the server until the server closes the connection
 		System.out.println("<-- Ready to process packets -->");
 		while (vnsComm.readFromServer());
+		vnsComm.stopWorkers();
 		
 		// Shutdown the router
 		dev.destroy();
@@ -107,6 +136,8 @@ public class Main
 		System.out.println("Virtual Network Client");
 		System.out.println("VNet -v host [-s server] [-p port] [-h]");
 		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("     [-m max_log_file_mb] [-w worker_threads]");
+		System.out.println("     [-L error|warn|info|debug|trace] [-T trace_one_in_n]");
 		System.out.println(String.format("  defaults server=%s port=%d", 
 				DEFAULT_SERVER, DEFAULT_PORT));
 	}
@@ -0,0 +1,240 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.List;
+
+/**
+ * Longest prefix match over IPv4 prefixes, as a binary trie with path
+ * compression: a node only exists where a route ends or two routes branch
+ * off, so a lookup visits at most one node per distinct prefix on the path
+ * to the address instead of one per bit, whatever the number of routes.
+ * Masks are taken to be contiguous (a prefix length of leading ones).
+ * <p>
+ * A trie never changes once built: insert and remove return a new trie
+ * that shares every node off the changed path with the old one (copying at
+ * most one node per level), so any number of threads can look up in a trie
+ * while a new version is being built.
+ * @author Prasoon Tandon and John Lee
+ */
+class PrefixTrie
+{
+	private static class Node
+	{
+		/** Prefix bits, with everything past length cleared */
+		final int prefix;
+
+		/** Prefix length, 0 to 32 */
+		final int length;
+
+		/** Route for exactly this prefix, null if the node only branches */
+		final RouteEntry entry;
+
+		/** Subtries whose next bit (at index length) is 0 and 1 */
+		final Node zero;
+		final Node one;
+
+		Node(int prefix, int length, RouteEntry entry, Node zero, Node one)
+		{
+			this.prefix = prefix;
+			this.length = length;
+			this.entry = entry;
+			this.zero = zero;
+			this.one = one;
+		}
+
+		Node child(int bit)
+		{ return (0 == bit) ? this.zero : this.one; }
+
+		/**
+		 * @return a copy of this node with child bit replaced
+		 */
+		Node withChild(int bit, Node child)
+		{
+			return (0 == bit) ? new Node(prefix, length, entry, child, one)
+					: new Node(prefix, length, entry, zero, child);
+		}
+
+		Node withEntry(RouteEntry entry)
+		{ return new Node(prefix, length, entry, zero, one); }
+	}
+
+	/** The empty trie */
+	static final PrefixTrie EMPTY = new PrefixTrie(null, 0);
+
+	private final Node root;
+
+	private final int size;
+
+	private PrefixTrie(Node root, int size)
+	{
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * @param length prefix length, 0 to 32
+	 * @return the subnet mask with length leading ones
+	 */
+	static int mask(int length)
+	{ return (0 == length) ? 0 : (-1 << (32 - length)); }
+
+	/**
+	 * @param mask a contiguous subnet mask
+	 * @return the number of leading ones in mask
+	 */
+	static int length(int mask)
+	{ return Integer.numberOfLeadingZeros(~mask); }
+
+	/**
+	 * @return bit index of ip, counting from the most significant one
+	 */
+	private static int bit(int ip, int index)
+	{ return (ip >>> (31 - index)) & 1; }
+
+	private static boolean matches(int ip, Node node)
+	{ return 0 == ((ip ^ node.prefix) & mask(node.length)); }
+
+	/**
+	 * @return the entry with the longest prefix containing ip, null if none
+	 */
+	RouteEntry lookup(int ip)
+	{
+		RouteEntry bestMatch = null;
+		Node node = this.root;
+		while (node != null && matches(ip, node))
+		{
+			if (node.entry != null)
+			{ bestMatch = node.entry; }
+			if (32 == node.length)
+			{ break; }
+			node = node.child(bit(ip, node.length));
+		}
+		return bestMatch;
+	}
+
+	/**
+	 * @return the entry for exactly this prefix, null if none
+	 */
+	RouteEntry find(int prefix, int length)
+	{
+		prefix &= mask(length);
+		Node node = this.root;
+		while (node != null && node.length <= length && matches(prefix, node))
+		{
+			if (node.length == length)
+			{ return node.entry; }
+			node = node.child(bit(prefix, node.length));
+		}
+		return null;
+	}
+
+	/**
+	 * Add the entry for a prefix, replacing any entry for the same prefix.
+	 * @return the trie with the entry, this one is left as it is
+	 */
+	PrefixTrie insert(int prefix, int length, RouteEntry entry)
+	{
+		prefix &= mask(length);
+		int size = this.size + ((null == this.find(prefix, length)) ? 1 : 0);
+		return new PrefixTrie(insert(this.root, prefix, length, entry), size);
+	}
+
+	/**
+	 * @return the root of a copy of the subtrie below node with the entry
+	 */
+	private static Node insert(Node node, int prefix, int length, 
+			RouteEntry entry)
+	{
+		if (null == node)
+		{ return new Node(prefix, length, entry, null, null); }
+
+		// Number of leading bits the new prefix and node have in common
+		int common = Math.min(Integer.numberOfLeadingZeros(prefix ^ node.prefix),
+				Math.min(length, node.length));
+
+		if (common == node.length && common == length)
+		{
+			// Same prefix
+			return node.withEntry(entry);
+		}
+		if (common == node.length)
+		{
+			// Node covers the new prefix, which goes below it
+			int b = bit(prefix, common);
+			return node.withChild(b, insert(node.child(b), prefix, length, entry));
+		}
+
+		if (common == length)
+		{
+			// New prefix covers node
+			return (0 == bit(node.prefix, common)) 
+					? new Node(prefix, length, entry, node, null)
+					: new Node(prefix, length, entry, null, node);
+		}
+
+		// They part ways at bit common, under a new branching node
+		Node added = new Node(prefix, length, entry, null, null);
+		int branchPrefix = prefix & mask(common);
+		return (0 == bit(prefix, common)) 
+				? new Node(branchPrefix, common, null, added, node)
+				: new Node(branchPrefix, common, null, node, added);
+	}
+
+	/**
+	 * Remove the entry for exactly this prefix.
+	 * @return the trie without the entry (this one if there was none), this
+	 *         one is left as it is
+	 */
+	PrefixTrie remove(int prefix, int length)
+	{
+		prefix &= mask(length);
+		if (null == this.find(prefix, length))
+		{ return this; }
+		return new PrefixTrie(remove(this.root, prefix, length), this.size - 1);
+	}
+
+	/**
+	 * @return the root of a copy of the subtrie below node (which contains
+	 *         the prefix) without the entry
+	 */
+	private static Node remove(Node node, int prefix, int length)
+	{
+		if (node.length == length)
+		{ node = node.withEntry(null); }
+		else
+		{
+			int b = bit(prefix, node.length);
+			node = node.withChild(b, remove(node.child(b), prefix, length));
+		}
+
+		// Drop nodes that neither hold a route nor branch any more
+		if (node.entry != null)
+		{ return node; }
+		if (null == node.zero)
+		{ return node.one; }
+		if (null == node.one)
+		{ return node.zero; }
+		return node;
+	}
+
+	/**
+	 * @return number of entries
+	 */
+	int size()
+	{ return this.size; }
+
+	/**
+	 * Add all entries to list, ordered by prefix.
+	 */
+	void collect(List<RouteEntry> list)
+	{ collect(this.root, list); }
+
+	private static void collect(Node node, List<RouteEntry> list)
+	{
+		if (null == node)
+		{ return; }
+		if (node.entry != null)
+		{ list.add(node.entry); }
+		collect(node.zero, list);
+		collect(node.one, list);
+	}
+}
@@ -4,7 +4,7 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -19,14 +19,21 @@ import edu.wisc.cs.sdn.vnet.Iface;
  */
 public class RouteTable 
 {
-	/** Entries in the route table */
-	private List<RouteEntry> entries; 
+	/** Entries in the route table, indexed by prefix; a change publishes a
+	 * new version, so lookups never take a lock or see a change halfway */
+	private volatile PrefixTrie entries; 
+
+	/** Held while a new version of the entries is built */
+	private final Object writeLock;
 
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{ 
+		this.entries = PrefixTrie.EMPTY; 
+		this.writeLock = new Object();
+	}
 
 	/**
 	 * Lookup the route entry that matches a given IP address.
@@ -34,28 +41,7 @@ public class RouteTable
 	 * @return the matching route entry, null if none exists
 	 */
 	public RouteEntry lookup(int ip)
-	{
-		synchronized(this.entries)
-		{
-			/*****************************************************************/
-			/* TODO: Find the route entry with the longest prefix match      */
-
-			RouteEntry bestMatch = null;
-			for (RouteEntry entry : this.entries)
-			{
-				int maskedDst = ip & entry.getMaskAddress();
-				int entrySubnet = entry.getDestinationAddress() & entry.getMaskAddress();
-				if (maskedDst == entrySubnet) {
-					if ((null == bestMatch) || (entry.getMaskAddress() > bestMatch.getMaskAddress()))
-					{ bestMatch = entry; }
-				}
-			}
-
-			return bestMatch;
-
-			/*****************************************************************/
-		}
-	}
+	{ return this.entries.lookup(ip); }
 
 	/**
 	 * Populate the route table from a file.
@@ -149,7 +135,8 @@ public class RouteTable
 	}
 
 	/**
-	 * Add an entry to the route table.
+	 * Add an entry to the route table, replacing any entry with the same 
+	 * destination and mask.
 	 * @param dstIp destination IP
 	 * @param gwIp gateway IP
 	 * @param maskIp subnet mask
@@ -159,9 +146,10 @@ public class RouteTable
 	public void insert(int dstIp, int gwIp, int maskIp, Iface iface)
 	{
 		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
-		synchronized(this.entries)
+		synchronized(this.writeLock)
 		{ 
-			this.entries.add(entry);
+			this.entries = this.entries.insert(dstIp, 
+					PrefixTrie.length(maskIp), entry);
 		}
 	}
 
@@ -173,17 +161,19 @@ public class RouteTable
 	 */
 	public boolean remove(int dstIp, int maskIp)
 	{ 
-		synchronized(this.entries)
+		synchronized(this.writeLock)
 		{
-			RouteEntry entry = this.find(dstIp, maskIp);
-			if (null == entry) { return false; }
-			this.entries.remove(entry);
+			PrefixTrie removed = this.entries.remove(dstIp, 
+					PrefixTrie.length(maskIp));
+			if (removed == this.entries) { return false; }
+			this.entries = removed;
 		}
 		return true;
 	}
 
 	/**
-	 * Update an entry in the route table.
+	 * Update an entry in the route table. The entry is replaced rather than
+	 * changed, so a lookup sees either the old or the new one.
 	 * @param dstIP destination IP of the entry to update
 	 * @param maskIp subnet mask of the entry to update
 	 * @param gatewayAddress new gateway IP address for matching entry
@@ -192,12 +182,11 @@ public class RouteTable
 	 */
 	public boolean update(int dstIp, int maskIp, int gwIp, Iface iface)
 	{
-		synchronized(this.entries)
+		synchronized(this.writeLock)
 		{
 			RouteEntry entry = this.find(dstIp, maskIp);
 			if (null == entry) { return false; }
-			entry.setGatewayAddress(gwIp);
-			entry.setInterface(iface);
+			this.insert(entry.getDestinationAddress(), gwIp, maskIp, iface);
 		}
 		return true;
 	}
@@ -210,29 +199,20 @@ public class RouteTable
 	 */
 	private RouteEntry find(int dstIp, int maskIp)
 	{
-		synchronized(this.entries)
-		{
-			for (RouteEntry entry : this.entries)
-			{
-				if ((entry.getDestinationAddress() == dstIp)
-					&& (entry.getMaskAddress() == maskIp)) 
-				{ return entry; }
-			}
-		}
-		return null;
+		return this.entries.find(dstIp, PrefixTrie.length(maskIp));
 	}
 
 	public String toString()
 	{
-		synchronized(this.entries)
-		{ 
-			if (0 == this.entries.size())
-			{ return " WARNING: route table empty"; }
-
-			String result = "Destination\tGateway\t\tMask\t\tIface\n";
-			for (RouteEntry entry : entries)
-			{ result += entry.toString()+"\n"; }
-			return result;
-		}
+		PrefixTrie entries = this.entries;
+		if (0 == entries.size())
+		{ return " WARNING: route table empty"; }
+
+		List<RouteEntry> sorted = new ArrayList<RouteEntry>();
+		entries.collect(sorted);
+		String result = "Destination\tGateway\t\tMask\t\tIface\n";
+		for (RouteEntry entry : sorted)
+		{ result += entry.toString()+"\n"; }
+		return result;
 	}
 }
@@ -1,8 +1,11 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
+import java.util.concurrent.ThreadLocalRandom;
+
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
@@ -12,6 +15,9 @@ import net.floodlightcontroller.packet.IPv4;
  */
 public class Router extends Device
 {	
+	/** Length of an untagged Ethernet header */
+	private static final int ETHER_HEADER_SIZE = 14;
+
 	/** Routing table for the router */
 	private RouteTable routeTable;
 
@@ -35,6 +41,12 @@ public class Router extends Device
 	public RouteTable getRouteTable()
 	{ return this.routeTable; }
 
+	/**
+	 * @return ARP cache for the router
+	 */
+	public ArpCache getArpCache()
+	{ return this.arpCache; }
+
 	/**
 	 * Load a new routing table from a file.
 	 * @param routeTableFile the name of the file containing the routing table
@@ -80,67 +92,137 @@ public class Router extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
+		Log.trace(() -> "*** -> Received packet: " +
 				etherPacket.toString().replace("\n", "\n\t"));
 
 		/********************************************************************/
 		/* TODO: Handle packets                                             */
 
+		boolean forwarded = false;
 		switch(etherPacket.getEtherType())
 		{
 		case Ethernet.TYPE_IPv4:
-			this.handleIpPacket(etherPacket, inIface);
+			forwarded = this.handleIpPacket(etherPacket, inIface);
 			break;
 		// Ignore all other packet types, for now
 		}
+		if (!forwarded && inIface != null)
+		{ inIface.countDropped(); }
 
 		/********************************************************************/
 	}
 
-	private void handleIpPacket(Ethernet etherPacket, Iface inIface)
+	/**
+	 * Forward an IPv4 packet straight from the bytes of its frame: only the
+	 * Ethernet addresses, TTL and checksum change, in place, and the frame
+	 * goes out in the buffer it came in. Anything but a plain forward (other
+	 * EtherTypes, packets for the router, bad checksums, expiring TTLs, no 
+	 * route or ARP entry) is left to handlePacket, so what happens to those 
+	 * is decided in one place.
+	 * @return true if the packet was forwarded (or randomly dropped)
+	 */
+	@Override
+	public boolean handleFrame(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{
+		// Untagged IPv4, with a whole header that checks out
+		int ip = offset + ETHER_HEADER_SIZE;
+		if (null == inIface || length < ETHER_HEADER_SIZE + 20
+				|| (short)(((frame[offset + 12] & 0xff) << 8) 
+						| (frame[offset + 13] & 0xff)) != Ethernet.TYPE_IPv4
+				|| (frame[ip] & 0xf0) != 0x40
+				|| length < ETHER_HEADER_SIZE + (frame[ip] & 0xf) * 4
+				|| !IPv4.isChecksumValid(frame, ip))
+		{ return false; }
+
+		// TTL has to stay above 0
+		if ((frame[ip + 8] & 0xff) <= 1)
+		{ return false; }
+
+		// Packets for one of router's interfaces are not forwarded
+		int dstAddr = ((frame[ip + 16] & 0xff) << 24) 
+				| ((frame[ip + 17] & 0xff) << 16)
+				| ((frame[ip + 18] & 0xff) << 8) | (frame[ip + 19] & 0xff);
+		for (Iface iface : this.interfaces.values())
+		{
+			if (dstAddr == iface.getIpAddress())
+			{ return false; }
+		}
+
+		// Same route and next hop as forwardIpPacket
+		RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
+		if (null == bestMatch)
+		{ return false; }
+		Iface outIface = bestMatch.getInterface();
+		if (outIface == inIface)
+		{ return false; }
+		int nextHop = bestMatch.getGatewayAddress();
+		if (0 == nextHop)
+		{ nextHop = dstAddr; }
+		ArpEntry arpEntry = this.arpCache.lookup(nextHop);
+		if (null == arpEntry)
+		{ return false; }
+
+		if (this.dropRandomly())
+		{
+			inIface.countDropped();
+			return true;
+		}
+
+		// Rewrite the frame in place and send it
+		System.arraycopy(arpEntry.getMac().toBytes(), 0, frame, offset, 
+				Ethernet.DATALAYER_ADDRESS_LENGTH);
+		System.arraycopy(outIface.getMacAddress().toBytes(), 0, frame, 
+				offset + Ethernet.DATALAYER_ADDRESS_LENGTH, 
+				Ethernet.DATALAYER_ADDRESS_LENGTH);
+		IPv4.decrementTtl(frame, ip);
+		this.sendFrame(frame, offset, length, outIface);
+		return true;
+	}
+
+	/**
+	 * @return true if the packet was forwarded
+	 */
+	private boolean handleIpPacket(Ethernet etherPacket, Iface inIface)
 	{
 		// Make sure it's an IP packet
 		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4)
-		{ return; }
+		{ return false; }
 
 		// Get IP header
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
-		System.out.println("Handle IP packet");
-
-		// Verify checksum
-		short origCksum = ipPacket.getChecksum();
-		ipPacket.resetChecksum();
-		byte[] serialized = ipPacket.serialize();
-		ipPacket.deserialize(serialized, 0, serialized.length);
-		short calcCksum = ipPacket.getChecksum();
-		if (origCksum != calcCksum)
-		{ return; }
-
-		// Check TTL
-		ipPacket.setTtl((byte)(ipPacket.getTtl()-1));
-		if (0 == ipPacket.getTtl())
-		{ return; }
+		Log.log(Log.DEBUG, "Handle IP packet");
 
-		// Reset checksum now that TTL is decremented
-		ipPacket.resetChecksum();
+		// Verify checksum, over the header only
+		if (!ipPacket.isChecksumValid())
+		{ return false; }
+
+		// Check TTL; the checksum is adjusted for the new TTL as it goes,
+		// so there is no need to reset it and sum the header again
+		ipPacket.decrementTtl();
+		if (0 == ipPacket.getTtl())
+		{ return false; }
 
 		// Check if packet is destined for one of router's interfaces
 		for (Iface iface : this.interfaces.values())
 		{
 			if (ipPacket.getDestinationAddress() == iface.getIpAddress())
-			{ return; }
+			{ return false; }
 		}
 
 		// Do route lookup and forward
-		this.forwardIpPacket(etherPacket, inIface);
+		return this.forwardIpPacket(etherPacket, inIface);
 	}
 
-	private void forwardIpPacket(Ethernet etherPacket, Iface inIface)
+	/**
+	 * @return true if the packet was forwarded
+	 */
+	private boolean forwardIpPacket(Ethernet etherPacket, Iface inIface)
 	{
 		// Make sure it's an IP packet
 		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4)
-		{ return; }
-		System.out.println("Forward IP packet");
+		{ return false; }
+		Log.log(Log.DEBUG, "Forward IP packet");
 
 		// Get IP header
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
@@ -151,12 +233,12 @@ public class Router extends Device
 
 		// If no entry matched, do nothing
 		if (null == bestMatch)
-		{ return; }
+		{ return false; }
 
 		// Make sure we don't sent a packet back out the interface it came in
 		Iface outIface = bestMatch.getInterface();
 		if (outIface == inIface)
-		{ return; }
+		{ return false; }
 
 		// Set source MAC address in Ethernet header
 		etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
@@ -169,16 +251,26 @@ public class Router extends Device
 		// Set destination MAC address in Ethernet header
 		ArpEntry arpEntry = this.arpCache.lookup(nextHop);
 		if (null == arpEntry)
-		{ return; }
+		{ return false; }
 		etherPacket.setDestinationMACAddress(arpEntry.getMac().toBytes());
 
-		double rand = Math.random();
+		if (this.dropRandomly())
+		{ return false; }
+
+		return this.sendPacket(etherPacket, outIface);
+	}
+
+	/**
+	 * @return true if a packet that would be forwarded is to be dropped
+	 */
+	private boolean dropRandomly()
+	{
+		double rand = ThreadLocalRandom.current().nextDouble();
 		// dropping a pakcet with 5% probablity
 		if (rand < 0.05) {
-			System.out.println("Randomly dropping a packet");
-			return;
+			Log.log(Log.DEBUG, "Randomly dropping a packet");
+			return true;
 		}
-
-		this.sendPacket(etherPacket, outIface);
+		return false;
 	}
 }
@@ -4,6 +4,7 @@ import net.floodlightcontroller.packet.Ethernet;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
 
 /**
  * @author Aaron Gember-Jacobson
@@ -29,7 +30,7 @@ public class Switch extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
+		Log.trace(() -> "*** -> Received packet: " +
 				etherPacket.toString().replace("\n", "\n\t"));
 		
 		/********************************************************************/
@@ -47,7 +48,7 @@ public class Switch extends Device
 				if (iface != inIface)
 				{
 					this.sendPacket(etherPacket, iface);
-					System.out.println("Send packet out interface "+iface);
+					Log.log(Log.DEBUG, () -> "Send packet out interface "+iface);
 				}
 			}
 		}
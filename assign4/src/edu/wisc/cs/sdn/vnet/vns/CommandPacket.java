@@ -6,6 +6,9 @@ import net.floodlightcontroller.packet.Ethernet;
 
 public class CommandPacket extends Command
 {
+	/** Bytes before the Ethernet frame: length, type and interface name */
+	protected static final int HEADER_SIZE = 4 + 4 + 16;
+	
 	protected String mInterfaceName;
 	protected Ethernet etherPacket;
 	
@@ -30,24 +33,24 @@ public class CommandPacket extends Command
 	protected int getSize()
 	{ return super.getSize() + 16; }
 	
-	protected byte[] serialize()
+	/**
+	 * @return name of the interface in the serialized command at offset in
+	 *         buf
+	 */
+	protected static String getInterfaceName(byte[] buf, int offset)
+	{ return new String(buf, offset + 8, 16).trim(); }
+	
+	/**
+	 * Write the header of a command for a frame of length bytes to buf, 
+	 * where the frame itself is to follow.
+	 */
+	protected static void serializeHeader(ByteBuffer buf, int length,
+			String ifaceName)
 	{
-		byte[] packet = this.etherPacket.serialize();
-		int size = this.getSize() + packet.length;
-		this.mLen = size;
-		
-		byte[] data = new byte[size];
-        ByteBuffer bb = ByteBuffer.wrap(data);
-        
-        byte[] parentData = super.serialize();
-        
-        bb.put(parentData);
-        byte[] tmp = new byte[16];
-        System.arraycopy(this.mInterfaceName.getBytes(), 0, tmp, 0, 
-                this.mInterfaceName.length());
-        bb.put(tmp);
-        bb.put(packet);
-        
-        return data;
+		buf.putInt(HEADER_SIZE + length);
+		buf.putInt(Command.VNS_PACKET);
+		byte[] tmp = new byte[16];
+		System.arraycopy(ifaceName.getBytes(), 0, tmp, 0, ifaceName.length());
+		buf.put(tmp);
 	}
 }
@@ -0,0 +1,148 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Threads that handle received frames for a device, so it can use more
+ * than one core. Each frame goes to the worker its flow hashes to (the
+ * IPv4 source and destination, or the MAC addresses for anything else), so
+ * frames of one flow are handled one after the other, in the order they
+ * arrived. A worker does what VNSComm does for a frame when there are no
+ * workers: handleFrame, or else parse it and handlePacket.
+ * @author Prasoon Tandon and John Lee
+ */
+class PacketWorkers
+{
+	/** Frames that may wait for each worker before the reader blocks */
+	private static final int QUEUE_SIZE = 1024;
+
+	/** A frame to handle, or (with a null frame) the end of the queue */
+	private static class Job
+	{
+		final byte[] frame;
+		final Iface inIface;
+
+		Job(byte[] frame, Iface inIface)
+		{
+			this.frame = frame;
+			this.inIface = inIface;
+		}
+	}
+
+	private static final Job END = new Job(null, null);
+
+	private final Device device;
+
+	private final BlockingQueue<Job>[] queues;
+
+	private final Thread[] threads;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	PacketWorkers(Device device, int numWorkers)
+	{
+		this.device = device;
+		this.queues = new BlockingQueue[numWorkers];
+		this.threads = new Thread[numWorkers];
+		for (int i = 0; i < numWorkers; i++)
+		{
+			final BlockingQueue<Job> queue = new ArrayBlockingQueue<Job>(QUEUE_SIZE);
+			this.queues[i] = queue;
+			this.threads[i] = new Thread(new Runnable() {
+				public void run()
+				{ work(queue); }
+			}, "worker-" + i);
+			this.threads[i].start();
+		}
+	}
+
+	/**
+	 * Queue a frame for the worker of its flow, waiting for room if needed.
+	 * @param frame a frame of its own, which the worker may rewrite and keep
+	 * @param inIface the interface on which the frame was received
+	 */
+	void submit(byte[] frame, Iface inIface)
+	{
+		int worker = (flowHash(frame) & 0x7fffffff) % this.queues.length;
+		try
+		{ this.queues[worker].put(new Job(frame, inIface)); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	/**
+	 * Let the workers finish the frames queued so far and wait for them.
+	 */
+	void shutdown()
+	{
+		try
+		{
+			for (BlockingQueue<Job> queue : this.queues)
+			{ queue.put(END); }
+			for (Thread thread : this.threads)
+			{ thread.join(); }
+		}
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	private void work(BlockingQueue<Job> queue)
+	{
+		while (true)
+		{
+			Job job;
+			try
+			{ job = queue.take(); }
+			catch (InterruptedException e)
+			{ return; }
+			if (END == job)
+			{ return; }
+
+			try
+			{
+				if (this.device.handleFrame(job.frame, 0, job.frame.length,
+						job.inIface))
+				{ continue; }
+				Ethernet etherPacket = new Ethernet();
+				etherPacket.deserialize(job.frame, 0, job.frame.length);
+				this.device.handlePacket(etherPacket, job.inIface);
+			}
+			catch (RuntimeException e)
+			{
+				// One bad frame must not stop the worker and its flows
+				System.err.println("Error handling packet");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return hash of the IPv4 source and destination of the frame, or of
+	 *         its MAC addresses if it is not IPv4
+	 */
+	static int flowHash(byte[] frame)
+	{
+		int hash;
+		if (frame.length >= 34 && Ethernet.TYPE_IPv4 ==
+				(short)(((frame[12] & 0xff) << 8) | (frame[13] & 0xff)))
+		{ hash = 31 * readInt(frame, 26) + readInt(frame, 30); }
+		else
+		{
+			hash = 1;
+			for (int i = 0; i < 12 && i < frame.length; i++)
+			{ hash = 31 * hash + frame[i]; }
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	private static int readInt(byte[] buf, int offset)
+	{
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+				| ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+	}
+}
@@ -1,12 +1,15 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.MACAddress;
@@ -14,58 +17,153 @@ import net.floodlightcontroller.packet.MACAddress;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.Iface;
 
-public class VNSComm 
+/**
+ * Talks to the VNS server over one TCP connection. Reads go into a buffer
+ * that is reused for the whole session, so a single read usually brings in
+ * several commands, which readFromServer then handles one after the other.
+ * Packets sent meanwhile are gathered in an output buffer and written
+ * together once those commands are handled (or when the buffer fills up),
+ * instead of with a write and a flush each.
+ * <p>
+ * After startWorkers, received frames are handled by worker threads (see
+ * PacketWorkers) instead of the thread calling readFromServer, and a writer
+ * thread writes out whatever they sent while it was writing the last batch.
+ */
+public class VNSComm
 {
-	private Socket socket;
+	/** Longest command the server may send */
+	private static final int MAX_COMMAND_LENGTH = 10000;
+
+	/** Size of the read and the write buffer, room for a burst of commands */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private SocketChannel channel;
 	private Device device;
-	
+
+	/** Bytes read from the server; commands not handled yet start at
+	 *  commandStart and end at the buffer's position */
+	private final ByteBuffer readBuf;
+	private int commandStart;
+
+	/** Guards everything about writing below; the writer waits for
+	 *  commands to be filled in, senders for the buffer to be emptied */
+	private final ReentrantLock writeLock;
+	private final Condition filled;
+	private final Condition emptied;
+
+	/** Commands waiting to be written to the server */
+	private ByteBuffer writeBuf;
+
+	/** Whether sends are held until the commands read so far are handled */
+	private boolean batching;
+
+	/** Threads handling received frames and writing to the server, null
+	 *  while everything runs on the thread calling readFromServer */
+	private PacketWorkers workers;
+	private Thread writer;
+
+	/** Whether the writer is to stop once the output buffer is empty */
+	private boolean closing;
+
+	/** Whether the writer failed, so nothing can be sent any more */
+	private boolean writeFailed;
+
 	public VNSComm(Device device)
-	{ 
+	{
 		this.device = device;
 		this.device.setVNSComm(this);
+		this.readBuf = ByteBuffer.allocate(BUFFER_SIZE);
+		this.commandStart = 0;
+		this.writeLock = new ReentrantLock();
+		this.filled = this.writeLock.newCondition();
+		this.emptied = this.writeLock.newCondition();
+		this.writeBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		this.batching = false;
+		this.workers = null;
+		this.writer = null;
+	}
+
+	/**
+	 * Hand received frames to worker threads from now on, partitioned by
+	 * flow, and write to the server from a thread of its own.
+	 * @param numWorkers number of worker threads
+	 */
+	public void startWorkers(int numWorkers)
+	{
+		this.workers = new PacketWorkers(this.device, numWorkers);
+		this.writer = new Thread(new Runnable() {
+			public void run()
+			{ writeLoop(); }
+		}, "writer");
+		this.writer.start();
 	}
-	
+
+	/**
+	 * Let the workers finish the frames received so far, write out what
+	 * they sent and stop them and the writer.
+	 */
+	public void stopWorkers()
+	{
+		if (null == this.workers)
+		{ return; }
+		this.workers.shutdown();
+		this.writeLock.lock();
+		try
+		{
+			this.closing = true;
+			this.filled.signal();
+		}
+		finally
+		{ this.writeLock.unlock(); }
+		try
+		{ this.writer.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
 	public boolean connectToServer(short port, String server)
 	{
 		// Grab server address from name
 		InetAddress addr;
-		try 
+		try
 		{ addr = InetAddress.getByName(server); }
-		catch (UnknownHostException e) 
+		catch (UnknownHostException e)
 		{
 			e.printStackTrace();
 			return false;
 		}
-		
-		// Create socket and attempt to connect to the server
-		try 
-		{ socket = new Socket(addr, port); }
-		catch (IOException e) 
+
+		// Create socket and attempt to connect to the server; packets are
+		// gathered into batches here, so Nagle's algorithm would only delay
+		// each batch
+		try
+		{
+			channel = SocketChannel.open(new InetSocketAddress(addr, port));
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		}
+		catch (IOException e)
 		{
 			e.printStackTrace();
 			return false;
 		}
-		
+
 		// Send VNS_OPEN message to server
 		CommandOpen cmdOpen = new CommandOpen();
 		cmdOpen.mVirtualHostId = this.device.getHost();
 		byte[] buf = cmdOpen.serialize();
-		
+
+		this.writeLock.lock();
 		try
 		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
-		}
-		catch(IOException e)
-		{
-			e.printStackTrace();
-			return false;
+			if (!this.ensureWriteSpace(buf.length))
+			{ return false; }
+			this.writeBuf.put(buf);
+			return this.flushLocked();
 		}
-		
-		return true; 
+		finally
+		{ this.writeLock.unlock(); }
 	}
-	
+
 	private boolean handleHwInfo(CommandHwInfo cmdHwInfo)
 	{
 		Iface lastIface = null;
@@ -90,7 +188,7 @@ public class VNSComm
 				System.out.println(String.format(" %d", hwEntry.mKey));
 			}
 		}
-		
+
 		System.out.println("Device interfaces:");
 		if (0 == this.device.getInterfaces().size())
 		{ System.out.println(" Interface list empty"); }
@@ -99,82 +197,113 @@ public class VNSComm
 			for (Iface iface : this.device.getInterfaces().values())
 			{ System.out.println(iface.toString()); }
 		}
-		
+
 		return true;
 	}
-	
+
+	/**
+	 * Handle the next command from the server, waiting for it if needed,
+	 * and then every further command that has already arrived. Packets the
+	 * device sends meanwhile go out together at the end.
+	 * @return false if the connection failed or was closed
+	 */
 	public boolean readFromServer()
-	{ return this.readFromServerExpect(0); }
-	
-	public boolean readFromServerExpect(int expectedCmd)
 	{
-		int bytesRead = 0;
-		InputStream inStream = null;
-		
-		// Get input stream
-		try 
-		{ inStream = this.socket.getInputStream(); } 
-		catch (IOException e) 
+		this.writeLock.lock();
+		try
+		{ this.batching = true; }
+		finally
+		{ this.writeLock.unlock(); }
+
+		boolean ok = this.readFromServerExpect(0);
+		int len;
+		while (ok && (len = this.bufferedCommandLength()) != 0)
+		{ ok = (len > 0) && this.handleCommand(0); }
+
+		this.writeLock.lock();
+		try
 		{
-			e.printStackTrace();
-			return false;
+			this.batching = false;
+			return this.flushLocked() && ok;
 		}
-		
-		// Attempt to read the size of the incoming packet
-		byte[] lenBytes = new byte[4];
-		while (bytesRead < 4)
+		finally
+		{ this.writeLock.unlock(); }
+	}
+
+	/**
+	 * Handle exactly the next command from the server, waiting for it if
+	 * needed; commands that arrive with it stay buffered for readFromServer.
+	 * @param expectedCmd the type the command must have, 0 for any
+	 * @return false if the connection failed or was closed, or the command
+	 *         was not of the expected type
+	 */
+	public boolean readFromServerExpect(int expectedCmd)
+	{
+		// Read until there is a whole command in the buffer
+		int len;
+		while (0 == (len = this.bufferedCommandLength()))
 		{
-			try 
+			// Move what there is of the command to the start of the buffer,
+			// which always leaves room for the rest of it
+			if (this.commandStart > 0)
 			{
-				int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
+				this.readBuf.flip();
+				this.readBuf.position(this.commandStart);
+				this.readBuf.compact();
+				this.commandStart = 0;
+			}
+
+			try
+			{
+				if (this.channel.read(this.readBuf) < 0)
+				{ throw new IOException("Connection closed by server"); }
+			}
+			catch (Exception e)
 			{
 				e.printStackTrace();
 				return false;
 			}
 		}
-		
-		int len = ByteBuffer.wrap(lenBytes).getInt();
-		
-		if (len > 10000 || len < 0)
+		if (len < 0)
+		{ return false; }
+
+		return this.handleCommand(expectedCmd);
+	}
+
+	/**
+	 * @return length of the command at commandStart if all of it has been
+	 *         read, 0 if not, -1 (after closing the connection) if the
+	 *         length is invalid
+	 */
+	private int bufferedCommandLength()
+	{
+		int available = this.readBuf.position() - this.commandStart;
+		if (available < 4)
+		{ return 0; }
+
+		int len = this.readBuf.getInt(this.commandStart);
+		if (len > MAX_COMMAND_LENGTH || len < 8)
 		{
 			System.err.println(String.format(
 					"Error: comamnd length too large %d", len));
-			try { socket.close(); } catch (IOException e) { }
-			return false;
-		}
-		
-		// Allocate buffer
-		ByteBuffer buf = ByteBuffer.allocate(len);
-		
-		// Set first field of command since we've already read it
-		buf.putInt(len);
-		
-		// Read the rest of the command
-		while (bytesRead < len)
-		{
-			try 
-			{
-				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				System.err.println("Error: failed reading command body");
-				try { socket.close(); } catch (IOException e2) { }
-				return false;
-			}
+			try { channel.close(); } catch (IOException e) { }
+			return -1;
 		}
-		
+		return (available >= len) ? len : 0;
+	}
+
+	/**
+	 * Handle the command at commandStart, which has been read completely.
+	 */
+	private boolean handleCommand(int expectedCmd)
+	{
+		byte[] data = this.readBuf.array();
+		int start = this.commandStart;
+		int len = this.readBuf.getInt(start);
+		this.commandStart += len;
+
 		// Make sure the command is what we expected if we were expecting something
-		int command = buf.getInt();
+		int command = this.readBuf.getInt(start + 4);
 		if (expectedCmd != 0 && command != expectedCmd)
 		{
 			if (command != Command.VNS_CLOSE) // VNS_CLOSE is always ok
@@ -185,36 +314,59 @@ public class VNSComm
 				return false;
 			}
 		}
-		
-		buf.position(0);
+
+		// Commands are deserialized from a buffer of their own, since the
+		// read buffer is reused and packets may be parsed only later on
 		switch(command)
 		{
 		case Command.VNS_PACKET:
-			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
-			
-			// Log packet
+			int frameOffset = start + CommandPacket.HEADER_SIZE;
+			int frameLength = len - CommandPacket.HEADER_SIZE;
+			Iface inIface = this.device.getInterface(
+					CommandPacket.getInterfaceName(data, start));
+			if (inIface != null)
+			{ inIface.countReceived(); }
+
+			// Log packet, before the device may rewrite it in place
             if (this.device.getLogFile() != null)
-            { this.device.getLogFile().dump(cmdPkt.etherPacket); }
-			
+            { this.device.getLogFile().dump(data, frameOffset, frameLength); }
+
+			// Hand the frame to the worker of its flow, if there are workers
+			if (this.workers != null)
+			{
+				this.workers.submit(Arrays.copyOfRange(data, frameOffset, 
+						frameOffset + frameLength), inIface);
+				break;
+			}
+
+			// Let the device take the raw frame if it can
+			if (this.device.handleFrame(data, frameOffset, frameLength,
+					inIface))
+			{ break; }
+
+			CommandPacket cmdPkt = new CommandPacket();
+			cmdPkt.deserialize(ByteBuffer.wrap(
+					Arrays.copyOfRange(data, start, start + len)));
+
 			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
+			this.device.handlePacket(cmdPkt.etherPacket, inIface);
 			break;
-			
+
 		case Command.VNS_CLOSE:
 			System.err.println("VNS server closed session.");
 			CommandClose cmdClose = new CommandClose();
-			cmdClose.deserialize(buf);
+			cmdClose.deserialize(ByteBuffer.wrap(
+					Arrays.copyOfRange(data, start, start + len)));
 			System.err.println("Reason: " + new String(cmdClose.mErrorMessage));
 			return true;
-			
+
 		case Command.VNS_HW_INFO:
 			CommandHwInfo cmdHwInfo = new CommandHwInfo();
-			cmdHwInfo.deserialize(buf);
+			cmdHwInfo.deserialize(ByteBuffer.wrap(
+					Arrays.copyOfRange(data, start, start + len)));
 			this.handleHwInfo(cmdHwInfo);
 			break;
-		
+
 		default:
 			System.err.println(String.format("unknown command: %d", command));
 			break;
@@ -222,55 +374,190 @@ public class VNSComm
 
 		return true;
 	}
-	
-	public boolean etherAddrsMatchInterface(Ethernet etherPacket, 
+
+	public boolean etherAddrsMatchInterface(Ethernet etherPacket,
 			String ifaceName)
 	{
 		Iface iface = this.device.getInterface(ifaceName);
 		if (null == iface)
 		{
-			System.err.println("** Error, interface " + ifaceName 
+			System.err.println("** Error, interface " + ifaceName
 					+ ", does not exist");
 			return false;
 		}
 		if (!iface.getMacAddress().equals(etherPacket.getSourceMAC()))
 		{
-			System.err.println("** Error, source address does not match interface"); 
+			System.err.println("** Error, source address does not match interface");
 			return false;
 		}
 		return true;
 	}
-	
+
 	// sr_send_packet
 	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
 	{
-		CommandPacket cmdPacket = new CommandPacket();
-		cmdPacket.mInterfaceName = ifaceName;
-		cmdPacket.etherPacket = etherPacket;
-		
-		byte[] buf = cmdPacket.serialize();
-		
+		byte[] packet = etherPacket.serialize();
+
 		/*if (!etherAddrsMatchInterface(etherPacket, ifaceName))
 		{
 			System.err.println("*** Error: problem with ethernet header, check log");
 			return false;
 		}*/
-		
+
+		return this.sendFrame(packet, 0, packet.length, ifaceName);
+	}
+
+	/**
+	 * Send a serialized Ethernet frame. It is copied to the output buffer,
+	 * and written to the server with the rest of the batch it is part of
+	 * (right away if it is not part of any), or by the writer thread if
+	 * there are workers.
+	 */
+	public boolean sendFrame(byte[] buf, int offset, int length,
+			String ifaceName)
+	{
 		// Log packet
         if (this.device.getLogFile() != null)
-        { this.device.getLogFile().dump(etherPacket); }
-		
-	    try
+        { this.device.getLogFile().dump(buf, offset, length); }
+
+		this.writeLock.lock();
+		try
+		{
+			if (!this.ensureWriteSpace(CommandPacket.HEADER_SIZE + length))
+			{ return false; }
+			CommandPacket.serializeHeader(this.writeBuf, length, ifaceName);
+			this.writeBuf.put(buf, offset, length);
+			if (this.writer != null || !this.batching)
+			{ return this.flushLocked(); }
+		}
+		finally
+		{ this.writeLock.unlock(); }
+		return true;
+	}
+
+	/**
+	 * Write everything in the output buffer to the server now.
+	 * @return true if it was written successfully, otherwise false
+	 */
+	public boolean flush()
+	{
+		this.writeLock.lock();
+		try
+		{ return this.flushLocked(); }
+		finally
+		{ this.writeLock.unlock(); }
+	}
+
+	/**
+	 * Make room for length more bytes in the output buffer: flush it, or
+	 * wait for the writer to take it if there is a writer.
+	 */
+	private boolean ensureWriteSpace(int length)
+	{
+		if (length > this.writeBuf.capacity())
+		{
+			System.err.println("Error writing packet, too large");
+			return false;
+		}
+		while (this.writeBuf.remaining() < length)
+		{
+			if (null == this.writer)
+			{ return this.flushLocked(); }
+			if (this.writeFailed)
+			{ return false; }
+			this.filled.signal();
+			try
+			{ this.emptied.await(); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write the output buffer now, or wake the writer to do it.
+	 */
+	private boolean flushLocked()
+	{
+		if (this.writer != null)
+		{
+			this.filled.signal();
+			return !this.writeFailed;
+		}
+		return this.write(this.writeBuf);
+	}
+
+	/**
+	 * Writer thread: swaps the output buffer for an empty one whenever there
+	 * is something in it and writes it, while senders fill the other one.
+	 */
+	private void writeLoop()
+	{
+		ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		while (true)
+		{
+			this.writeLock.lock();
+			try
+			{
+				while (0 == this.writeBuf.position() && !this.closing)
+				{
+					try
+					{ this.filled.await(); }
+					catch (InterruptedException e)
+					{
+						// Nobody writes from now on, so senders must not wait for us
+						this.writeFailed = true;
+						this.emptied.signalAll();
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				if (0 == this.writeBuf.position())
+				{ return; }
+				ByteBuffer full = this.writeBuf;
+				this.writeBuf = buf;
+				buf = full;
+				this.emptied.signalAll();
+			}
+			finally
+			{ this.writeLock.unlock(); }
+
+			if (!this.write(buf))
+			{
+				this.writeLock.lock();
+				try
+				{
+					this.writeFailed = true;
+					this.emptied.signalAll();
+				}
+				finally
+				{ this.writeLock.unlock(); }
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Write all of buf to the server and clear it.
+	 */
+	private boolean write(ByteBuffer buf)
+	{
+		buf.flip();
+		try
 		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
+			while (buf.hasRemaining())
+			{ this.channel.write(buf); }
 		}
 		catch(IOException e)
 		{
 			System.err.println("Error writing packet");
 			return false;
 		}
+		finally
+		{ buf.clear(); }
 		return true;
 	}
 }
@@ -17,15 +17,44 @@
 
 package net.floodlightcontroller.packet;
 
+import java.util.Arrays;
+import java.util.function.Supplier;
 
 /**
 *
 * @author David Erickson (daviderickson@cs.stanford.edu)
 */
 public abstract class BasePacket implements IPacket {
+    /** Whether deserialize() leaves payloads as bytes until they are asked for */
+    private static boolean lazyDeserialization = false;
+
     protected IPacket parent;
     protected IPacket payload;
 
+    /** Bytes of a payload that is not parsed yet, null if there are none */
+    private byte[] payloadData;
+    private int payloadOffset;
+    private int payloadLength;
+    private Supplier<? extends IPacket> payloadFactory;
+
+    /**
+     * @param lazy whether deserialize() only parses the headers of a packet
+     *        and leaves its payload to be parsed on the first getPayload().
+     *        A payload nobody asked for is serialized by copying its bytes.
+     *        The bytes a packet was deserialized from must not change while
+     *        a payload of it is still unparsed.
+     */
+    public static void setLazyDeserialization(boolean lazy) {
+        lazyDeserialization = lazy;
+    }
+
+    /**
+     * @return whether deserialize() leaves payloads to be parsed on demand
+     */
+    public static boolean isLazyDeserialization() {
+        return lazyDeserialization;
+    }
+
     /**
      * @return the parent
      */
@@ -48,6 +77,12 @@ public abstract class BasePacket implements IPacket {
      */
     @Override
     public IPacket getPayload() {
+        if (this.payloadData != null) {
+            byte[] data = this.payloadData;
+            this.payloadData = null;
+            this.payload = parsePayload(this.payloadFactory, data,
+                    this.payloadOffset, this.payloadLength);
+        }
         return payload;
     }
 
@@ -56,9 +91,51 @@ public abstract class BasePacket implements IPacket {
      */
     @Override
     public IPacket setPayload(IPacket payload) {
+        this.payloadData = null;
         this.payload = payload;
         return this;
     }
+
+    /**
+     * Sets the payload to the packet factory makes (Data if factory is null),
+     * deserialized from length bytes of data at offset: right away, or on
+     * the first getPayload() if deserialization is lazy.
+     */
+    protected void deserializePayload(Supplier<? extends IPacket> factory,
+            byte[] data, int offset, int length) {
+        if (lazyDeserialization) {
+            this.payload = null;
+            this.payloadData = data;
+            this.payloadOffset = offset;
+            this.payloadLength = length;
+            this.payloadFactory = factory;
+        } else {
+            this.payloadData = null;
+            this.payload = parsePayload(factory, data, offset, length);
+        }
+    }
+
+    private IPacket parsePayload(Supplier<? extends IPacket> factory,
+            byte[] data, int offset, int length) {
+        IPacket payload = (factory != null) ? factory.get() : new Data();
+        payload = payload.deserialize(data, offset, length);
+        payload.setParent(this);
+        return payload;
+    }
+
+    /**
+     * @return the serialized payload, null if there is none; a payload that
+     *         was never parsed is copied from the bytes it came from
+     */
+    protected byte[] serializePayload() {
+        if (this.payloadData != null)
+            return Arrays.copyOfRange(this.payloadData, this.payloadOffset,
+                    this.payloadOffset + this.payloadLength);
+        if (this.payload == null)
+            return null;
+        this.payload.setParent(this);
+        return this.payload.serialize();
+    }
     
     @Override
     public void resetChecksum() {
@@ -73,6 +150,7 @@ public abstract class BasePacket implements IPacket {
     public int hashCode() {
         final int prime = 6733;
         int result = 1;
+        IPacket payload = this.getPayload();
         result = prime * result + ((payload == null) ? 0 : payload.hashCode());
         return result;
     }
@@ -89,10 +167,11 @@ public abstract class BasePacket implements IPacket {
         if (!(obj instanceof BasePacket))
             return false;
         BasePacket other = (BasePacket) obj;
+        IPacket payload = this.getPayload();
         if (payload == null) {
-            if (other.payload != null)
+            if (other.getPayload() != null)
                 return false;
-        } else if (!payload.equals(other.payload))
+        } else if (!payload.equals(other.getPayload()))
             return false;
         return true;
     }
@@ -19,8 +19,7 @@ package net.floodlightcontroller.packet;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.function.Supplier;
 
 import org.openflow.util.HexString;
 
@@ -37,13 +36,26 @@ public class Ethernet extends BasePacket {
     public static final short TYPE_BSN = (short) 0x8942;
     public static final short VLAN_UNTAGGED = (short)0xffff;
     public static final short DATALAYER_ADDRESS_LENGTH = 6; // bytes
-    public static Map<Short, Class<? extends IPacket>> etherTypeClassMap;
+
+    /** Makes the payload for each EtherType, null to keep it as Data */
+    @SuppressWarnings("unchecked")
+    private static final Supplier<? extends IPacket>[] etherTypeFactories =
+            (Supplier<? extends IPacket>[]) new Supplier<?>[1 << 16];
 
     static {
-        etherTypeClassMap = new HashMap<Short, Class<? extends IPacket>>();
-        etherTypeClassMap.put(TYPE_ARP, ARP.class);
-        etherTypeClassMap.put(TYPE_RARP, ARP.class);
-        etherTypeClassMap.put(TYPE_IPv4, IPv4.class);
+        registerEtherType(TYPE_ARP, ARP::new);
+        registerEtherType(TYPE_RARP, ARP::new);
+        registerEtherType(TYPE_IPv4, IPv4::new);
+    }
+
+    /**
+     * @param etherType the EtherType to parse payloads of with factory
+     * @param factory makes an empty packet to deserialize the payload into,
+     *        null to keep the payload as Data
+     */
+    public static void registerEtherType(short etherType,
+            Supplier<? extends IPacket> factory) {
+        etherTypeFactories[etherType & 0xffff] = factory;
     }
 
     protected MACAddress destinationMACAddress;
@@ -198,11 +210,7 @@ public class Ethernet extends BasePacket {
     }
 
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] payloadData = this.serializePayload();
         int length = 14 + ((vlanID == VLAN_UNTAGGED) ? 0 : 4) +
                           ((payloadData == null) ? 0 : payloadData.length);
         if (pad && length < 60) {
@@ -253,19 +261,8 @@ public class Ethernet extends BasePacket {
         }
         this.etherType = etherType;
         
-        IPacket payload;
-        if (Ethernet.etherTypeClassMap.containsKey(this.etherType)) {
-            Class<? extends IPacket> clazz = Ethernet.etherTypeClassMap.get(this.etherType);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for Ethernet packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.deserializePayload(etherTypeFactories[this.etherType & 0xffff],
+                data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 
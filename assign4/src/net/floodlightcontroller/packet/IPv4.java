@@ -23,8 +23,7 @@ package net.floodlightcontroller.packet;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.function.Supplier;
 
 /**
  * @author David Erickson (daviderickson@cs.stanford.edu)
@@ -34,13 +33,26 @@ public class IPv4 extends BasePacket {
     public static final byte PROTOCOL_ICMP = 0x1;
     public static final byte PROTOCOL_TCP = 0x6;
     public static final byte PROTOCOL_UDP = 0x11;
-    public static Map<Byte, Class<? extends IPacket>> protocolClassMap;
+
+    /** Makes the payload for each protocol number, null to keep it as Data */
+    @SuppressWarnings("unchecked")
+    private static final Supplier<? extends IPacket>[] protocolFactories =
+            (Supplier<? extends IPacket>[]) new Supplier<?>[1 << 8];
 
     static {
-        protocolClassMap = new HashMap<Byte, Class<? extends IPacket>>();
-        protocolClassMap.put(PROTOCOL_ICMP, ICMP.class);
-        protocolClassMap.put(PROTOCOL_TCP, TCP.class);
-        protocolClassMap.put(PROTOCOL_UDP, UDP.class);
+        registerProtocol(PROTOCOL_ICMP, ICMP::new);
+        registerProtocol(PROTOCOL_TCP, TCP::new);
+        registerProtocol(PROTOCOL_UDP, UDP::new);
+    }
+
+    /**
+     * @param protocol the protocol number to parse payloads of with factory
+     * @param factory makes an empty packet to deserialize the payload into,
+     *        null to keep the payload as Data
+     */
+    public static void registerProtocol(byte protocol,
+            Supplier<? extends IPacket> factory) {
+        protocolFactories[protocol & 0xff] = factory;
     }
 
     protected byte version;
@@ -215,6 +227,106 @@ public class IPv4 extends BasePacket {
         super.resetChecksum();
     }
 
+    /**
+     * Verifies the checksum of a deserialized packet. Only the header takes
+     * part, so this costs the same whatever the size of the payload.
+     * @return true if the header sums to 0xffff (checksum included)
+     */
+    public boolean isChecksumValid() {
+        if (this.headerLength < 5)
+            return false;
+        return 0xffff == this.sumHeader();
+    }
+
+    /**
+     * Decrements the TTL and adjusts the checksum to match, following
+     * RFC 1624 (eqn. 3): HC' = ~(~HC + ~m + m'), where m is the 16-bit word
+     * holding the TTL and the protocol. The checksum stays valid without
+     * summing the header again on serialize().
+     */
+    public IPv4 decrementTtl() {
+        int oldWord = ((this.ttl & 0xff) << 8) | (this.protocol & 0xff);
+        this.ttl--;
+        int newWord = ((this.ttl & 0xff) << 8) | (this.protocol & 0xff);
+        this.checksum = updateChecksum(this.checksum, oldWord, newWord);
+        return this;
+    }
+
+    /**
+     * @return checksum adjusted for one 16-bit header word changing from
+     *         oldWord to newWord (RFC 1624, eqn. 3)
+     */
+    public static short updateChecksum(short checksum, int oldWord, int newWord) {
+        int accumulation = (~checksum & 0xffff) + (~oldWord & 0xffff)
+                + (newWord & 0xffff);
+        accumulation = ((accumulation >> 16) & 0xffff)
+                + (accumulation & 0xffff);
+        accumulation += (accumulation >> 16);
+        return (short) (~accumulation & 0xffff);
+    }
+
+    /**
+     * Verifies the checksum of a serialized header, without deserializing it.
+     * @param data holds the header at offset, all headerLength * 4 bytes of it
+     * @return true if the header sums to 0xffff (checksum included)
+     */
+    public static boolean isChecksumValid(byte[] data, int offset) {
+        int words = (data[offset] & 0xf) * 2;
+        if (words < 10 || offset + words * 2 > data.length)
+            return false;
+        int accumulation = 0;
+        for (int i = offset; i < offset + words * 2; i += 2) {
+            accumulation += ((data[i] & 0xff) << 8) | (data[i + 1] & 0xff);
+        }
+        accumulation = ((accumulation >> 16) & 0xffff)
+                + (accumulation & 0xffff);
+        accumulation += (accumulation >> 16);
+        return 0xffff == (accumulation & 0xffff);
+    }
+
+    /**
+     * Decrements the TTL of a serialized header and adjusts its checksum to
+     * match, like decrementTtl() does for a deserialized one.
+     * @param data holds the header at offset
+     */
+    public static void decrementTtl(byte[] data, int offset) {
+        int oldWord = ((data[offset + 8] & 0xff) << 8) | (data[offset + 9] & 0xff);
+        data[offset + 8]--;
+        int newWord = ((data[offset + 8] & 0xff) << 8) | (data[offset + 9] & 0xff);
+        short checksum = (short) (((data[offset + 10] & 0xff) << 8)
+                | (data[offset + 11] & 0xff));
+        checksum = updateChecksum(checksum, oldWord, newWord);
+        data[offset + 10] = (byte) (checksum >> 8);
+        data[offset + 11] = (byte) checksum;
+    }
+
+    /**
+     * @return one's complement sum of the header words, as they would be
+     *         serialized with the current headerLength and totalLength
+     */
+    private int sumHeader() {
+        int accumulation = ((this.version & 0xf) << 12)
+                | ((this.headerLength & 0xf) << 8) | (this.diffServ & 0xff);
+        accumulation += 0xffff & this.totalLength;
+        accumulation += 0xffff & this.identification;
+        accumulation += ((this.flags & 0x7) << 13) | (this.fragmentOffset & 0x1fff);
+        accumulation += ((this.ttl & 0xff) << 8) | (this.protocol & 0xff);
+        accumulation += 0xffff & this.checksum;
+        accumulation += (this.sourceAddress >>> 16) + (this.sourceAddress & 0xffff);
+        accumulation += (this.destinationAddress >>> 16)
+                + (this.destinationAddress & 0xffff);
+        if (this.options != null) {
+            for (int i = 0; i + 1 < this.options.length; i += 2) {
+                accumulation += ((this.options[i] & 0xff) << 8)
+                        | (this.options[i + 1] & 0xff);
+            }
+        }
+        accumulation = ((accumulation >> 16) & 0xffff)
+                + (accumulation & 0xffff);
+        accumulation += (accumulation >> 16);
+        return accumulation & 0xffff;
+    }
+
     /**
      * @return the sourceAddress
      */
@@ -287,11 +399,7 @@ public class IPv4 extends BasePacket {
      *      -totalLength : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] payloadData = this.serializePayload();
 
         int optionsLength = 0;
         if (this.options != null)
@@ -328,6 +436,7 @@ public class IPv4 extends BasePacket {
             }
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
+            accumulation += (accumulation >> 16);
             this.checksum = (short) (~accumulation & 0xffff);
             bb.putShort(10, this.checksum);
         }
@@ -360,19 +469,8 @@ public class IPv4 extends BasePacket {
             bb.get(this.options);
         }
 
-        IPacket payload;
-        if (IPv4.protocolClassMap.containsKey(this.protocol)) {
-            Class<? extends IPacket> clazz = IPv4.protocolClassMap.get(this.protocol);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for IPv4 packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.deserializePayload(protocolFactories[this.protocol & 0xff],
+                data, bb.position(), bb.limit()-bb.position());
 
         if (this.totalLength != length)
             this.isTruncated = true;
@@ -155,12 +155,9 @@ public class TCP extends BasePacket {
         if (dataOffset == 0)
             dataOffset = 5;  // default header length
         length = dataOffset << 2;
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
+        byte[] payloadData = this.serializePayload();
+        if (payloadData != null)
             length += payloadData.length;
-        }
 
         byte[] data = new byte[length];
         ByteBuffer bb = ByteBuffer.wrap(data);
@@ -282,9 +279,7 @@ public class TCP extends BasePacket {
             }
         }
         
-        this.payload = new Data();
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.deserializePayload(Data::new, data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 }
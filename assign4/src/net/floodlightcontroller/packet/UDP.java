@@ -18,22 +18,35 @@
 package net.floodlightcontroller.packet;
 
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.function.Supplier;
 
 /**
  *
  * @author David Erickson (daviderickson@cs.stanford.edu)
  */
 public class UDP extends BasePacket {
-    public static Map<Short, Class<? extends IPacket>> decodeMap;
     public static short DHCP_SERVER_PORT = (short)67;
     public static short DHCP_CLIENT_PORT = (short)68;
     public static short RIP_PORT = (short)520;
 
+    /** Makes the payload for each port, null to keep it as Data */
+    @SuppressWarnings("unchecked")
+    private static final Supplier<? extends IPacket>[] portFactories =
+            (Supplier<? extends IPacket>[]) new Supplier<?>[1 << 16];
+
     static {
-        decodeMap = new HashMap<Short, Class<? extends IPacket>>();
-        UDP.decodeMap.put(RIP_PORT, RIPv2.class);
+        registerPort(RIP_PORT, RIPv2::new);
+    }
+
+    /**
+     * @param port the port to parse payloads of with factory, if it is the
+     *        destination port or (failing that) the source port
+     * @param factory makes an empty packet to deserialize the payload into,
+     *        null to keep the payload as Data
+     */
+    public static void registerPort(short port,
+            Supplier<? extends IPacket> factory) {
+        portFactories[port & 0xffff] = factory;
     }
 
     protected short sourcePort;
@@ -106,11 +119,7 @@ public class UDP extends BasePacket {
      *      -length : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] payloadData = this.serializePayload();
 
         this.length = (short) (8 + ((payloadData == null) ? 0
                 : payloadData.length));
@@ -205,23 +214,11 @@ public class UDP extends BasePacket {
         this.length = bb.getShort();
         this.checksum = bb.getShort();
 
-        if (UDP.decodeMap.containsKey(this.destinationPort)) {
-            try {
-                this.payload = UDP.decodeMap.get(this.destinationPort).getConstructor().newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Failure instantiating class", e);
-            }
-        } else if (UDP.decodeMap.containsKey(this.sourcePort)) {
-            try {
-                this.payload = UDP.decodeMap.get(this.sourcePort).getConstructor().newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Failure instantiating class", e);
-            }
-        } else {
-            this.payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        Supplier<? extends IPacket> factory =
+                portFactories[this.destinationPort & 0xffff];
+        if (null == factory)
+            factory = portFactories[this.sourcePort & 0xffff];
+        this.deserializePayload(factory, data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 }
@@ -0,0 +1,47 @@
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Datagram buffers shared by all endpoints in the JVM, so receiving a packet does not
+ * allocate once the pool is warm. Buffers come in power-of-two size classes (an mtu plus
+ * the headers rounds up to one of them), each class keeps at most MAX_POOLED_PER_CLASS
+ * free buffers and leaves any beyond that to the garbage collector.
+ *
+ * A buffer from acquire() belongs to the caller until it passes it to release(), after
+ * which it must not be touched again. They are heap arrays rather than direct buffers,
+ * since DatagramSocket receives into a byte[].
+ *
+ * @author Prasoon Tandon
+ * @author John Lee
+ */
+public class BufferPool {
+
+    public final static int MIN_SIZE_SHIFT = 6; //64 bytes
+    public final static int MAX_SIZE_SHIFT = 16; //64 KB, more than any datagram
+    public final static int MAX_POOLED_PER_CLASS = 1024;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final static ArrayBlockingQueue<byte[]>[] POOLS = new ArrayBlockingQueue[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+    static {
+        for(int i = 0; i < POOLS.length; i++) POOLS[i] = new ArrayBlockingQueue<>(MAX_POOLED_PER_CLASS);
+    }
+
+    /**
+     * @return a buffer of at least size bytes (a power of two, unless it is larger than any size class)
+     */
+    public static byte[] acquire(int size) {
+        int shift = Math.max(MIN_SIZE_SHIFT, 32 - Integer.numberOfLeadingZeros(size - 1));
+        if(size <= 0 || shift > MAX_SIZE_SHIFT) return new byte[Math.max(size, 0)];
+
+        byte[] buf = POOLS[shift - MIN_SIZE_SHIFT].poll();
+        return (buf != null) ? buf : new byte[1 << shift];
+    }
+
+    /**
+     * Returns a buffer from acquire() to its size class (buffers of other sizes are just dropped)
+     */
+    public static void release(byte[] buf) {
+        int shift = Integer.numberOfTrailingZeros(buf.length);
+        if(buf.length != (1 << shift) || shift < MIN_SIZE_SHIFT || shift > MAX_SIZE_SHIFT) return;
+        POOLS[shift - MIN_SIZE_SHIFT].offer(buf);
+    }
+}
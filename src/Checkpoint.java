@@ -0,0 +1,106 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * On-disk record of how much of each stream the receiver has durably written.
+ * Every stream is identified by its initial sequence number (its file offset) and
+ * maps to the next sequence number it expects, i.e. [isn + 1, next) is on disk.
+ * Stored next to the output file as "<file name>.ckpt" in a compact binary form:
+ *      int count, then count * (int isn, int next)
+ *
+ * @author Prasoon Tandon
+ * @author John Lee
+ */
+public class Checkpoint {
+
+    public final static String SUFFIX = ".ckpt";
+
+    private final File file;
+    private final TreeMap<Integer, Integer> ranges;
+
+    private Checkpoint(File file) {
+        this.file = file;
+        this.ranges = new TreeMap<>();
+    }
+
+    /**
+     * Starts a new, empty checkpoint for the given output file, replacing any old one
+     * on the next save()
+     */
+    public static Checkpoint create(String outputFileName) {
+        return new Checkpoint(new File(outputFileName + SUFFIX));
+    }
+
+    /**
+     * Loads the checkpoint belonging to the given output file, or an empty one if
+     * there is none (or it cannot be read)
+     */
+    public static Checkpoint load(String outputFileName) {
+        Checkpoint checkpoint = new Checkpoint(new File(outputFileName + SUFFIX));
+        if(!checkpoint.file.exists()) return checkpoint;
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(checkpoint.file))) {
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                int isn = in.readInt();
+                checkpoint.ranges.put(isn, in.readInt());
+            }
+        } catch(IOException e) {
+            System.out.println("Ignoring unreadable checkpoint " + checkpoint.file);
+            checkpoint.ranges.clear();
+        }
+        return checkpoint;
+    }
+
+    /**
+     * @return next expected sequence number for the stream starting at isn, or isn + 1
+     *         if nothing of it is known to be on disk
+     */
+    public synchronized int getNext(int isn) {
+        Integer next = this.ranges.get(isn);
+        return (next == null) ? isn + 1 : next;
+    }
+
+    public synchronized void update(int isn, int next) {
+        this.ranges.put(isn, next);
+    }
+
+    public synchronized void remove(int isn) {
+        this.ranges.remove(isn);
+    }
+
+    /**
+     * Writes the checkpoint to disk (atomically, through a temporary file), or deletes
+     * it once no stream has anything left to resume. The caller must force() the output
+     * file first so the checkpoint never claims more than is actually on disk
+     */
+    public synchronized void save() throws IOException {
+        if(this.ranges.isEmpty()) {
+            Files.deleteIfExists(this.file.toPath());
+            return;
+        }
+
+        File temp = new File(this.file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+            out.writeInt(this.ranges.size());
+            for(Map.Entry<Integer, Integer> range : this.ranges.entrySet()) {
+                out.writeInt(range.getKey());
+                out.writeInt(range.getValue());
+            }
+        }
+        Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("file: %s | ranges: %s", file, ranges);
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ * Where an endpoint gets the time from, in nanoseconds with an arbitrary origin. Timestamps,
+ * timeouts and RTT samples all go through it, so a Simulator can run the endpoints on virtual
+ * time instead of the system clock.
+ *
+ * @author Prasoon Tandon
+ * @author John Lee
+ */
+public interface Clock {
+
+    Clock SYSTEM = System::nanoTime;
+
+    long nanoTime();
+}
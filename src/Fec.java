@@ -0,0 +1,139 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * XOR forward error correction. After every block of K data segments the sender
+ * emits one repair segment (OPT_FEC_REPAIR) whose sequence number is the first one
+ * of the block and whose payload is
+ *      short count, short compressedMask, int blockLength, int wireLengthXor, XOR of all payloads
+ * With it the receiver can rebuild any single segment lost from that block without
+ * waiting for a retransmission. blockLength counts raw bytes (sequence number space),
+ * while wireLengthXor and the XOR cover the payloads as sent (possibly compressed).
+ *
+ * The receiver side keeps a bounded window of recently received data segments.
+ *
+ * @author Prasoon Tandon
+ * @author John Lee
+ */
+public class Fec {
+
+    public final static int SIZE_OF_REPAIR_HEADER = 12;
+    public final static int MAX_BLOCK_SIZE = 16; //compressedMask has one bit per segment
+
+    /** Number of received segments we hold on to for repairs*/
+    private final static int WINDOW_SIZE = 1024;
+
+    /** Recently received data segments (as sent) and their raw lengths, keyed by sequence number*/
+    private final TreeMap<Integer, TCP> segments;
+    private final TreeMap<Integer, Integer> rawLengths;
+
+    public Fec() {
+        this.segments = new TreeMap<>();
+        this.rawLengths = new TreeMap<>();
+    }
+
+    /**
+     * Builds the repair segment for a block of data segments
+     * @param block consecutive data segments, at most MAX_BLOCK_SIZE of them
+     * @param blockLength number of raw bytes the block covers
+     */
+    public static TCP buildRepair(List<TCP> block, int blockLength) {
+        int maxLength = 0;
+        for(TCP segment : block) maxLength = Math.max(maxLength, segment.getData().length);
+
+        short compressedMask = 0;
+        int wireLengthXor = 0;
+        byte[] parity = new byte[maxLength];
+        for(int i = 0; i < block.size(); i++) {
+            TCP segment = block.get(i);
+            if(segment.hasOption(TCP.OPT_COMPRESSED)) compressedMask |= (1 << i);
+            wireLengthXor ^= segment.getData().length;
+            xorInto(parity, segment.getData());
+        }
+
+        ByteBuffer bb = ByteBuffer.allocate(SIZE_OF_REPAIR_HEADER + maxLength);
+        bb.putShort((short)block.size());
+        bb.putShort(compressedMask);
+        bb.putInt(blockLength);
+        bb.putInt(wireLengthXor);
+        bb.put(parity);
+
+        byte[] payload = bb.array();
+        TCP repair = new TCP(block.get(0).getSequenceNum(), -1, System.nanoTime(), (payload.length << 3) + TCP.ACK_FLAG,
+                                (short)0, payload);
+        return repair.setOptions(TCP.OPT_FEC_REPAIR);
+    }
+
+    /**
+     * Remembers a received data segment in case a later repair needs it
+     * @param rawLength number of raw bytes (sequence numbers) the segment covers
+     */
+    public void add(TCP segment, int rawLength) {
+        this.segments.put(segment.getSequenceNum(), segment.detach()); //Outlives the datagram it arrived in
+        this.rawLengths.put(segment.getSequenceNum(), rawLength);
+
+        while(this.segments.size() > WINDOW_SIZE) {
+            int oldest = this.segments.firstKey();
+            this.segments.remove(oldest);
+            this.rawLengths.remove(oldest);
+        }
+    }
+
+    /**
+     * Rebuilds the one segment missing from the repair's block
+     * @return the missing segment exactly as it was sent, or null if nothing or more
+     *         than one segment of the block is missing
+     */
+    public TCP recover(TCP repair) {
+        ByteBuffer bb = ByteBuffer.wrap(repair.getData());
+        int count = bb.getShort();
+        int compressedMask = bb.getShort() & 0xFFFF;
+        int blockLength = bb.getInt();
+        int wireLength = bb.getInt();
+        byte[] payload = new byte[bb.remaining()];
+        bb.get(payload);
+
+        int first = repair.getSequenceNum();
+        Map<Integer, TCP> block = this.segments.subMap(first, first + blockLength);
+        if(block.size() != count - 1) return null;
+
+        //Walk the block in order, the missing segment is the first gap (or the tail)
+        int expected = first;
+        int gapEnd = first + blockLength;
+        int missingIndex = 0;
+        for(Map.Entry<Integer, TCP> entry : block.entrySet()) {
+            if(entry.getKey() != expected) {
+                gapEnd = entry.getKey();
+                break;
+            }
+            expected += this.rawLengths.get(entry.getKey());
+            missingIndex++;
+        }
+        if(expected >= gapEnd) return null;
+
+        for(TCP segment : block.values()) {
+            wireLength ^= segment.getData().length;
+            xorInto(payload, segment.getData());
+        }
+        if(wireLength <= 0 || wireLength > payload.length) return null;
+
+        byte[] data = new byte[wireLength];
+        System.arraycopy(payload, 0, data, 0, wireLength);
+
+        //The rebuilt segment has to fill the gap exactly, otherwise the block was not what we thought
+        boolean isCompressed = (compressedMask & (1 << missingIndex)) != 0;
+        byte[] raw = isCompressed ? TCP.decompress(data) : data;
+        if(raw == null || raw.length != gapEnd - expected) return null;
+
+        TCP missing = new TCP(expected, repair.getAcknowledge(), repair.getTimeStamp(), (wireLength << 3) + TCP.ACK_FLAG,
+                                (short)0, data);
+        if(isCompressed) missing.setOptions(TCP.OPT_COMPRESSED);
+        return missing;
+    }
+
+    private static void xorInto(byte[] parity, byte[] data) {
+        for(int i = 0; i < data.length; i++) parity[i] ^= data[i];
+    }
+}
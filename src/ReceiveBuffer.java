@@ -0,0 +1,169 @@
+import java.util.Arrays;
+
+/**
+ * Receive buffer of one stream: a ring of bytes that starts at the next sequence number we
+ * expect (the cumulative ack), plus the sorted list of byte ranges received beyond it.
+ * Ranges are merged as they touch, so a segment may start and end anywhere and overlap
+ * others or data already delivered. A retransmission with different boundaries (another
+ * mtu, or compressed differently) still fills the gaps exactly. Moving the ack forward only
+ * looks at the first range.
+ *
+ * The ring grows (doubling) when a segment lands further out than it reaches, up to
+ * MAX_CAPACITY bytes past the ack. Anything beyond that is dropped.
+ *
+ * @author Prasoon Tandon
+ * @author John Lee
+ */
+public class ReceiveBuffer {
+
+    public final static int MAX_CAPACITY = 1 << 26;
+
+    /** Receives in-order data from deliver()*/
+    public interface Sink {
+        /** @return false if the data could not be written, deliver() stops then*/
+        boolean write(int sequenceNum, byte[] buf, int off, int len);
+    }
+
+    private byte[] ring; //Length is a power of two
+    private int head; //Index in ring of the byte with sequence number next
+    private int next; //Cumulative ack, everything before it was delivered
+
+    /** Received ranges [starts[i], ends[i]) beyond next, sorted, disjoint and not touching*/
+    private int[] starts;
+    private int[] ends;
+    private int numRanges;
+
+    public ReceiveBuffer(int initialCapacity, int next) {
+        this.ring = new byte[capacityFor(Math.max(initialCapacity, 1))];
+        this.starts = new int[8];
+        this.ends = new int[8];
+        reset(next);
+    }
+
+    /**
+     * Drops everything buffered and starts over at sequence number next
+     */
+    public void reset(int next) {
+        this.next = next;
+        this.head = 0;
+        this.numRanges = 0;
+    }
+
+    /**
+     * @return sequence number of the next byte we need, i.e. the cumulative ack
+     */
+    public int getNext() {
+        return this.next;
+    }
+
+    /**
+     * @return number of separate ranges waiting for a gap before them to be filled
+     */
+    public int getNumRanges() {
+        return this.numRanges;
+    }
+
+    /**
+     * Stores the part of data[off, off + len) (sequence numbers [sn, sn + len)) that lies in
+     * [next, next + MAX_CAPACITY)
+     * @return number of bytes that were not buffered or delivered before (0 for a duplicate)
+     */
+    public int add(int sn, byte[] data, int off, int len) {
+        int start = Math.max(sn, this.next);
+        int end = (int)Math.min((long)sn + len, (long)this.next + MAX_CAPACITY);
+        if(start >= end) return 0;
+
+        ensureCapacity(end - this.next);
+        int mask = this.ring.length - 1;
+        int index = (this.head + (start - this.next)) & mask;
+        int length = end - start;
+        int first = Math.min(length, this.ring.length - index);
+        System.arraycopy(data, off + (start - sn), this.ring, index, first);
+        System.arraycopy(data, off + (start - sn) + first, this.ring, 0, length - first);
+
+        return mergeRange(start, end);
+    }
+
+    /**
+     * Hands the in-order bytes at next to sink (in two pieces when they wrap around the ring)
+     * and moves next past them
+     * @return false if sink failed
+     */
+    public boolean deliver(Sink sink) {
+        if(this.numRanges == 0 || this.starts[0] != this.next) return true;
+
+        int length = this.ends[0] - this.next;
+        int first = Math.min(length, this.ring.length - this.head);
+        if(!sink.write(this.next, this.ring, this.head, first)) return false;
+        if(first < length && !sink.write(this.next + first, this.ring, 0, length - first)) return false;
+
+        this.next = this.ends[0];
+        this.head = (this.head + length) & (this.ring.length - 1);
+        removeRanges(0, 1);
+        return true;
+    }
+
+    /**
+     * Adds [start, end) to the ranges, merging it with every range it overlaps or touches
+     * @return number of bytes of [start, end) no range covered before
+     */
+    private int mergeRange(int start, int end) {
+        //Ranges first to last - 1 overlap or touch the new one
+        int first = 0;
+        while(first < this.numRanges && this.ends[first] < start) first++;
+        int last = first;
+        int covered = 0;
+        while(last < this.numRanges && this.starts[last] <= end) {
+            covered += Math.max(0, Math.min(this.ends[last], end) - Math.max(this.starts[last], start));
+            last++;
+        }
+
+        if(first == last) {
+            insertRange(first, start, end);
+        } else {
+            this.starts[first] = Math.min(start, this.starts[first]);
+            this.ends[first] = Math.max(end, this.ends[last - 1]);
+            removeRanges(first + 1, last);
+        }
+        return (end - start) - covered;
+    }
+
+    private void insertRange(int i, int start, int end) {
+        if(this.numRanges == this.starts.length) {
+            this.starts = Arrays.copyOf(this.starts, this.numRanges * 2);
+            this.ends = Arrays.copyOf(this.ends, this.numRanges * 2);
+        }
+        System.arraycopy(this.starts, i, this.starts, i + 1, this.numRanges - i);
+        System.arraycopy(this.ends, i, this.ends, i + 1, this.numRanges - i);
+        this.starts[i] = start;
+        this.ends[i] = end;
+        this.numRanges++;
+    }
+
+    /**
+     * Removes ranges from (inclusive) to to (exclusive)
+     */
+    private void removeRanges(int from, int to) {
+        System.arraycopy(this.starts, to, this.starts, from, this.numRanges - to);
+        System.arraycopy(this.ends, to, this.ends, from, this.numRanges - to);
+        this.numRanges -= to - from;
+    }
+
+    /**
+     * Grows the ring so it reaches at least span bytes past next, keeping its contents
+     */
+    private void ensureCapacity(int span) {
+        if(span <= this.ring.length) return;
+
+        byte[] grown = new byte[capacityFor(span)];
+        int first = this.ring.length - this.head;
+        System.arraycopy(this.ring, this.head, grown, 0, first);
+        System.arraycopy(this.ring, 0, grown, first, this.head);
+        this.ring = grown;
+        this.head = 0;
+    }
+
+    private static int capacityFor(int span) {
+        return (span <= 1) ? 1 : Integer.highestOneBit(span - 1) << 1;
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+
+/**
+ * Accepts TCP-over-UDP connections on a port and hands out their receiving end as a
+ * ReliableUdpSocket. A receiver owns the port for the whole connection, so connections
+ * are served one at a time.
+ *
+ * @author Prasoon Tandon
+ * @author John Lee
+ */
+public class ReliableUdpServerSocket implements Closeable {
+
+    protected int portNum;
+    protected int mtu;
+    protected int sws;
+
+    private UdpTransport transport; //Bound until a sender connects, the connection owns it then
+    private ReliableUdpSocket current; //Last connection we accepted
+    private boolean closed; //Guarded by this, like transport
+
+    /**
+     * Binds the port right away, so senders can connect as soon as this returns
+     * @param portNum port to listen on, 0 for any free one (see getLocalPort())
+     */
+    public ReliableUdpServerSocket(int portNum, int mtu, int sws) throws IOException {
+        this.transport = UdpTransport.bind(portNum);
+        this.portNum = this.transport.getLocalPort();
+        this.mtu = mtu;
+        this.sws = sws;
+    }
+
+    public int getLocalPort() {
+        return this.portNum;
+    }
+
+    /**
+     * Waits for the previous connection (if any) to end and then for a sender to connect
+     * @return receiving end of the new connection
+     * @throws SocketException if the socket is closed, also while we wait
+     */
+    public ReliableUdpSocket accept() throws IOException {
+        if(this.current != null) this.current.awaitEnd();
+
+        UdpTransport listening;
+        synchronized(this) {
+            if(this.closed) throw new SocketException("Socket is closed");
+            if(this.transport == null) this.transport = UdpTransport.bind(this.portNum); //The previous connection closed it
+            listening = this.transport;
+        }
+
+        //Room for a couple of windows, so a reader that keeps up never closes the window
+        StreamBuffer input = new StreamBuffer((int)Math.max(StreamBuffer.DEFAULT_CAPACITY, Math.min(2L * this.sws * this.mtu, Integer.MAX_VALUE)));
+        input.setOnSpace(listening::wakeup);
+        TCPreceiver receiver = new TCPreceiver(listening, Clock.SYSTEM, this.mtu, this.sws, input);
+        ReliableUdpSocket socket = new ReliableUdpSocket(receiver, input, this.portNum, this.mtu, this.sws);
+
+        boolean connected;
+        try {
+            connected = receiver.awaitSyn();
+        } catch(InterruptedException e) {
+            //The receiver would keep listening with nobody to hand its connection to, the next accept() binds again
+            synchronized(this) {
+                listening.close();
+                if(this.transport == listening) this.transport = null;
+            }
+            throw new InterruptedIOException("Interrupted while waiting for a connection");
+        }
+
+        synchronized(this) {
+            if(this.transport == listening) this.transport = null; //The connection owns it now (or it failed)
+            if(this.closed) throw new SocketException("Socket is closed"); //close() closed the transport under the receiver
+        }
+        if(!connected) throw new IOException("Unable to listen on port " + this.portNum);
+
+        this.current = socket;
+        return socket;
+    }
+
+    /**
+     * Stops listening: a pending accept() throws a SocketException, and so does any later one.
+     * A connection accepted before goes on until its socket is closed
+     */
+    @Override
+    public synchronized void close() {
+        this.closed = true;
+        if(this.transport != null) this.transport.close(); //Wakes a receiver waiting for a SYN, see TCPreceiver.run()
+        this.transport = null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("portNum: %d | mtu: %d | sws: %d", portNum, mtu, sws);
+    }
+}
@@ -0,0 +1,262 @@
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Stream interface to one TCP-over-UDP connection, so applications can send data of any
+ * length (not just files) through it. The protocol carries data one way only, so a socket
+ * is either the sending end (connect(), then write to getOutputStream()) or the receiving
+ * end (returned by ReliableUdpServerSocket.accept(), read from getInputStream()).
+ *
+ * Each end runs a TCPsender or TCPreceiver on a shared worker (see Workers). The sender reads
+ * from a Pipe as its window advances, so a writer blocks while the window is full. The receiver
+ * writes into a StreamBuffer and advertises its free space as the window: a reader that falls
+ * behind closes it, and the sender waits (probing now and then) until the reader catches up,
+ * however long that takes. Sequence numbers are 32 bits, so a connection carries at most
+ * TCP.MAX_STREAM_END bytes (just under 2 GB); writing past that throws an IOException.
+ *
+ * @author Prasoon Tandon
+ * @author John Lee
+ */
+public class ReliableUdpSocket implements Closeable {
+
+    protected int portNum;
+    protected int mtu;
+    protected int sws;
+
+    /** Sender options, see the matching TCPsender setters*/
+    private boolean resume;
+    private boolean compress;
+    private int fecBlockSize;
+    private boolean fastOpen;
+
+    private TCPsender sender;     //Sending end only
+    private TCPreceiver receiver; //Receiving end only
+    private Pipe pipe; //Sending end only, the sender reads from it
+    private LimitedChannel outputChannel; //Sending end only, writes into pipe
+    private StreamBuffer input; //Receiving end only, the receiver writes into it
+    private Future<Boolean> endpoint; //Runs sender or receiver, the result is what run() returned
+
+    private OutputStream outputStream;
+    private InputStream inputStream;
+
+    /**
+     * Creates the sending end, bound to local port portNum once connected
+     */
+    public ReliableUdpSocket(int portNum, int mtu, int sws) {
+        this.portNum = portNum;
+        this.mtu = mtu;
+        this.sws = sws;
+    }
+
+    /**
+     * Creates the receiving end around a receiver that writes into input (see ReliableUdpServerSocket)
+     * @throws IOException if no worker is left to run the receiver, input is closed then
+     */
+    ReliableUdpSocket(TCPreceiver receiver, StreamBuffer input, int portNum, int mtu, int sws) throws IOException {
+        this(portNum, mtu, sws);
+        this.receiver = receiver;
+        this.input = input;
+        this.inputStream = new CheckedInputStream(Channels.newInputStream(input.source()));
+
+        //EOF for the application once the receiver is done
+        try {
+            this.endpoint = Workers.start(() -> {
+                try {
+                    return receiver.run();
+                } finally {
+                    input.sink().close();
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            input.sink().close();
+            input.source().close();
+            throw new IOException("No worker left for a connection on port " + portNum, e);
+        }
+    }
+
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    public void setFec(int blockSize) {
+        this.fecBlockSize = blockSize;
+    }
+
+    public void setFastOpen(boolean fastOpen) {
+        this.fastOpen = fastOpen;
+    }
+
+    /**
+     * Starts sending to remoteIP:remotePort. Returns right away, the handshake happens in the
+     * background (with fast open, once the first segment has been written)
+     */
+    public void connect(String remoteIP, int remotePort) throws IOException {
+        if(this.endpoint != null) throw new IOException("Socket is already connected");
+
+        this.pipe = Pipe.open();
+        this.sender = new TCPsender(this.portNum, remoteIP, remotePort, this.pipe.source(), this.mtu, this.sws);
+        this.sender.setResume(this.resume);
+        this.sender.setCompress(this.compress);
+        this.sender.setFec(this.fecBlockSize);
+        this.sender.setFastOpen(this.fastOpen);
+        this.outputChannel = new LimitedChannel(this.pipe.sink(), TCP.MAX_STREAM_END);
+        this.outputStream = Channels.newOutputStream(this.outputChannel);
+
+        try {
+            this.endpoint = Workers.start(this.sender::run);
+        } catch(RejectedExecutionException e) {
+            //Back to unconnected, the sender has not opened its transport yet
+            try { this.pipe.sink().close(); } catch(IOException e1) { }
+            try { this.pipe.source().close(); } catch(IOException e1) { }
+            this.pipe = null;
+            this.sender = null;
+            this.outputChannel = null;
+            this.outputStream = null;
+            throw new IOException("No worker left to connect from port " + this.portNum, e);
+        }
+    }
+
+
+    /**
+     * @return stream to write the data to (sending end only). Closing it ends the transfer,
+     *         close() the socket to wait for the receiver to confirm it
+     */
+    public OutputStream getOutputStream() throws IOException {
+        if(this.outputStream == null) throw new IOException("Not the sending end of a connected socket");
+        return this.outputStream;
+    }
+
+    /**
+     * @return the same as getOutputStream(), as a channel
+     */
+    public WritableByteChannel getOutputChannel() throws IOException {
+        getOutputStream();
+        return this.outputChannel;
+    }
+
+    /**
+     * @return stream to read the data from (receiving end only). It throws an IOException at
+     *         the end of the data if the transfer failed, e.g. the content hash did not match
+     */
+    public InputStream getInputStream() throws IOException {
+        if(this.inputStream == null) throw new IOException("Not the receiving end of a connection");
+        return this.inputStream;
+    }
+
+    /**
+     * @return the same as getInputStream(), as a channel (without the check at the end of the data)
+     */
+    public ReadableByteChannel getInputChannel() throws IOException {
+        getInputStream();
+        return this.input.source();
+    }
+
+    /**
+     * Sending end: ends the data and waits until the receiver confirmed it.
+     * Receiving end: stops reading, which ends the connection if the data is not complete yet
+     * @throws IOException if the sending end could not deliver everything
+     */
+    @Override
+    public void close() throws IOException {
+        if(this.endpoint == null) return;
+
+        if(this.sender != null) this.pipe.sink().close();
+        else this.input.source().close();
+        boolean success = awaitEnd();
+
+        if(this.sender != null && !success)
+            throw new IOException("Transfer from port " + this.portNum + " failed");
+    }
+
+    /**
+     * Waits for our sender or receiver to finish
+     * @return what its run() returned
+     */
+    boolean awaitEnd() {
+        return Boolean.TRUE.equals(Workers.join(this.endpoint));
+    }
+
+    /**
+     * Passes writes on to a channel until limit bytes went through it, and refuses any write
+     * that would go past that (as a whole, so the data written stays a prefix of what was meant)
+     */
+    static class LimitedChannel implements WritableByteChannel {
+
+        private final WritableByteChannel out;
+        private long remaining;
+
+        LimitedChannel(WritableByteChannel out, long limit) {
+            this.out = out;
+            this.remaining = limit;
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer src) throws IOException {
+            if(src.remaining() > this.remaining)
+                throw new IOException("A connection carries at most " + TCP.MAX_STREAM_END + " bytes");
+            int written = this.out.write(src);
+            this.remaining -= written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.out.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.out.close();
+        }
+    }
+
+    /**
+     * Turns a failed transfer into an IOException at the end of the data, so the application
+     * never takes a truncated or corrupted stream for a complete one
+     */
+    private class CheckedInputStream extends FilterInputStream {
+
+        CheckedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b < 0) checkSuccess();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if(read < 0) checkSuccess();
+            return read;
+        }
+
+        private void checkSuccess() throws IOException {
+            if(!awaitEnd()) throw new IOException("Transfer to port " + portNum + " failed");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (this.sender != null) ? this.sender.toString()
+                : (this.receiver != null) ? this.receiver.toString()
+                : String.format("portNum: %d | mtu: %d | sws: %d", portNum, mtu, sws);
+    }
+}
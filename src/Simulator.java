@@ -0,0 +1,356 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Discrete-event simulation of a lossy network on a virtual clock. Events (a datagram arriving,
+ * a receive() timing out) are processed in time order and the clock jumps straight to the next
+ * one, so a transfer that spends seconds in timeouts for real takes a fraction of a millisecond.
+ * Every datagram is lost with probability lossRate and otherwise arrives after delay plus up to
+ * jitter nanoseconds, all drawn from one seeded Random: the same seed makes the same run.
+ *
+ * The endpoints (a TCPsender or TCPreceiver on a Simulator endpoint, see transfer()) are plain
+ * blocking code, so each one runs on a worker, but only one of them at a time: an endpoint
+ * holds the baton until it waits in receive() or returns, and then hands it back to the event
+ * loop. Nothing ever runs concurrently, so the simulation is single-threaded in effect and
+ * deterministic, provided endpoints wait nowhere else (which is why a TCPsender on
+ * useTransport() builds its segments on its own thread).
+ *
+ * @author Prasoon Tandon
+ * @author John Lee
+ */
+public class Simulator implements Clock {
+
+    /** Virtual time after which the network is shut down and whatever still runs has to give up*/
+    public final static long DEFAULT_TIME_LIMIT = TimeUnit.MINUTES.toNanos(10);
+
+    /** Real time (in seconds) an endpoint may run without waiting in receive() before we call it stuck*/
+    private final static long STUCK_SECONDS = 10;
+
+    private final Random random;
+    private final double lossRate;
+    private final long delay; //One-way delay (in nanoseconds)
+    private final long jitter; //Extra delay, uniform in [0, jitter) nanoseconds
+    private long timeLimit = DEFAULT_TIME_LIMIT;
+
+    private long now;
+    private long numScheduled; //Orders events at the same time by when they were scheduled
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private final List<Endpoint> endpoints = new ArrayList<>();
+    private final Semaphore loopBaton = new Semaphore(0); //Released by an endpoint when it hands the baton back
+    private boolean shutDown;
+
+    /** Statistics of the network*/
+    private int NUM_DATAGRAMS_SENT;
+    private int NUM_DATAGRAMS_LOST;
+
+    /** A datagram arriving at target, a wait of target timing out, target starting to run, or an action*/
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long order;
+        final Endpoint target; //Null for an action
+        final byte[] datagram; //Null for a timeout or a start
+        final long waitNum; //Wait that times out, 0 for a start
+        final Runnable action; //See at()
+
+        Event(long time, long order, Endpoint target, byte[] datagram, long waitNum, Runnable action) {
+            this.time = time;
+            this.order = order;
+            this.target = target;
+            this.datagram = datagram;
+            this.waitNum = waitNum;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int c = Long.compare(this.time, other.time);
+            return (c != 0) ? c : Long.compare(this.order, other.order);
+        }
+    }
+
+    /**
+     * One end of the simulated network. Datagrams go to its peer (see connect())
+     */
+    public class Endpoint implements Transport {
+
+        private final int port;
+        private Endpoint peer;
+        private final ArrayDeque<byte[]> inbox = new ArrayDeque<>();
+        private final Semaphore baton = new Semaphore(0); //Released by the event loop to let this endpoint run
+
+        private Callable<Boolean> task; //What runs on this endpoint, see spawn()
+        private boolean finished;
+        private boolean result;
+
+        private boolean waiting; //Waits in receive() with the baton handed back
+        private long waitNum; //Number of the current (or last) wait, so a stale timeout is ignored
+        private boolean woken;
+        private boolean closed;
+
+        private Endpoint(int port) {
+            this.port = port;
+        }
+
+        @Override
+        public void send(byte[] data, int length) {
+            if(this.closed || this.peer == null) return;
+            NUM_DATAGRAMS_SENT++;
+            if(random.nextDouble() < lossRate) {
+                NUM_DATAGRAMS_LOST++;
+                return;
+            }
+            long latency = delay + ((jitter > 0) ? (long)(random.nextDouble() * jitter) : 0);
+            schedule(now + latency, this.peer, Arrays.copyOf(data, length), 0);
+        }
+
+        @Override
+        public int receive(byte[] buf, long timeOut) throws IOException {
+            if(this.inbox.isEmpty() && !this.woken) {
+                if(this.closed && timeOut <= 0) throw new ClosedChannelException();
+
+                //Hand the baton back until a datagram arrives or the timeout expires
+                this.waiting = true;
+                this.waitNum++;
+                if(timeOut > 0) schedule(now + timeOut, this, null, this.waitNum);
+                loopBaton.release();
+                this.baton.acquireUninterruptibly();
+                this.waiting = false;
+            }
+            this.woken = false;
+
+            byte[] datagram = this.inbox.poll();
+            if(datagram == null) {
+                if(this.closed) throw new ClosedChannelException();
+                return -1;
+            }
+            int length = Math.min(datagram.length, buf.length);
+            System.arraycopy(datagram, 0, buf, 0, length);
+            return length;
+        }
+
+        @Override
+        public void wakeup() {
+            this.woken = true; //Only our own thread runs while we hold the baton, so nobody waits yet
+        }
+
+        @Override
+        public int getLocalPort() {
+            return this.port;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !this.closed;
+        }
+
+        @Override
+        public void close() {
+            this.closed = true;
+            this.inbox.clear();
+        }
+
+        /**
+         * @return what the task returned (false if it threw or did not finish)
+         */
+        public boolean getResult() {
+            return this.result;
+        }
+
+        /**
+         * Runs on a worker: waits for the baton, runs the task and hands the baton back for good
+         */
+        private Void runTask() {
+            this.baton.acquireUninterruptibly();
+            try {
+                this.result = this.task.call();
+            } catch(Exception e) {
+                System.out.println("Endpoint " + this.port + " failed in Simulator runTask()");
+                e.printStackTrace();
+            } finally {
+                this.finished = true;
+                loopBaton.release();
+            }
+            return null;
+        }
+    }
+
+    public Simulator(long seed, double lossRate, long delay, long jitter) {
+        this.random = new Random(seed);
+        this.lossRate = lossRate;
+        this.delay = delay;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Virtual time: starts at 0 and only moves when the event loop moves to the next event
+     */
+    @Override
+    public long nanoTime() {
+        return this.now;
+    }
+
+    public void setTimeLimit(long timeLimit) {
+        this.timeLimit = timeLimit;
+    }
+
+    /**
+     * @return a new endpoint, which sends nowhere until connect()
+     */
+    public Endpoint newEndpoint() {
+        Endpoint endpoint = new Endpoint(this.endpoints.size() + 1);
+        this.endpoints.add(endpoint);
+        return endpoint;
+    }
+
+    /**
+     * Makes a and b each other's peer
+     */
+    public void connect(Endpoint a, Endpoint b) {
+        a.peer = b;
+        b.peer = a;
+    }
+
+    /**
+     * Runs task on endpoint once run() is called, endpoints start in the order they were spawned
+     */
+    public void spawn(Endpoint endpoint, Callable<Boolean> task) {
+        endpoint.task = task;
+        schedule(0, endpoint, null, 0);
+    }
+
+    /**
+     * Runs action at virtual time, on the event loop while no endpoint runs, e.g. to play an
+     * application that reads what a receiver delivered now and then
+     */
+    public void at(long time, Runnable action) {
+        this.events.add(new Event(time, this.numScheduled++, null, null, 0, action));
+    }
+
+    /**
+     * Runs the event loop until every spawned task returned. Past the time limit the network is
+     * shut down: every endpoint is closed, so a task still waiting for its peer gives up
+     * @return true if every task returned true
+     */
+    public boolean run() {
+        while(!allFinished()) {
+            Event event = this.events.poll();
+            if(event == null || (event.time > this.timeLimit && !this.shutDown)) {
+                if(event != null) this.events.add(event);
+                else if(this.shutDown) throw new IllegalStateException("Simulated endpoints wait for each other forever");
+                shutDownNetwork();
+                continue;
+            }
+            this.now = Math.max(this.now, event.time);
+            fire(event);
+        }
+
+        boolean success = true;
+        for(Endpoint endpoint : this.endpoints) if(endpoint.task != null) success &= endpoint.result;
+        return success;
+    }
+
+    /**
+     * Sends data from a TCPsender to a TCPreceiver, each on a new endpoint of this network.
+     * setup (if not null) gets the sender before it starts, e.g. to turn on FEC
+     * @return the data the receiver delivered, or null if either side failed
+     */
+    public byte[] transfer(byte[] data, int mtu, int sws, Consumer<TCPsender> setup) {
+        Endpoint senderEnd = newEndpoint();
+        Endpoint receiverEnd = newEndpoint();
+        connect(senderEnd, receiverEnd);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length);
+        TCPreceiver receiver = new TCPreceiver(receiverEnd, this, mtu, sws, Channels.newChannel(output));
+        TCPsender sender = new TCPsender(senderEnd.getLocalPort(), "simulated", receiverEnd.getLocalPort(),
+                                        Channels.newChannel(new ByteArrayInputStream(data)), mtu, sws);
+        sender.useTransport(senderEnd, this);
+        if(setup != null) setup.accept(sender);
+
+        spawn(receiverEnd, receiver::run);
+        spawn(senderEnd, sender::run);
+        return run() ? output.toByteArray() : null;
+    }
+
+    /**
+     * @return number of datagrams sent by all endpoints (including lost ones)
+     */
+    public int getNumDatagramsSent() {
+        return this.NUM_DATAGRAMS_SENT;
+    }
+
+    /**
+     * @return number of datagrams the network dropped
+     */
+    public int getNumDatagramsLost() {
+        return this.NUM_DATAGRAMS_LOST;
+    }
+
+    private void schedule(long time, Endpoint target, byte[] datagram, long waitNum) {
+        this.events.add(new Event(time, this.numScheduled++, target, datagram, waitNum, null));
+    }
+
+    private void fire(Event event) {
+        if(event.action != null) {
+            event.action.run();
+            return;
+        }
+        Endpoint target = event.target;
+        if(target.finished) return;
+
+        if(event.datagram != null) {
+            if(target.closed) return;
+            target.inbox.add(event.datagram);
+            if(target.waiting) resume(target);
+        } else if(event.waitNum == 0) {
+            Workers.start(target::runTask);
+            resume(target);
+        } else if(target.waiting && target.waitNum == event.waitNum) {
+            resume(target);
+        }
+    }
+
+    /**
+     * Hands the baton to endpoint and waits until it hands it back
+     */
+    private void resume(Endpoint endpoint) {
+        endpoint.baton.release();
+        try {
+            if(!this.loopBaton.tryAcquire(STUCK_SECONDS, TimeUnit.SECONDS))
+                throw new IllegalStateException("Endpoint " + endpoint.port + " waits outside the simulated network");
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while endpoint " + endpoint.port + " runs");
+        }
+    }
+
+    /**
+     * Closes every endpoint and wakes those that wait, from now on they only time out
+     */
+    private void shutDownNetwork() {
+        this.shutDown = true;
+        for(Endpoint endpoint : this.endpoints) endpoint.close();
+        for(Endpoint endpoint : this.endpoints) {
+            if(endpoint.waiting && !endpoint.finished) resume(endpoint);
+        }
+    }
+
+    private boolean allFinished() {
+        for(Endpoint endpoint : this.endpoints) {
+            if(endpoint.task != null && !endpoint.finished) return false;
+        }
+        return true;
+    }
+}
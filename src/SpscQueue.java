@@ -0,0 +1,90 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread. Each
+ * side only writes its own index (published with a release store, lazySet) and caches the
+ * other side's, so offer() and poll() take no lock and usually touch no shared cache line.
+ *
+ * Nothing here blocks, a side that finds the queue full or empty has to arrange its own
+ * wakeup (see TCPsender, which pairs it with a Selector and LockSupport.park)
+ *
+ * @author Prasoon Tandon
+ * @author John Lee
+ */
+public class SpscQueue<E> {
+
+    private final Object[] buffer; //Length is a power of two
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong(); //Next element to poll, written by the consumer only
+    private final AtomicLong tail = new AtomicLong(); //Next free slot, written by the producer only
+    private long cachedHead; //Producer's last look at head
+    private long cachedTail; //Consumer's last look at tail
+
+    public SpscQueue(int capacity) {
+        int size = (capacity <= 1) ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.buffer = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Producer only
+     * @return false if the queue is full
+     */
+    public boolean offer(E element) {
+        long t = this.tail.getPlain();
+        if(t - this.cachedHead >= this.buffer.length) {
+            this.cachedHead = this.head.get();
+            if(t - this.cachedHead >= this.buffer.length) return false;
+        }
+        this.buffer[(int)t & this.mask] = element;
+        this.tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Consumer only
+     * @return the oldest element, or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = this.head.getPlain();
+        if(h >= this.cachedTail) {
+            this.cachedTail = this.tail.get();
+            if(h >= this.cachedTail) return null;
+        }
+        int index = (int)h & this.mask;
+        E element = (E)this.buffer[index];
+        this.buffer[index] = null;
+        this.head.lazySet(h + 1);
+        return element;
+    }
+
+    /**
+     * Consumer only
+     * @return the oldest element without removing it, or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        long h = this.head.getPlain();
+        if(h >= this.cachedTail) {
+            this.cachedTail = this.tail.get();
+            if(h >= this.cachedTail) return null;
+        }
+        return (E)this.buffer[(int)h & this.mask];
+    }
+
+    /**
+     * Either side, exact for the consumer and a snapshot for the producer
+     */
+    public boolean isEmpty() {
+        return this.head.get() >= this.tail.get();
+    }
+
+    /**
+     * Either side, exact for the producer and a snapshot for the consumer
+     */
+    public boolean isFull() {
+        return this.tail.get() - this.head.get() >= this.buffer.length;
+    }
+}
@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * In-memory pipe from a TCPreceiver to the application reading its data (the receiving end of
+ * a ReliableUdpSocket). Unlike a Pipe, writing never blocks the receiver: it advertises getFree()
+ * as its window instead, so the sender stops once the reader is capacity bytes behind, and the
+ * buffer only goes past that by the segment that straddled the window's edge. Reading blocks
+ * until there is data or the writing side was closed.
+ *
+ * @author Prasoon Tandon
+ * @author John Lee
+ */
+public class StreamBuffer {
+
+    /** Capacity of a receiving socket's buffer, unless its window is larger*/
+    public final static int DEFAULT_CAPACITY = 1 << 20;
+
+    private final int capacity;
+    private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>(); //Written and not read yet, in order
+    private long buffered; //Bytes left in chunks
+    private boolean sinkClosed; //End of the data once chunks are read
+    private boolean sourceClosed; //Nobody reads any more, so writes fail
+    private Runnable onSpace; //See setOnSpace()
+
+    private final Sink sink = new Sink();
+    private final Source source = new Source();
+
+    public StreamBuffer(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param onSpace called (on the reading thread) whenever a read brings the free space from
+     *        below half the capacity to at least that, e.g. to have the receiver advertise it
+     */
+    public synchronized void setOnSpace(Runnable onSpace) {
+        this.onSpace = onSpace;
+    }
+
+    /**
+     * @return bytes that can be written before the buffer is over its capacity
+     */
+    public synchronized int getFree() {
+        return (int)Math.max(0, this.capacity - this.buffered);
+    }
+
+    /**
+     * @return the writing side (the receiver's sink), closing it ends the data
+     */
+    public WritableByteChannel sink() {
+        return this.sink;
+    }
+
+    /**
+     * @return the reading side, closing it drops whatever is buffered and fails later writes
+     */
+    public ReadableByteChannel source() {
+        return this.source;
+    }
+
+    private class Sink implements WritableByteChannel {
+
+        /**
+         * Copies all of src, however much is buffered already
+         */
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            synchronized(StreamBuffer.this) {
+                if(sinkClosed || sourceClosed) throw new ClosedChannelException();
+                int length = src.remaining();
+                if(length == 0) return 0;
+
+                ByteBuffer chunk = ByteBuffer.allocate(length);
+                chunk.put(src).flip();
+                chunks.add(chunk);
+                buffered += length;
+                StreamBuffer.this.notifyAll();
+                return length;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            synchronized(StreamBuffer.this) {
+                return !sinkClosed;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized(StreamBuffer.this) {
+                sinkClosed = true;
+                StreamBuffer.this.notifyAll();
+            }
+        }
+    }
+
+    private class Source implements ReadableByteChannel {
+
+        /**
+         * Waits until there is data (or its end) and reads as much as dst takes
+         * @return number of bytes read, or -1 at the end of the data
+         */
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            Runnable notify = null;
+            int read = 0;
+            synchronized(StreamBuffer.this) {
+                while(chunks.isEmpty() && !sinkClosed && !sourceClosed) {
+                    try {
+                        StreamBuffer.this.wait();
+                    } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for data");
+                    }
+                }
+                if(sourceClosed) throw new ClosedChannelException();
+                if(chunks.isEmpty()) return -1;
+
+                long freeBefore = capacity - buffered;
+                while(dst.hasRemaining() && !chunks.isEmpty()) {
+                    ByteBuffer chunk = chunks.peek();
+                    int length = Math.min(chunk.remaining(), dst.remaining());
+                    int limit = chunk.limit();
+                    chunk.limit(chunk.position() + length);
+                    dst.put(chunk);
+                    chunk.limit(limit);
+                    if(!chunk.hasRemaining()) chunks.poll();
+                    read += length;
+                }
+                buffered -= read;
+                if(freeBefore < capacity / 2 && capacity - buffered >= capacity / 2) notify = onSpace;
+            }
+            if(notify != null) notify.run(); //Outside the lock, so it never waits while we hold it
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            synchronized(StreamBuffer.this) {
+                return !sourceClosed;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized(StreamBuffer.this) {
+                sourceClosed = true;
+                chunks.clear();
+                buffered = 0;
+                StreamBuffer.this.notifyAll();
+            }
+        }
+    }
+}
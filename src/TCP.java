@@ -1,4 +1,9 @@
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  *
@@ -11,18 +16,63 @@ public class TCP {
     public final static byte FIN_FLAG = 0x02;
     public final static byte ACK_FLAG = 0x01;
 
+    /** Option bits, carried in the 16 bits after the length field*/
+    public final static short OPT_RESUME = 0x0001; //SYN: sender can resume, SYN-ACK: ack is the resume point
+    public final static short OPT_HASH_MISMATCH = 0x0002; //FIN-ACK: content hash sent with the FIN did not match
+    public final static short OPT_COMPRESS = 0x0004; //SYN: sender wants to compress, SYN-ACK: receiver agrees
+    public final static short OPT_COMPRESSED = 0x0008; //Data: payload is raw Deflate, sequence numbers still count raw bytes
+    public final static short OPT_FEC = 0x0010; //SYN: sender will send repair segments, SYN-ACK: receiver will use them
+    public final static short OPT_FEC_REPAIR = 0x0020; //XOR repair segment for a block of data segments (see Fec)
+    public final static short OPT_FAST_OPEN = 0x0040; //SYN: carries the first segment of data (which starts at sn + 1)
+    public final static short OPT_WINDOW = 0x0080; //ACK: payload is the window (see windowToBytes()), without one: window probe
+
     public final static int MAX_NUM_RETRANS = 16;
+
+    /** Bounds (in nanoseconds) for retry intervals, which start at the RTO and double after every retry*/
+    public final static long INITIAL_TIME_OUT = (long)5e+9; //Before we have an RTT sample, per the instructions
+    public final static long MIN_TIME_OUT = (long)10e+6;
+    public final static long MAX_TIME_OUT = (long)5e+9;
     public final static int SIZE_OF_HEADER = 24;
+    public final static int SIZE_OF_HASH = 4; //CRC32C of the whole stream, carried as the FIN's data
+    public final static int SIZE_OF_WINDOW = 4; //Receiver's free space past the ack, carried as an ACK's data
+    public final static int MAX_COMPRESSION_RATIO = 16; //A compressed segment carries at most this many mtu of raw data
+
+    /** Sequence numbers are ints starting at the stream's file offset, so a connection's data has to end
+     *  at or before this offset (its FIN and the FIN's ACK take two more)*/
+    public final static long MAX_STREAM_END = Integer.MAX_VALUE - 2;
 
     protected int sequenceNum;
     protected int acknowledge;
     protected long timeStamp;
     protected int length; //Includes least 3 sig-bits as FLAGS
+    protected short options; //Negotiated features, see OPT_* (0 for plain segments)
     protected short checksum;
     protected byte[] data;
+    protected byte[] buffer; //Pooled datagram the payload still lives in (see wrap()), null once released
 
     public TCP(){}
 
+    /**
+     * @return timeOut limited to [MIN_TIME_OUT, MAX_TIME_OUT]
+     */
+    public static long clampTimeOut(long timeOut) {
+        return Math.min(Math.max(timeOut, MIN_TIME_OUT), MAX_TIME_OUT);
+    }
+
+    /**
+     * @return timeOut (in nanoseconds) as a socket timeout in milliseconds, at least 1 since 0 means forever
+     */
+    public static int toSoTimeout(long timeOut) {
+        return (int)Math.min(Math.max(1, (timeOut + 999999) / 1000000), Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return retry interval to use after timeOut expired without an answer (exponential backoff)
+     */
+    public static long backOff(long timeOut) {
+        return clampTimeOut(2 * timeOut);
+    }
+
     public TCP(int sn, int ack, long ts, int l, short cs, byte[] data) {
         this.sequenceNum = sn;
         this.acknowledge = ack;
@@ -64,10 +114,38 @@ public class TCP {
         return this;
     }
 
+    public short getOptions() {
+        return this.options;
+    }
+    public TCP setOptions(short options) {
+        this.options = options;
+        return this;
+    }
+    public boolean hasOption(short option) {
+        return (this.options & option) == option;
+    }
+
+    /**
+     * @return the payload. For a wrapped packet it is copied out of the datagram on the first call
+     *         (null if the datagram was released before that)
+     */
     public byte[] getData() {
+        if(this.data == null && this.buffer != null && (this.length >>> 3) > 0)
+            this.data = Arrays.copyOfRange(this.buffer, SIZE_OF_HEADER, SIZE_OF_HEADER + (this.length >>> 3));
         return this.data;
     }
 
+    /**
+     * @return array holding the payload at getDataOffset(). For a wrapped packet that is the
+     *         datagram itself, so reading the payload this way copies nothing
+     */
+    public byte[] getDataArray() {
+        return (this.data == null && this.buffer != null) ? this.buffer : this.data;
+    }
+    public int getDataOffset() {
+        return (this.data == null && this.buffer != null) ? SIZE_OF_HEADER : 0;
+    }
+
     public short getChecksum() {
         return this.checksum;
     }
@@ -93,12 +171,105 @@ public class TCP {
 
     }
 
+    /**
+     * Builds the payload of a FIN: the CRC32C of every data byte of the stream, in order
+     */
+    public static byte[] hashToBytes(Checksum contentHash) {
+        return ByteBuffer.allocate(SIZE_OF_HASH).putInt((int)contentHash.getValue()).array();
+    }
+
+    /**
+     * @return true if the FIN payload matches the locally computed content hash. A FIN
+     *         without a payload (no hash sent) is accepted
+     */
+    public static boolean hashMatches(byte[] finData, Checksum contentHash) {
+        if(finData == null) return true;
+        if(finData.length != SIZE_OF_HASH) return false;
+        return ByteBuffer.wrap(finData).getInt() == (int)contentHash.getValue();
+    }
+
+    /**
+     * Builds the payload of an ACK with OPT_WINDOW: how many bytes past the ack the receiver
+     * has room for. The right edge (ack plus window) never moves back
+     */
+    public static byte[] windowToBytes(int window) {
+        return ByteBuffer.allocate(SIZE_OF_WINDOW).putInt(window).array();
+    }
+
+    /**
+     * @return the window an ACK advertises, or -1 if it has none (the receiver does no flow control)
+     */
+    public int getWindow() {
+        if(!hasOption(OPT_WINDOW) || (this.length >>> 3) != SIZE_OF_WINDOW) return -1;
+        return readInt(getDataArray(), getDataOffset());
+    }
+
+    /**
+     * Compresses data[offset, offset + length) on its own (raw Deflate, no zlib header),
+     * so every segment can be decompressed independently of lost or reordered ones
+     */
+    public static byte[] compress(byte[] data, int offset, int length) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+
+        byte[] buf = new byte[length + 64];
+        int size = 0;
+        while(!deflater.finished()) {
+            if(size == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+            size += deflater.deflate(buf, size, buf.length - size);
+        }
+        deflater.end();
+        return Arrays.copyOf(buf, size);
+    }
+
+    /**
+     * Reverses compress()
+     * @return the raw data, or null if the payload is not valid Deflate data
+     */
+    public static byte[] decompress(byte[] data) {
+        return decompress(data, 0, data.length);
+    }
+
+    /**
+     * Reverses compress() for the payload at data[offset, offset + length)
+     * @return the raw data, or null if the payload is not valid Deflate data
+     */
+    public static byte[] decompress(byte[] data, int offset, int length) {
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(data, offset, length);
+
+        byte[] buf = new byte[length * 4];
+        int size = 0;
+        try {
+            while(!inflater.finished()) {
+                if(size == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+                int n = inflater.inflate(buf, size, buf.length - size);
+                if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) return null;
+                size += n;
+            }
+        } catch(DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+        return Arrays.copyOf(buf, size);
+    }
+
     public static short calcChecksum(byte[] data) {
+        return calcChecksum(data, 0, data.length);
+    }
+
+    /**
+     * @return checksum of data[offset, offset + length)
+     */
+    public static short calcChecksum(byte[] data, int offset, int length) {
         int sum = 0;
-        int i = 0;
+        int i = offset;
+        int end = offset + length;
         int val = 0;
 
-        while(i <= data.length - 2){
+        while(i <= end - 2){
             val = ((data[i] << 8) & 0xFF00) | ((data[i+1]) & 0xFF);
             sum += val;
 
@@ -110,8 +281,8 @@ public class TCP {
             i+= 2;
         }
 
-        if((data.length % 2) == 1) {
-            sum += ((data[data.length - 1] << 8) & 0xFF00);
+        if((length % 2) == 1) {
+            sum += ((data[end - 1] << 8) & 0xFF00);
             if((sum & 0xFFFF0000) > 0) {
                 sum = sum & 0xFFFF;
                 sum += 1;
@@ -139,7 +310,7 @@ public class TCP {
         bb.putInt(this.acknowledge);
         bb.putLong(this.timeStamp);
         bb.putInt(this.length);
-        bb.putShort((short)0x00);
+        bb.putShort(this.options);
         bb.putShort(this.checksum);
 
         if (this.data != null)
@@ -155,13 +326,68 @@ public class TCP {
         return packet;
     }
 
+    /**
+     * Parses a received datagram without copying its payload, which stays in datagram (taken
+     * from BufferPool) until release() or detach(). The header fields are copied as usual
+     * @param length number of bytes received into datagram
+     * @return null if fewer bytes were received than the header says
+     */
+    public static TCP wrap(byte[] datagram, int length) {
+        if(length < SIZE_OF_HEADER) return null;
+
+        TCP packet = new TCP(readInt(datagram, 0), readInt(datagram, 4), 
+                                ((long)readInt(datagram, 8) << 32) | (readInt(datagram, 12) & 0xFFFFFFFFL), 
+                                readInt(datagram, 16), (short)0, null);
+        packet.options = (short)((datagram[20] << 8) | (datagram[21] & 0xFF));
+        packet.checksum = (short)((datagram[22] << 8) | (datagram[23] & 0xFF));
+        if(SIZE_OF_HEADER + (packet.length >>> 3) > length) return null;
+
+        packet.buffer = datagram;
+        return packet;
+    }
+
+    /**
+     * @return true if the checksum of a wrapped packet matches its content. Zeroes the checksum
+     *         bytes in the datagram, the received value stays in getChecksum()
+     */
+    public boolean checksumMatches() {
+        this.buffer[22] = 0;
+        this.buffer[23] = 0;
+        return calcChecksum(this.buffer, 0, SIZE_OF_HEADER + (this.length >>> 3)) == this.checksum;
+    }
+
+    /**
+     * Copies the payload out of the datagram and releases it, for packets that are kept
+     * after the one that received them was handled (see Fec)
+     * @return this
+     */
+    public TCP detach() {
+        getData();
+        release();
+        return this;
+    }
+
+    /**
+     * Hands the datagram of a wrapped packet back to BufferPool. Its payload is gone
+     * afterwards, unless getData() or detach() copied it
+     */
+    public void release() {
+        if(this.buffer == null) return;
+        BufferPool.release(this.buffer);
+        this.buffer = null;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] << 24) | ((b[i + 1] & 0xFF) << 16) | ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+    }
+
     public TCP deserialize(byte[] packet, int offset, int length) {
         ByteBuffer bb = ByteBuffer.wrap(packet, offset, length);
         this.sequenceNum = bb.getInt();
         this.acknowledge = bb.getInt();
         this.timeStamp = bb.getLong();
         this.length = bb.getInt();
-        bb.getShort(); //gets rid of 0 padding 
+        this.options = bb.getShort();
         this.checksum = bb.getShort();
 
         this.data = new byte[this.length >>> 3];
@@ -191,6 +417,7 @@ public class TCP {
                                 (acknowledge == other.acknowledge) &&
                                 (timeStamp == other.timeStamp) &&
                                 (length == other.length) &&
+                                (options == other.options) &&
                                 (checksum == other.checksum);
 
         boolean dataMatching = true;
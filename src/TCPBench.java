@@ -0,0 +1,488 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Small benchmarks for the TCP-over-UDP endpoints.
+ * Run with: make bench (send path), make bench-recv (receive path), make bench-fec (goodput under loss)
+ * make bench-small (small file transfers with and without fast open)
+ * make bench-scale (many concurrent connections in one JVM)
+ * or make bench-sim (simulated transfers under loss, on virtual time)
+ *
+ * @author Prasoon Tandon
+ * @author John Lee
+ */
+public class TCPBench {
+
+    private static final int WARMUP_PACKETS = 50000;
+    private static final int MEASURED_PACKETS = 200000;
+
+    public static void main(String[] args) throws Exception {
+        String mode = (args.length > 0) ? args[0] : "send";
+
+        if(mode.equals("fec")) {
+            //fec [file] [mtu] [sws] [loss rate] [fec block] [runs]
+            String fileName = (args.length > 1) ? args[1] : "tFiles/large.txt";
+            int mtu = (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+            int sws = (args.length > 3) ? Integer.parseInt(args[3]) : 8;
+            double lossRate = (args.length > 4) ? Double.parseDouble(args[4]) : 0.05; //Same as the vnet Router
+            int fecBlockSize = (args.length > 5) ? Integer.parseInt(args[5]) : 4;
+            int runs = (args.length > 6) ? Integer.parseInt(args[6]) : 3;
+            benchFec(fileName, mtu, sws, lossRate, fecBlockSize, runs);
+        } else if(mode.equals("small")) {
+            //small [file] [runs]
+            String fileName = (args.length > 1) ? args[1] : "tFiles/small.txt";
+            int runs = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+            benchSmallFiles(fileName, runs);
+        } else if(mode.equals("recv")) {
+            //recv [mtu]
+            int mtu = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+            benchReceivePath(mtu);
+        } else if(mode.equals("sim")) {
+            //sim [KB] [mtu] [sws] [loss rate] [runs]
+            int kilobytes = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+            int mtu = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+            int sws = (args.length > 3) ? Integer.parseInt(args[3]) : 8;
+            double lossRate = (args.length > 4) ? Double.parseDouble(args[4]) : 0.05;
+            int runs = (args.length > 5) ? Integer.parseInt(args[5]) : 2000;
+            benchSimulation(kilobytes * 1024, mtu, sws, lossRate, runs);
+        } else if(mode.equals("scale")) {
+            //scale [max connections] [KB per connection]
+            int maxConnections = (args.length > 1) ? Integer.parseInt(args[1]) : 128;
+            int kilobytes = (args.length > 2) ? Integer.parseInt(args[2]) : 256;
+            benchScaling(maxConnections, kilobytes * 1024);
+        } else {
+            //send [mtu]
+            int mtu = (args.length > 1) ? Integer.parseInt(args[1]) : 10; //Worst case from the Makefile sen target
+            benchSendPath(mtu);
+        }
+    }
+
+    /**
+     * Compares the per-packet cost of the old sendTCP() path (resolve the remote
+     * host and build a new DatagramPacket for every segment) with the current one
+     * (write to a DatagramChannel connected once at handshake time).
+     */
+    public static void benchSendPath(int mtu) throws IOException {
+        DatagramSocket drain = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        Thread drainThread = startDrain(drain, mtu);
+
+        String remoteIP = "localhost";
+        int remotePort = drain.getLocalPort();
+        TCP packet = new TCP(1, 0, 0, (mtu << 3) + TCP.ACK_FLAG, (short)0, new byte[mtu]);
+
+        //Before: InetAddress.getByName() + new DatagramPacket per segment
+        DatagramSocket socket = new DatagramSocket();
+        for(int i = 0; i < WARMUP_PACKETS; i++) sendResolving(socket, packet, remoteIP, remotePort);
+        long start = System.nanoTime();
+        for(int i = 0; i < MEASURED_PACKETS; i++) sendResolving(socket, packet, remoteIP, remotePort);
+        double before = (System.nanoTime() - start) / (double)MEASURED_PACKETS;
+        socket.close();
+
+        //After: channel connected to the resolved peer once
+        DatagramChannel channel = DatagramChannel.open();
+        channel.connect(new InetSocketAddress(InetAddress.getByName(remoteIP), remotePort));
+        for(int i = 0; i < WARMUP_PACKETS; i++) sendConnected(channel, packet);
+        start = System.nanoTime();
+        for(int i = 0; i < MEASURED_PACKETS; i++) sendConnected(channel, packet);
+        double after = (System.nanoTime() - start) / (double)MEASURED_PACKETS;
+        channel.close();
+
+        drain.close();
+        try { drainThread.join(); } catch(InterruptedException e) {}
+
+        System.out.println(String.format("sendTCP path (mtu=%d, %d packets):\n" +
+                                        "  resolve + new DatagramPacket: %8.1f ns/packet\n" +
+                                        "  connected DatagramChannel:    %8.1f ns/packet (%.2fx)",
+                                        mtu, MEASURED_PACKETS, before, after, before / after));
+    }
+
+    private static void sendResolving(DatagramSocket socket, TCP packet, String remoteIP, int remotePort) throws IOException {
+        packet.setTimeStamp(System.nanoTime()).resetChecksum();
+        byte[] serialized = packet.serialize();
+        DatagramPacket datagramPacket = new DatagramPacket(serialized, serialized.length,
+                                    InetAddress.getByName(remoteIP), remotePort);
+        socket.send(datagramPacket);
+    }
+
+    private static void sendConnected(DatagramChannel channel, TCP packet) throws IOException {
+        packet.setTimeStamp(System.nanoTime()).resetChecksum();
+        channel.write(ByteBuffer.wrap(packet.serialize()));
+    }
+
+    /**
+     * Keeps reading from the socket so the benchmark never fills the receive buffer
+     * or triggers ICMP port unreachable errors. Stops once the socket is closed.
+     */
+    private static Thread startDrain(DatagramSocket drain, int mtu) {
+        Thread drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[mtu + TCP.SIZE_OF_HEADER];
+                DatagramPacket p = new DatagramPacket(buf, buf.length);
+                while(!drain.isClosed()) {
+                    try { drain.receive(p); } catch(IOException e) { return; }
+                }
+            }
+        });
+        drainThread.setDaemon(true);
+        drainThread.start();
+        return drainThread;
+    }
+
+    /**
+     * Compares the per-packet cost of the old receiveTCP() path (new buffer and DatagramPacket
+     * for every packet, payload copied by deserialize() and the checksum checked by serializing
+     * the packet again) with the current one (pooled buffer parsed in place, see BufferPool).
+     * Allocation is what the receiving thread allocated as counted by the JVM, i.e. the
+     * young-gen garbage a receiver produces per packet
+     */
+    public static void benchReceivePath(int mtu) throws IOException {
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        socket.setSoTimeout(1000);
+        AtomicBoolean done = new AtomicBoolean();
+        Thread blastThread = startBlast(socket.getLocalPort(), mtu, done);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long self = Thread.currentThread().getId();
+
+        //Before: new byte[] + new DatagramPacket + deserialize() + checksum by serialize()
+        receiveAllocating(socket, mtu, WARMUP_PACKETS);
+        long allocated = threads.getThreadAllocatedBytes(self);
+        long start = System.nanoTime();
+        receiveAllocating(socket, mtu, MEASURED_PACKETS);
+        double beforeTime = (System.nanoTime() - start) / (double)MEASURED_PACKETS;
+        double beforeBytes = (threads.getThreadAllocatedBytes(self) - allocated) / (double)MEASURED_PACKETS;
+
+        //After: pooled buffer, reused DatagramPacket, TCP.wrap()
+        DatagramPacket datagram = new DatagramPacket(new byte[0], 0);
+        receivePooled(socket, datagram, mtu, WARMUP_PACKETS);
+        allocated = threads.getThreadAllocatedBytes(self);
+        start = System.nanoTime();
+        receivePooled(socket, datagram, mtu, MEASURED_PACKETS);
+        double afterTime = (System.nanoTime() - start) / (double)MEASURED_PACKETS;
+        double afterBytes = (threads.getThreadAllocatedBytes(self) - allocated) / (double)MEASURED_PACKETS;
+
+        done.set(true);
+        socket.close();
+        try { blastThread.join(); } catch(InterruptedException e) {}
+
+        System.out.println(String.format("receiveTCP path (mtu=%d, %d packets):\n" +
+                                        "  new buffer + deserialize: %8.1f ns/packet, %7.1f bytes/packet (%6.1f MB/s allocated)\n" +
+                                        "  pooled buffer + wrap:     %8.1f ns/packet, %7.1f bytes/packet (%6.1f MB/s allocated)",
+                                        mtu, MEASURED_PACKETS, beforeTime, beforeBytes, beforeBytes / beforeTime * 1e+3,
+                                        afterTime, afterBytes, afterBytes / afterTime * 1e+3));
+    }
+
+    private static void receiveAllocating(DatagramSocket socket, int mtu, int count) throws IOException {
+        for(int i = 0; i < count; i++) {
+            byte[] data = new byte[mtu + TCP.SIZE_OF_HEADER];
+            socket.receive(new DatagramPacket(data, data.length));
+
+            TCP packet = new TCP().deserialize(data, 0, data.length);
+            short savedChecksum = packet.getChecksum();
+            byte[] tempPacket = packet.resetChecksum().serialize();
+            packet.deserialize(tempPacket, 0, tempPacket.length);
+            if(savedChecksum != packet.getChecksum()) throw new IOException("Corrupted benchmark packet");
+        }
+    }
+
+    private static void receivePooled(DatagramSocket socket, DatagramPacket datagram, int mtu, int count) throws IOException {
+        for(int i = 0; i < count; i++) {
+            byte[] data = BufferPool.acquire(mtu + TCP.SIZE_OF_HEADER);
+            datagram.setData(data);
+            socket.receive(datagram);
+
+            TCP packet = TCP.wrap(data, datagram.getLength());
+            if(packet == null || !packet.checksumMatches()) throw new IOException("Corrupted benchmark packet");
+            packet.release();
+        }
+    }
+
+    /**
+     * Keeps sending full data segments to port until done is set
+     */
+    private static Thread startBlast(int port, int mtu, AtomicBoolean done) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        ByteBuffer packet = ByteBuffer.wrap(new TCP(1, 0, 0, (mtu << 3) + TCP.ACK_FLAG, (short)0, new byte[mtu]).serialize());
+
+        Thread blastThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (DatagramChannel c = channel) {
+                    while(!done.get()) {
+                        packet.rewind();
+                        c.write(packet);
+                    }
+                } catch(IOException e) {
+                    return;
+                }
+            }
+        });
+        blastThread.setDaemon(true);
+        blastThread.start();
+        return blastThread;
+    }
+
+    /**
+     * Compares goodput (file bytes over the time from first data segment to last ACK)
+     * of plain ARQ against FEC, with every datagram in either direction dropped with
+     * probability lossRate by a relay between the two endpoints
+     */
+    public static void benchFec(String fileName, int mtu, int sws, double lossRate, int fecBlockSize, int runs) 
+                                throws IOException {
+        System.out.println(String.format("Goodput of %s (mtu=%d, sws=%d, loss=%.0f%%, %d runs each):",
+                                        fileName, mtu, sws, lossRate * 100, runs));
+
+        for(int fec : new int[] {0, fecBlockSize}) {
+            double totalGoodput = 0;
+            int recovered = 0;
+            for(int r = 0; r < runs; r++) {
+                final int k = fec;
+                TransferResult result = transferThroughRelay(fileName, mtu, sws, lossRate, r, sender -> sender.setFec(k));
+                totalGoodput += result.goodput;
+                recovered += result.recovered;
+            }
+            System.out.println(String.format("  %-12s %8.1f KB/s, %d segments recovered without retransmission",
+                                            (fec == 0) ? "ARQ:" : "FEC K=" + fec + ":", totalGoodput / runs, recovered));
+        }
+    }
+
+    /**
+     * Small files (tFiles/small.txt is 196 bytes) are dominated by connection setup, so
+     * this compares latency until the data is acknowledged, and complete transfers per
+     * second (including teardown), with and without fast open
+     */
+    public static void benchSmallFiles(String fileName, int runs) throws IOException {
+        int mtu = 1000;
+        int sws = 4;
+        System.out.println(String.format("Transfers of %s (mtu=%d, sws=%d, %d runs each):", fileName, mtu, sws, runs));
+
+        for(boolean fastOpen : new boolean[] {false, true}) {
+            double totalDelivery = 0;
+            double totalTime = 0;
+            for(int r = 0; r < runs; r++) {
+                TransferResult result = transferThroughRelay(fileName, mtu, sws, 0, r, sender -> sender.setFastOpen(fastOpen));
+                totalDelivery += result.deliveryTime;
+                totalTime += result.totalTime;
+            }
+            System.out.println(String.format("  %-12s %9.2f ms until data acknowledged, %6.3f transfers/s",
+                                            fastOpen ? "fast open:" : "handshake:", totalDelivery / runs / 1e+6, runs / (totalTime / 1e+9)));
+        }
+    }
+
+    /**
+     * Runs many transfers through a Simulator (10 ms one-way delay, up to 2 ms jitter, a new
+     * seed for every run) with plain ARQ and with FEC, and reports how many complete per second
+     * of real time next to their mean completion time in virtual time. Run it twice to see that
+     * the virtual times are exactly the same
+     */
+    public static void benchSimulation(int numBytes, int mtu, int sws, double lossRate, int runs) {
+        byte[] data = new byte[numBytes];
+        new Random(1).nextBytes(data);
+        System.out.println(String.format("Simulated transfers of %d KB (mtu=%d, sws=%d, loss=%.0f%%, %d runs each):",
+                                        numBytes / 1024, mtu, sws, lossRate * 100, runs));
+
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for(int fec : new int[] {0, 4}) {
+                long start = System.nanoTime();
+                double totalVirtual = 0;
+                long totalDatagrams = 0;
+                int failed = 0;
+                for(int r = 0; r < runs; r++) {
+                    Simulator sim = new Simulator(r, lossRate, 10000000, 2000000);
+                    byte[] received = sim.transfer(data, mtu, sws, sender -> sender.setFec(fec));
+                    if(received == null || !Arrays.equals(data, received)) failed++;
+                    totalVirtual += sim.nanoTime();
+                    totalDatagrams += sim.getNumDatagramsSent();
+                }
+                double seconds = (System.nanoTime() - start) / 1e+9;
+                stdout.println(String.format("  %-8s %8.0f transfers/s, %9.2f ms virtual per transfer, %6.1f datagrams, %d failed",
+                                            (fec == 0) ? "ARQ:" : "FEC K=" + fec + ":", runs / seconds, totalVirtual / runs / 1e+6,
+                                            totalDatagrams / (double)runs, failed));
+            }
+        } finally {
+            System.setOut(stdout);
+        }
+    }
+
+    /**
+     * Runs 1, 4, 16, ... concurrent in-memory transfers over loopback through ReliableUdpSocket
+     * and reports aggregate throughput, the peak number of live threads and the peak heap use
+     */
+    public static void benchScaling(int maxConnections, int bytesPerConnection) throws Exception {
+        int mtu = 1000;
+        int sws = 16;
+        byte[] data = new byte[bytesPerConnection];
+        new Random(1).nextBytes(data);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        System.out.println(String.format("Concurrent transfers of %d KB each (mtu=%d, sws=%d):", bytesPerConnection / 1024, mtu, sws));
+        for(int n = 1; n <= maxConnections; n *= 4) {
+            System.gc();
+            threads.resetPeakThreadCount();
+            for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) pool.resetPeakUsage();
+            int baseThreads = threads.getThreadCount();
+
+            PrintStream stdout = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            long start = System.nanoTime();
+            long received = 0;
+            try {
+                List<Future<Long>> receivers = new ArrayList<>();
+                List<Future<Boolean>> senders = new ArrayList<>();
+                for(int i = 0; i < n; i++) {
+                    ReliableUdpServerSocket server = new ReliableUdpServerSocket(0, mtu, sws);
+                    receivers.add(Workers.start(() -> {
+                        try (ReliableUdpSocket socket = server.accept(); InputStream in = socket.getInputStream()) {
+                            return in.transferTo(OutputStream.nullOutputStream());
+                        }
+                    }));
+                    senders.add(Workers.start(() -> {
+                        ReliableUdpSocket socket = new ReliableUdpSocket(0, mtu, sws);
+                        socket.connect("localhost", server.getLocalPort());
+                        try (OutputStream out = socket.getOutputStream()) {
+                            out.write(data);
+                        }
+                        socket.close();
+                        return true;
+                    }));
+                }
+                for(Future<Boolean> sender : senders) Workers.join(sender);
+                for(Future<Long> receiver : receivers) {
+                    Long count = Workers.join(receiver);
+                    if(count != null) received += count;
+                }
+            } finally {
+                System.setOut(stdout);
+            }
+            double seconds = (System.nanoTime() - start) / 1e+9;
+
+            long peakHeap = 0;
+            for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+                if(pool.getType() == MemoryType.HEAP) peakHeap += pool.getPeakUsage().getUsed();
+
+            System.out.println(String.format("  %4d connections: %8.1f KB/s, %5d threads at peak (%d before), %6.1f MB peak heap%s",
+                                            n, received / 1024.0 / seconds, threads.getPeakThreadCount(), baseThreads,
+                                            peakHeap / 1e+6, (received == (long)n * data.length) ? "" : "  WARNING: data missing"));
+        }
+    }
+
+    private static class TransferResult {
+        double goodput; //KB/s
+        int recovered;
+        long deliveryTime; //ns from starting the sender until all data was acknowledged
+        long totalTime; //ns for the whole transfer including teardown
+    }
+
+    /** Configures a sender before a benchmark transfer*/
+    private interface SenderSetup {
+        void apply(TCPsender sender);
+    }
+
+    /**
+     * Runs one in-process transfer through a lossy relay. The endpoints' per-packet
+     * output is discarded while it runs
+     */
+    private static TransferResult transferThroughRelay(String fileName, int mtu, int sws, double lossRate, long seed,
+                                                        SenderSetup setup) throws IOException {
+        int receiverPort = freePort();
+        int senderPort = freePort();
+        DatagramSocket relay = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        File output = File.createTempFile("TCPBench", ".out");
+        output.deleteOnExit();
+
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            TCPreceiver receiver = new TCPreceiver(receiverPort, mtu, sws, output.getPath());
+            Thread receiverThread = new Thread(() -> receiver.run());
+            receiverThread.start();
+            Thread relayThread = startRelay(relay, receiverPort, lossRate, new Random(seed));
+
+            long start = System.nanoTime();
+            TCPsender sender = new TCPsender(senderPort, "localhost", relay.getLocalPort(), fileName, mtu, sws);
+            setup.apply(sender);
+            sender.run();
+
+            try { receiverThread.join(); } catch(InterruptedException e) { }
+            long totalTime = System.nanoTime() - start;
+            relay.close();
+            try { relayThread.join(); } catch(InterruptedException e) { }
+
+            if(Files.mismatch(new File(fileName).toPath(), output.toPath()) != -1)
+                stdout.println("  WARNING: output of run " + seed + " differs from " + fileName);
+
+            TransferResult result = new TransferResult();
+            result.goodput = (sender.getNumBytes() / 1024.0) / (sender.getTransferTime() / 1e+9);
+            result.recovered = receiver.getNumSegmentsRecovered();
+            result.deliveryTime = sender.getDeliveryTime();
+            result.totalTime = totalTime;
+            return result;
+        } finally {
+            System.setOut(stdout);
+        }
+    }
+
+    /**
+     * Forwards datagrams between the sender (learnt from the first datagram not coming
+     * from the receiver) and the receiver, dropping each one with probability lossRate
+     */
+    private static Thread startRelay(DatagramSocket relay, int receiverPort, double lossRate, Random random) {
+        Thread relayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SocketAddress receiverAddr = new InetSocketAddress(InetAddress.getLoopbackAddress(), receiverPort);
+                SocketAddress senderAddr = null;
+                byte[] buf = new byte[64 * 1024];
+                DatagramPacket p = new DatagramPacket(buf, buf.length);
+
+                while(!relay.isClosed()) {
+                    try {
+                        p.setLength(buf.length);
+                        relay.receive(p);
+                        boolean fromReceiver = p.getPort() == receiverPort;
+                        if(!fromReceiver) senderAddr = p.getSocketAddress();
+                        if(random.nextDouble() < lossRate || (fromReceiver && senderAddr == null)) continue;
+
+                        p.setSocketAddress(fromReceiver ? senderAddr : receiverAddr);
+                        relay.send(p);
+                    } catch(IOException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        relayThread.setDaemon(true);
+        relayThread.start();
+        return relayThread;
+    }
+
+    private static int freePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
\ No newline at end of file
@@ -1,4 +1,24 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.nio.file.Files;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32C;
 
 public class TCPTests {
 
@@ -7,7 +27,10 @@ public class TCPTests {
     }
 
     public static boolean runTCPTests() {
-        return runCalcChecksumTests() && runSerializeTests() && runDeserializeTests();
+        return runCalcChecksumTests() && runSerializeTests() && runDeserializeTests() && 
+                runOptionsTests() && runCheckpointTests() && runContentHashTests() &&
+                runCompressionTests() && runFecTests() && runReceiveBufferTests() && runSpscQueueTests() &&
+                runSimulatorTests() && runSocketTests() && runMultiStreamTests();
     }
 
     public static boolean runCalcChecksumTests() {
@@ -125,7 +148,849 @@ public class TCPTests {
             }
         }
 
+        //Test Case 2: A pooled datagram is parsed in place, its payload is only copied on request
+        {
+            TCP sent = new TCP(7, 3, -41651L, (5 << 3) + TCP.ACK_FLAG, (short)0, "hello".getBytes()).setOptions(TCP.OPT_COMPRESSED);
+            byte[] serialized = sent.serialize();
+            byte[] datagram = BufferPool.acquire(serialized.length);
+            System.arraycopy(serialized, 0, datagram, 0, serialized.length);
+
+            TCP actual = TCP.wrap(datagram, serialized.length);
+            boolean inPlace = (actual != null) && actual.getDataArray() == datagram && actual.getDataOffset() == TCP.SIZE_OF_HEADER;
+            if(!inPlace || !actual.checksumMatches() || actual.getTimeStamp() != -41651L ||
+                    actual.getOptions() != TCP.OPT_COMPRESSED || !Arrays.equals(actual.detach().getData(), sent.getData())) {
+                System.out.println("Test 2 for deserialize() failed! Sent: " + sent + "\nActual: " + actual);
+                passed = false;
+            }
+        }
+
+        //Test Case 3: A corrupted or truncated datagram is caught
+        {
+            byte[] serialized = new TCP(7, 3, 0, (5 << 3) + TCP.ACK_FLAG, (short)0, "hello".getBytes()).serialize();
+            serialized[TCP.SIZE_OF_HEADER] ^= 1;
+            TCP corrupted = TCP.wrap(serialized, serialized.length);
+            if(corrupted == null || corrupted.checksumMatches() || TCP.wrap(serialized, serialized.length - 1) != null) {
+                System.out.println("Test 3 for deserialize() failed! Accepted a corrupted or truncated datagram");
+                passed = false;
+            }
+        }
+
+        return passed;
+    }
+
+    public static boolean runOptionsTests() {
+        boolean passed = true;
+
+        //Test Case 1: Options live in the 16 bits after the length and survive a round trip
+        {
+            TCP testPacket = new TCP(0, 0, 0, TCP.SYN_FLAG, (short)0, null).setOptions(TCP.OPT_RESUME);
+            byte[] serialized = testPacket.serialize();
+
+            if(serialized[20] != 0x00 || serialized[21] != 0x01) {
+                System.out.println("Test 1 for options failed! expected bytes 20-21 to be 0x0001, result: " + 
+                                        serialized[20] + " " + serialized[21]);
+                passed = false;
+            }
+
+            TCP actual = (new TCP()).deserialize(serialized, 0, serialized.length);
+            if(!actual.hasOption(TCP.OPT_RESUME) || !Arrays.equals(serialized, actual.serialize())) {
+                System.out.println("Test 1 for options failed! Expected: " + testPacket + "\nActual: " + actual);
+                passed = false;
+            }
+        }
+
+        return passed;
+    }
+
+    public static boolean runCheckpointTests() {
+        boolean passed = true;
+
+        //Test Case 1: Ranges survive a save and load, and an empty checkpoint deletes the file
+        {
+            try {
+                File output = File.createTempFile("TCPTests", ".txt");
+                output.deleteOnExit();
+
+                Checkpoint checkpoint = Checkpoint.create(output.getPath());
+                checkpoint.update(0, 2571);
+                checkpoint.update(3700, 3701);
+                checkpoint.save();
+
+                Checkpoint loaded = Checkpoint.load(output.getPath());
+                if(loaded.getNext(0) != 2571 || loaded.getNext(3700) != 3701 || loaded.getNext(7400) != 7401) {
+                    System.out.println("Test 1 for Checkpoint failed! Loaded: " + loaded);
+                    passed = false;
+                }
+
+                loaded.remove(0);
+                loaded.remove(3700);
+                loaded.save();
+                if(new File(output.getPath() + Checkpoint.SUFFIX).exists()) {
+                    System.out.println("Test 1 for Checkpoint failed! Empty checkpoint was not deleted");
+                    passed = false;
+                }
+            } catch(IOException e) {
+                System.out.println("Test 1 for Checkpoint failed! " + e);
+                passed = false;
+            }
+        }
+
+        //Test Case 2: Resuming into an output file left by a longer transfer ends at the new length
+        {
+            PrintStream stdout = System.out;
+            try {
+                File input = File.createTempFile("TCPTests", ".in");
+                File output = File.createTempFile("TCPTests", ".out");
+                input.deleteOnExit();
+                output.deleteOnExit();
+                byte[] data = new byte[3000];
+                new Random(28).nextBytes(data);
+                Files.write(input.toPath(), data);
+                Files.write(output.toPath(), new byte[5000]);
+
+                int port;
+                try (DatagramSocket free = new DatagramSocket(0)) { port = free.getLocalPort(); }
+                System.setOut(new PrintStream(OutputStream.nullOutputStream())); //Both ends log every packet
+                TCPreceiver receiver = new TCPreceiver(port, 1000, 8, output.getPath());
+                receiver.setResume(true);
+                boolean[] received = new boolean[1];
+                Thread receiverThread = new Thread(() -> received[0] = receiver.run());
+                receiverThread.start();
+
+                TCPsender sender = new TCPsender(0, "localhost", port, input.getPath(), 1000, 8);
+                sender.setResume(true);
+                boolean sent = sender.run();
+                receiverThread.join();
+                System.setOut(stdout);
+
+                byte[] result = Files.readAllBytes(output.toPath());
+                if(!sent || !received[0] || !Arrays.equals(data, result)) {
+                    System.out.println("Test 2 for Checkpoint failed! Output has " + result.length + " bytes, expected " + data.length);
+                    passed = false;
+                }
+            } catch(IOException | InterruptedException e) {
+                System.setOut(stdout);
+                System.out.println("Test 2 for Checkpoint failed! " + e);
+                passed = false;
+            }
+        }
+
+        //Test Case 3: A packet that cannot be sent ends only this connection, run() returns instead of exiting
+        {
+            PrintStream stdout = System.out;
+            PrintStream stderr = System.err;
+            ScriptedTransport transport = new ScriptedTransport();
+            transport.failSends = true;
+            transport.add(new TCP(0, 0, 0, TCP.SYN_FLAG, (short)0, null));
+            transport.add(new TCP(1, 0, 0, (100 << 3) + TCP.ACK_FLAG, (short)0, new byte[100]));
+            TCPreceiver receiver = new TCPreceiver(transport, Clock.SYSTEM, 1000, 8, Channels.newChannel(new ByteArrayOutputStream()));
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            System.setErr(new PrintStream(OutputStream.nullOutputStream())); //The failed send prints its stack trace
+            boolean received = receiver.run();
+            System.setOut(stdout);
+            System.setErr(stderr);
+
+            if(received || transport.isOpen() || transport.numSendAttempts != 1) {
+                System.out.println("Test 3 for Checkpoint failed! run() returned " + received + " after " + 
+                                    transport.numSendAttempts + " sends");
+                passed = false;
+            }
+        }
+
+        return passed;
+    }
+
+    public static boolean runContentHashTests() {
+        boolean passed = true;
+
+        //Test Case 1: Hashing segment by segment matches the FIN payload of a one-shot hash
+        {
+            byte[] data = "The quick brown fox jumps over the lazy dog".getBytes();
+            CRC32C whole = new CRC32C();
+            whole.update(data, 0, data.length);
+
+            CRC32C streamed = new CRC32C();
+            for(int i = 0; i < data.length; i += 10)
+                streamed.update(data, i, Math.min(10, data.length - i));
+
+            if(!TCP.hashMatches(TCP.hashToBytes(whole), streamed)) {
+                System.out.println("Test 1 for content hash failed! expected: " + whole.getValue() + " result: " + streamed.getValue());
+                passed = false;
+            }
+        }
+
+        //Test Case 2: A single flipped bit is caught
+        {
+            byte[] data = "The quick brown fox jumps over the lazy dog".getBytes();
+            CRC32C expected = new CRC32C();
+            expected.update(data, 0, data.length);
+
+            data[7] ^= 0x01;
+            CRC32C actual = new CRC32C();
+            actual.update(data, 0, data.length);
+
+            if(TCP.hashMatches(TCP.hashToBytes(expected), actual)) {
+                System.out.println("Test 2 for content hash failed! corrupted data matched");
+                passed = false;
+            }
+        }
+
+        return passed;
+    }
+
+    public static boolean runCompressionTests() {
+        boolean passed = true;
+
+        //Test Case 1: Round trip of a slice of repetitive text, which has to shrink
+        {
+            byte[] data = "abcabcabcabcabcabcabcabcabcabcabcabcabcabcabcabcabcabcabcabc".repeat(10).getBytes();
+            byte[] compressed = TCP.compress(data, 10, 400);
+            byte[] actual = TCP.decompress(compressed);
+
+            if(compressed.length >= 400 || !Arrays.equals(Arrays.copyOfRange(data, 10, 410), actual)) {
+                System.out.println("Test 1 for compression failed! compressed length: " + compressed.length);
+                passed = false;
+            }
+        }
+
+        //Test Case 2: Garbage is rejected instead of throwing
+        {
+            byte[] garbage = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+            if(TCP.decompress(garbage) != null) {
+                System.out.println("Test 2 for compression failed! garbage was decompressed");
+                passed = false;
+            }
+        }
+
+        return passed;
+    }
+
+    public static boolean runFecTests() {
+        boolean passed = true;
+
+        //Build a block of 4 segments covering 31 raw bytes, the third one compressed
+        List<TCP> block = new ArrayList<>();
+        byte[] raw = "aaaaaaaaaaaaaaaaaaaa".getBytes();
+        block.add(new TCP(1, 0, 0, (4 << 3) + TCP.ACK_FLAG, (short)0, "abcd".getBytes()));
+        block.add(new TCP(5, 0, 0, (4 << 3) + TCP.ACK_FLAG, (short)0, "efgh".getBytes()));
+        byte[] compressed = TCP.compress(raw, 0, raw.length);
+        block.add(new TCP(9, 0, 0, (compressed.length << 3) + TCP.ACK_FLAG, (short)0, compressed).setOptions(TCP.OPT_COMPRESSED));
+        block.add(new TCP(29, 0, 0, (3 << 3) + TCP.ACK_FLAG, (short)0, "xyz".getBytes()));
+        int[] rawLengths = {4, 4, raw.length, 3};
+        TCP repair = Fec.buildRepair(block, 31);
+
+        //Test Case 1: Any single lost segment is rebuilt exactly
+        for(int lost = 0; lost < block.size(); lost++) {
+            Fec fec = new Fec();
+            for(int i = 0; i < block.size(); i++)
+                if(i != lost) fec.add(block.get(i), rawLengths[i]);
+
+            TCP actual = fec.recover(repair);
+            TCP expected = block.get(lost);
+            if(actual == null || actual.getSequenceNum() != expected.getSequenceNum() || actual.getOptions() != expected.getOptions() ||
+                    !Arrays.equals(actual.getData(), expected.getData())) {
+                System.out.println("Test 1 for FEC failed for lost segment " + lost + "! Expected: " + expected + "\nActual: " + actual);
+                passed = false;
+            }
+        }
+
+        //Test Case 2: Nothing is rebuilt when two segments are lost
+        {
+            Fec fec = new Fec();
+            fec.add(block.get(0), rawLengths[0]);
+            fec.add(block.get(3), rawLengths[3]);
+            if(fec.recover(repair) != null) {
+                System.out.println("Test 2 for FEC failed! Rebuilt a segment from a block missing two");
+                passed = false;
+            }
+        }
+
+        return passed;
+    }
+
+    public static boolean runReceiveBufferTests() {
+        boolean passed = true;
+        byte[] stream = new byte[100];
+        new Random(7).nextBytes(stream);
+
+        //Test Case 1: Overlapping segments with shifting boundaries arrive out of order, every byte is delivered once
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ReceiveBuffer buffer = new ReceiveBuffer(8, 1); //Small enough to wrap and grow
+            int[][] segments = {{41, 20}, {1, 10}, {31, 15}, {1, 10}, {11, 25}, {61, 40}, {51, 30}};
+            int[] expectedAdded = {20, 10, 10, 0, 20, 40, 0};
+            int[] expectedNext = {1, 11, 11, 11, 61, 101, 101};
+
+            for(int i = 0; i < segments.length; i++) {
+                int sn = segments[i][0];
+                int added = buffer.add(sn, stream, sn - 1, segments[i][1]);
+                boolean delivered = buffer.deliver((seq, buf, off, len) -> {
+                    if(seq - 1 != out.size()) return false;
+                    out.write(buf, off, len);
+                    return true;
+                });
+                if(added != expectedAdded[i] || !delivered || buffer.getNext() != expectedNext[i]) {
+                    System.out.println("Test 1 for ReceiveBuffer failed at segment " + i + "! added: " + added +
+                                        " next: " + buffer.getNext() + " ranges: " + buffer.getNumRanges());
+                    passed = false;
+                }
+            }
+            if(!Arrays.equals(stream, out.toByteArray()) || buffer.getNumRanges() != 0) {
+                System.out.println("Test 1 for ReceiveBuffer failed! Delivered data does not match");
+                passed = false;
+            }
+        }
+
+        //Test Case 2: Data too far past the ack is dropped, a failed write leaves the ack where it was
+        {
+            ReceiveBuffer buffer = new ReceiveBuffer(8, 1);
+            int added = buffer.add(1 + ReceiveBuffer.MAX_CAPACITY, stream, 0, 10);
+            buffer.add(1, stream, 0, 10);
+            boolean delivered = buffer.deliver((seq, buf, off, len) -> false);
+            if(added != 0 || delivered || buffer.getNext() != 1) {
+                System.out.println("Test 2 for ReceiveBuffer failed! added: " + added + " delivered: " + delivered + " next: " + buffer.getNext());
+                passed = false;
+            }
+        }
+
+        //Test Case 3: A receiver (window 400 past the ack) classifies crafted segments: in order, out of order, duplicate,
+        //beyond the window (dropped unanswered), straddling the window's edge (taken whole) and overlapping delivered data
+        {
+            ScriptedTransport transport = new ScriptedTransport();
+            transport.add(new TCP(0, 0, 0, TCP.SYN_FLAG, (short)0, null));
+            int[][] segments = {{1, 100}, {201, 100}, {1, 100}, {501, 100}, {451, 100}, {51, 100}, {151, 50}, {301, 150}};
+            int[] expectedAcks = {101, 101, 101, 101, 151, 301, 551}; //Nothing for the one beyond the window
+            for(int[] segment : segments) {
+                byte[] data = new byte[segment[1]];
+                for(int i = 0; i < data.length; i++) data[i] = (byte)(segment[0] + i); //Byte n of the stream is (byte)n
+                transport.add(new TCP(segment[0], 1, 0, (data.length << 3) + TCP.ACK_FLAG, (short)0, data));
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            TCPreceiver receiver = new TCPreceiver(transport, Clock.SYSTEM, 100, 4, Channels.newChannel(out));
+            PrintStream stdout = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            receiver.run(); //Gives up once the script ran out, there is no FIN
+            System.setOut(stdout);
+
+            int[] acks = new int[transport.sent.size() - 1];
+            for(int i = 0; i < acks.length; i++) acks[i] = transport.sent.get(i + 1).getAcknowledge();
+            byte[] expected = new byte[550];
+            for(int i = 0; i < expected.length; i++) expected[i] = (byte)(i + 1);
+            if(!Arrays.equals(expectedAcks, acks) || !Arrays.equals(expected, out.toByteArray())) {
+                System.out.println("Test 3 for ReceiveBuffer failed! ACKs: " + Arrays.toString(acks) + ", delivered " + out.size() + 
+                                    " bytes" + (Arrays.equals(expected, out.toByteArray()) ? "" : ", or different ones"));
+                passed = false;
+            }
+        }
+
         return passed;
     }
 
-}
\ No newline at end of file
+    public static boolean runSpscQueueTests() {
+        boolean passed = true;
+
+        //Test Case 1: Capacity is rounded up to a power of two, elements come out in order
+        {
+            SpscQueue<Integer> queue = new SpscQueue<>(3);
+            int offered = 0;
+            while(queue.offer(offered)) offered++;
+            Integer first = queue.peek();
+            boolean inOrder = first != null && first == 0;
+            for(int i = 0; i < offered; i++) inOrder &= queue.poll() == i;
+            if(offered != 4 || !inOrder || !queue.isEmpty() || queue.poll() != null) {
+                System.out.println("Test 1 for SpscQueue failed! Offered " + offered + ", in order: " + inOrder);
+                passed = false;
+            }
+        }
+
+        //Test Case 2: A producer and a consumer thread hand over many elements without losing or reordering any
+        {
+            int count = 200000;
+            SpscQueue<Integer> queue = new SpscQueue<>(16);
+            Thread producer = new Thread(() -> {
+                for(int i = 0; i < count; i++) while(!queue.offer(i)) Thread.onSpinWait();
+            });
+            producer.start();
+
+            int expected = 0;
+            while(expected < count) {
+                Integer next = queue.poll();
+                if(next == null) { Thread.onSpinWait(); continue; }
+                if(next != expected) break;
+                expected++;
+            }
+            try { producer.join(); } catch(InterruptedException e) { }
+            if(expected != count) {
+                System.out.println("Test 2 for SpscQueue failed! Got element " + expected + " out of order");
+                passed = false;
+            }
+        }
+
+        return passed;
+    }
+
+    public static boolean runSimulatorTests() {
+        boolean passed = true;
+        PrintStream stdout = System.out;
+        byte[] data = new byte[50 * 1000];
+        new Random(7).nextBytes(data);
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); //Both ends log every packet
+
+        //Test Case 1: A transfer over 10% loss arrives intact, and the same seed replays it exactly
+        {
+            Simulator first = new Simulator(1, 0.1, 5000000, 2000000);
+            byte[] received = first.transfer(data, 1000, 8, null);
+            Simulator second = new Simulator(1, 0.1, 5000000, 2000000);
+            second.transfer(data, 1000, 8, null);
+            if(!Arrays.equals(data, received) || first.getNumDatagramsLost() == 0 || first.nanoTime() != second.nanoTime() ||
+                        first.getNumDatagramsSent() != second.getNumDatagramsSent()) {
+                stdout.println("Test 1 for Simulator failed! Lost " + first.getNumDatagramsLost() + ", finished at " + 
+                                first.nanoTime() + " and " + second.nanoTime());
+                passed = false;
+            }
+        }
+
+        //Test Case 2: Same with compression and FEC
+        {
+            byte[] text = new byte[data.length];
+            for(int i = 0; i < text.length; i++) text[i] = (byte)('a' + (i * 7 + i / 100) % 26);
+            Simulator sim = new Simulator(2, 0.1, 5000000, 2000000);
+            byte[] received = sim.transfer(text, 1000, 8, sender -> { sender.setCompress(true); sender.setFec(4); });
+            if(!Arrays.equals(text, received)) {
+                stdout.println("Test 2 for Simulator failed! Received " + ((received == null) ? 0 : received.length) + " bytes, or different ones");
+                passed = false;
+            }
+        }
+
+        //Test Case 3: With every datagram lost both ends give up, within the time limit
+        {
+            Simulator sim = new Simulator(3, 1.0, 5000000, 0);
+            byte[] received = sim.transfer(data, 1000, 8, null);
+            if(received != null || sim.nanoTime() > Simulator.DEFAULT_TIME_LIMIT) {
+                stdout.println("Test 3 for Simulator failed! Transfer did not fail, or ran until " + sim.nanoTime());
+                passed = false;
+            }
+        }
+
+        //Test Case 4: A stream of thousands of segments, long enough for the sender to compact its window, arrives intact
+        {
+            byte[] longData = new byte[5000 * 1000];
+            new Random(34).nextBytes(longData);
+            Simulator sim = new Simulator(4, 0.05, 5000000, 2000000);
+            byte[] received = sim.transfer(longData, 1000, 16, null);
+            if(!Arrays.equals(longData, received)) {
+                stdout.println("Test 4 for Simulator failed! Received " + ((received == null) ? 0 : received.length) + " bytes, or different ones");
+                passed = false;
+            }
+        }
+
+        //Test Case 5: A reader that stalls for much longer than the sender would retransmit makes it wait (flow
+        //control), and the receiver never buffers much more than it has room for
+        {
+            byte[] longData = new byte[300 * 1000];
+            new Random(35).nextBytes(longData);
+            int capacity = 64 * 1000;
+            Simulator sim = new Simulator(5, 0.05, 5000000, 2000000);
+            Simulator.Endpoint senderEnd = sim.newEndpoint();
+            Simulator.Endpoint receiverEnd = sim.newEndpoint();
+            sim.connect(senderEnd, receiverEnd);
+            StreamBuffer input = new StreamBuffer(capacity);
+            TCPreceiver receiver = new TCPreceiver(receiverEnd, sim, 1000, 16, input);
+            TCPsender sender = new TCPsender(senderEnd.getLocalPort(), "simulated", receiverEnd.getLocalPort(),
+                                            Channels.newChannel(new ByteArrayInputStream(longData)), 1000, 16);
+            sender.useTransport(senderEnd, sim);
+
+            //Nothing is read for the first 30 s, then whatever is there every 30 s
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            int[] mostBuffered = new int[1];
+            for(int i = 1; i <= 15; i++)
+                sim.at(i * 30000000000L, () -> mostBuffered[0] = Math.max(mostBuffered[0], drain(input, capacity, received)));
+            sim.spawn(receiverEnd, receiver::run);
+            sim.spawn(senderEnd, sender::run);
+            boolean success = sim.run();
+            drain(input, capacity, received);
+
+            if(!success || !Arrays.equals(longData, received.toByteArray()) || mostBuffered[0] > capacity + 1000) {
+                stdout.println("Test 5 for Simulator failed! " + (success ? "Received " + received.size() + " bytes, up to " + 
+                                mostBuffered[0] + " at a time" : "Transfer failed at " + sim.nanoTime()));
+                passed = false;
+            }
+        }
+
+        //Test Case 6: With fast open, data that fits on the SYN is delivered from there, no segment follows it
+        {
+            byte[] shortData = Arrays.copyOf(data, 700);
+            Simulator sim = new Simulator(6, 0, 5000000, 0);
+            TappedTransport[] tap = new TappedTransport[1];
+            byte[] received = fastOpenTransfer(sim, shortData, false, tap);
+
+            TCP syn = tap[0].received.isEmpty() ? null : tap[0].received.get(0);
+            int numSegments = 0;
+            for(TCP packet : tap[0].received) {
+                if((packet.getLength() & (TCP.SYN_FLAG | TCP.FIN_FLAG)) == 0 && (packet.getLength() >>> 3) > 0) numSegments++;
+            }
+            if(!Arrays.equals(shortData, received) || syn == null || !syn.hasOption(TCP.OPT_FAST_OPEN) || 
+                        (syn.getLength() >>> 3) != shortData.length || numSegments != 0) {
+                stdout.println("Test 6 for Simulator failed! " + (received == null ? "Transfer failed" : "Received " + received.length + 
+                                " bytes, first packet " + syn + ", followed by " + numSegments + " data segments"));
+                passed = false;
+            }
+        }
+
+        //Test Case 7: A receiver that ignores the data on the SYN (the option is stripped on the way) still gets all of it
+        {
+            Simulator sim = new Simulator(7, 0.1, 5000000, 2000000);
+            TappedTransport[] tap = new TappedTransport[1];
+            byte[] received = fastOpenTransfer(sim, Arrays.copyOf(data, 2500), true, tap);
+
+            boolean dataOnSyn = false;
+            for(TCP packet : tap[0].received) {
+                if((packet.getLength() & TCP.SYN_FLAG) == TCP.SYN_FLAG && (packet.getLength() >>> 3) > 0) dataOnSyn = true;
+            }
+            if(!Arrays.equals(Arrays.copyOf(data, 2500), received) || !dataOnSyn) {
+                stdout.println("Test 7 for Simulator failed! " + (received == null ? "Transfer failed" : "Received " + received.length + 
+                                " bytes") + ", data on the SYN: " + dataOnSyn);
+                passed = false;
+            }
+        }
+
+        System.setOut(stdout);
+        return passed;
+    }
+
+    /**
+     * Reads everything input holds into out, without waiting for more
+     * @return number of bytes read
+     */
+    private static int drain(StreamBuffer input, int capacity, ByteArrayOutputStream out) {
+        ByteBuffer buf = ByteBuffer.allocate(capacity);
+        int drained = 0;
+        try {
+            while(input.getFree() < capacity) {
+                buf.clear();
+                int read = input.source().read(buf);
+                if(read < 0) break;
+                out.write(buf.array(), 0, read);
+                drained += read;
+            }
+        } catch(IOException e) {
+            //Closed, so there is nothing left to read
+        }
+        return drained;
+    }
+
+    /**
+     * Sends data with fast open from a TCPsender to a TCPreceiver that gets its datagrams through
+     * tap[0] (stripping OPT_FAST_OPEN from them if stripFastOpen)
+     * @return the data the receiver delivered, or null if either side failed
+     */
+    private static byte[] fastOpenTransfer(Simulator sim, byte[] data, boolean stripFastOpen, TappedTransport[] tap) {
+        Simulator.Endpoint senderEnd = sim.newEndpoint();
+        Simulator.Endpoint receiverEnd = sim.newEndpoint();
+        sim.connect(senderEnd, receiverEnd);
+        tap[0] = new TappedTransport(receiverEnd, stripFastOpen);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TCPreceiver receiver = new TCPreceiver(tap[0], sim, 1000, 8, Channels.newChannel(output));
+        TCPsender sender = new TCPsender(senderEnd.getLocalPort(), "simulated", receiverEnd.getLocalPort(),
+                                        Channels.newChannel(new ByteArrayInputStream(data)), 1000, 8);
+        sender.useTransport(senderEnd, sim);
+        sender.setFastOpen(true);
+
+        sim.spawn(receiverEnd, receiver::run);
+        sim.spawn(senderEnd, sender::run);
+        return sim.run() ? output.toByteArray() : null;
+    }
+
+    public static boolean runSocketTests() {
+        boolean passed = true;
+        PrintStream stdout = System.out;
+
+        //Test Case 1: A stream written in uneven chunks arrives complete and in order
+        try {
+            byte[] data = new byte[300 * 1000];
+            new Random(42).nextBytes(data);
+            System.setOut(new PrintStream(OutputStream.nullOutputStream())); //Both ends log every packet
+            ReliableUdpServerSocket server = new ReliableUdpServerSocket(0, 1000, 16);
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            Thread receiverThread = new Thread(() -> {
+                try (ReliableUdpSocket socket = server.accept(); InputStream in = socket.getInputStream()) {
+                    in.transferTo(received);
+                } catch(IOException e) {
+                    received.reset();
+                }
+            });
+            receiverThread.start();
+
+            ReliableUdpSocket socket = new ReliableUdpSocket(0, 1000, 16);
+            socket.connect("localhost", server.getLocalPort());
+            try (OutputStream out = socket.getOutputStream()) {
+                for(int position = 0, chunk = 1; position < data.length; position += chunk, chunk = chunk * 3 % 7919)
+                    out.write(data, position, Math.min(chunk, data.length - position));
+            }
+            socket.close();
+            receiverThread.join();
+            System.setOut(stdout);
+
+            if(!Arrays.equals(data, received.toByteArray())) {
+                System.out.println("Test 1 for sockets failed! Received " + received.size() + " of " + data.length + " bytes, or different ones");
+                passed = false;
+            }
+        } catch(IOException | InterruptedException e) {
+            System.setOut(stdout);
+            System.out.println("Test 1 for sockets failed! " + e);
+            passed = false;
+        }
+
+        //Test Case 2: Writes are refused as a whole once they would take a stream past its limit
+        try {
+            ByteArrayOutputStream written = new ByteArrayOutputStream();
+            WritableByteChannel limited = new ReliableUdpSocket.LimitedChannel(Channels.newChannel(written), 10);
+            limited.write(ByteBuffer.wrap(new byte[6]));
+            boolean refused = false;
+            try {
+                limited.write(ByteBuffer.wrap(new byte[5]));
+            } catch(IOException e) {
+                refused = true;
+            }
+            limited.write(ByteBuffer.wrap(new byte[4]));
+
+            if(!refused || written.size() != 10) {
+                System.out.println("Test 2 for sockets failed! " + written.size() + " bytes went through, the write past the limit was " + (refused ? "" : "not ") + "refused");
+                passed = false;
+            }
+        } catch(IOException e) {
+            System.out.println("Test 2 for sockets failed! " + e);
+            passed = false;
+        }
+
+        //Test Case 3: Closing the server socket fails an accept() that is waiting for a sender, and any later one
+        try {
+            ReliableUdpServerSocket server = new ReliableUdpServerSocket(0, 1000, 16);
+            IOException[] thrown = new IOException[1];
+            Thread acceptThread = new Thread(() -> {
+                try {
+                    server.accept().close();
+                } catch(IOException e) {
+                    thrown[0] = e;
+                }
+            });
+            acceptThread.start();
+            Thread.sleep(200); //Into awaitSyn(), though closing before that has to fail it just the same
+            server.close();
+            acceptThread.join(5000);
+
+            boolean refusedLater = false;
+            try {
+                server.accept();
+            } catch(SocketException e) {
+                refusedLater = true;
+            }
+
+            if(acceptThread.isAlive() || !(thrown[0] instanceof SocketException) || !refusedLater) {
+                System.out.println("Test 3 for sockets failed! The pending accept() " + (acceptThread.isAlive() ? "still waits" : "threw " + thrown[0]) +
+                                    ", a later one was " + (refusedLater ? "" : "not ") + "refused");
+                passed = false;
+            }
+        } catch(IOException | InterruptedException e) {
+            System.out.println("Test 3 for sockets failed! " + e);
+            passed = false;
+        }
+
+        return passed;
+    }
+
+    public static boolean runMultiStreamTests() {
+        boolean passed = true;
+
+        //Test Case 1: A file whose last streams would need sequence numbers past 2^31 is refused up front
+        try {
+            File input = File.createTempFile("TCPTests", ".bin");
+            input.deleteOnExit();
+            try (RandomAccessFile file = new RandomAccessFile(input, "rw")) {
+                file.setLength(TCP.MAX_STREAM_END + 1); //Sparse, nothing is written
+            }
+
+            PrintStream stdout = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            boolean sent = TCPend.runSenders(0, "localhost", 9, input.getPath(), 1000, 8, 4, false, false, 0, false);
+            System.setOut(stdout);
+            input.delete();
+
+            if(sent) {
+                System.out.println("Test 1 for multi-stream failed! A " + (TCP.MAX_STREAM_END + 1) + " byte file was accepted");
+                passed = false;
+            }
+        } catch(IOException e) {
+            System.out.println("Test 1 for multi-stream failed! " + e);
+            passed = false;
+        }
+
+        //Test Case 2: Streams split a file the way runSenders() does and, over a lossy network, reassemble it exactly
+        try {
+            int mtu = 1000, sws = 8, numStreams = 3;
+            byte[] data = new byte[120 * 1000 + 345]; //The last range ends mid-segment
+            new Random(27).nextBytes(data);
+            File input = File.createTempFile("TCPTests", ".bin");
+            File output = File.createTempFile("TCPTests", ".out");
+            input.deleteOnExit();
+            output.deleteOnExit();
+            Files.write(input.toPath(), data);
+
+            PrintStream stdout = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream())); //Both ends log every packet
+            Simulator sim = new Simulator(27, 0.05, 5000000, 2000000);
+            TCPreceiver[] receivers = new TCPreceiver[numStreams];
+            boolean success;
+            try (FileChannel outChannel = TCPreceiver.openOutput(output.getPath(), false)) {
+                Checkpoint checkpoint = Checkpoint.create(output.getPath());
+                long rangeSize = TCPend.rangeSize(data.length, mtu, numStreams);
+                for(int i = 0; i < numStreams; i++) {
+                    Simulator.Endpoint senderEnd = sim.newEndpoint();
+                    Simulator.Endpoint receiverEnd = sim.newEndpoint();
+                    sim.connect(senderEnd, receiverEnd);
+
+                    long offset = Math.min(i * rangeSize, data.length);
+                    TCPsender sender = new TCPsender(senderEnd.getLocalPort(), "simulated", receiverEnd.getLocalPort(), input.getPath(),
+                                                    mtu, sws, offset, Math.min(rangeSize, data.length - offset));
+                    sender.useTransport(senderEnd, sim);
+                    receivers[i] = new TCPreceiver(receiverEnd.getLocalPort(), mtu, sws, output.getPath(), outChannel, checkpoint);
+                    receivers[i].useTransport(receiverEnd, sim);
+                    sim.spawn(receiverEnd, receivers[i]::run);
+                    sim.spawn(senderEnd, sender::run);
+                }
+                success = sim.run();
+
+                long fileEnd = 0;
+                for(TCPreceiver receiver : receivers) fileEnd = Math.max(fileEnd, receiver.getStreamEnd());
+                success &= TCPreceiver.truncateOutput(outChannel, fileEnd);
+            }
+            System.setOut(stdout);
+            byte[] received = Files.readAllBytes(output.toPath());
+            input.delete();
+            output.delete();
+            new File(output.getPath() + Checkpoint.SUFFIX).delete();
+
+            if(!success || !Arrays.equals(data, received) || sim.getNumDatagramsLost() == 0) {
+                System.out.println("Test 2 for multi-stream failed! Success: " + success + ", received " + received.length + " of " + 
+                                    data.length + " bytes" + (Arrays.equals(data, received) ? "" : ", or different ones") + 
+                                    ", lost " + sim.getNumDatagramsLost());
+                passed = false;
+            }
+        } catch(IOException e) {
+            System.out.println("Test 2 for multi-stream failed! " + e);
+            passed = false;
+        }
+
+        return passed;
+    }
+
+    /**
+     * Transport that hands an endpoint the datagrams added to it one after the other and records
+     * what the endpoint sends. Once they ran out it is closed, so the endpoint gives up
+     */
+    private static class ScriptedTransport implements Transport {
+
+        private final ArrayDeque<byte[]> script = new ArrayDeque<>();
+        private final List<TCP> sent = new ArrayList<>();
+        private boolean failSends; //Every send throws, like a network that is down
+        private int numSendAttempts;
+        private boolean closed;
+
+        void add(TCP packet) {
+            this.script.add(packet.serialize());
+        }
+
+        @Override
+        public void send(byte[] data, int length) throws IOException {
+            this.numSendAttempts++;
+            if(this.failSends) throw new IOException("Network is unreachable");
+            this.sent.add(new TCP().deserialize(data, 0, length));
+        }
+
+        @Override
+        public int receive(byte[] buf, long timeOut) {
+            byte[] datagram = this.script.poll();
+            if(datagram == null) {
+                this.closed = true;
+                return -1;
+            }
+            System.arraycopy(datagram, 0, buf, 0, datagram.length);
+            return datagram.length;
+        }
+
+        @Override
+        public void wakeup() {
+        }
+
+        @Override
+        public int getLocalPort() {
+            return 0;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !this.closed;
+        }
+
+        @Override
+        public void close() {
+            this.closed = true;
+        }
+    }
+
+    /**
+     * Passes datagrams through to inner and records those that arrive. With stripFastOpen it
+     * clears OPT_FAST_OPEN from them first, like a middlebox that drops options it does not know
+     */
+    private static class TappedTransport implements Transport {
+
+        private final Transport inner;
+        private final boolean stripFastOpen;
+        private final List<TCP> received = new ArrayList<>();
+
+        TappedTransport(Transport inner, boolean stripFastOpen) {
+            this.inner = inner;
+            this.stripFastOpen = stripFastOpen;
+        }
+
+        @Override
+        public void send(byte[] data, int length) throws IOException {
+            this.inner.send(data, length);
+        }
+
+        @Override
+        public int receive(byte[] buf, long timeOut) throws IOException {
+            int length = this.inner.receive(buf, timeOut);
+            if(length < 0) return length;
+
+            TCP packet = new TCP().deserialize(buf, 0, length);
+            if(packet != null && this.stripFastOpen && packet.hasOption(TCP.OPT_FAST_OPEN)) {
+                byte[] stripped = packet.setOptions((short)(packet.getOptions() & ~TCP.OPT_FAST_OPEN)).resetChecksum().serialize();
+                System.arraycopy(stripped, 0, buf, 0, stripped.length);
+            }
+            if(packet != null) this.received.add(packet);
+            return length;
+        }
+
+        @Override
+        public void wakeup() {
+            this.inner.wakeup();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return this.inner.getLocalPort();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.inner.isOpen();
+        }
+
+        @Override
+        public void close() {
+            this.inner.close();
+        }
+    }
+}
@@ -1,8 +1,20 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
 public class TCPend {
 
-    public static void main(String[] args) {
+    /** A sender stream takes two workers (itself and its segmenter, see Workers)*/
+    public final static int MAX_STREAMS = Workers.MAX_WORKERS / 2;
 
-        if(args.length != 12 && args.length != 8) printUsage();
+    public static void main(String[] args) {
 
         int portNum = 0;
         String remoteIP = null;
@@ -10,8 +22,13 @@ public class TCPend {
         String fileName = null;
         int mtu = 0;
         int sws = 0;
+        int numStreams = 1;
+        boolean resume = false;
+        boolean compress = false;
+        int fecBlockSize = 0;
+        boolean fastOpen = false;
 
-        for(int i = 0; i < args.length - 1; i++) {
+        for(int i = 0; i < args.length; i++) {
             String arg = args[i];
 
             if(arg.equals("-p")) {
@@ -32,22 +49,203 @@ public class TCPend {
             else if(arg.equals("-c")) {
                 sws = Integer.parseInt(args[++i]);
             }
+            else if(arg.equals("-n")) {
+                numStreams = Integer.parseInt(args[++i]);
+            }
+            else if(arg.equals("-r")) {
+                resume = true;
+            }
+            else if(arg.equals("-z")) {
+                compress = true;
+            }
+            else if(arg.equals("-e")) {
+                fecBlockSize = Integer.parseInt(args[++i]);
+            }
+            else if(arg.equals("-o")) {
+                fastOpen = true;
+            }
         }
 
-        if(args.length == 12) {
-            TCPsender sender = new TCPsender(portNum, remoteIP, remotePort, fileName, mtu, sws);
-            System.out.println("Created Sender with => " + sender);
-            sender.run();
-        } else {
+        boolean isSender = (remoteIP != null);
+        if(portNum == 0 || fileName == null || mtu <= 0 || sws <= 0 || numStreams <= 0 || numStreams > MAX_STREAMS || (isSender && remotePort == 0)) {
+            printUsage();
+            System.exit(1);
+        }
+        if(fastOpen && (resume || compress || fecBlockSize > 0)) {
+            System.out.println("-o cannot be combined with -r, -z or -e, they are negotiated in the handshake");
+            printUsage();
+            System.exit(1);
+        }
+
+        boolean success;
+        if(isSender && numStreams == 1) {
+            ReliableUdpSocket socket = new ReliableUdpSocket(portNum, mtu, sws);
+            socket.setResume(resume);
+            socket.setCompress(compress);
+            socket.setFec(fecBlockSize);
+            socket.setFastOpen(fastOpen);
+            success = sendFile(socket, remoteIP, remotePort, fileName);
+        } else if(isSender) {
+            success = runSenders(portNum, remoteIP, remotePort, fileName, mtu, sws, numStreams, resume, compress, fecBlockSize, fastOpen);
+        } else if(numStreams == 1) {
+            //The receiver writes the file itself, since its checkpoint is what lets a later -r run resume
             TCPreceiver receiver = new TCPreceiver(portNum, mtu, sws, fileName);
+            receiver.setResume(resume);
             System.out.println("Created Receiver with => " + receiver);
-            receiver.run();
+            success = receiver.run();
+        } else {
+            success = runReceivers(portNum, fileName, mtu, sws, numStreams, resume);
+        }
+        System.exit(success ? 0 : 1);
+    }
+
+    /**
+     * Sends the file through socket, i.e. as a stream
+     */
+    public static boolean sendFile(ReliableUdpSocket socket, String remoteIP, int remotePort, String fileName) {
+        try {
+            socket.connect(remoteIP, remotePort);
+            System.out.println("Created Sender with => " + socket);
+            try (OutputStream out = socket.getOutputStream()) {
+                Files.copy(Paths.get(fileName), out);
+            }
+            socket.close();
+            return true;
+
+        } catch(IOException e) {
+            System.out.println("Unable to send " + fileName + " in TCPend sendFile()");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Multi-stream sender: splits the file into numStreams byte ranges (on segment
+     * boundaries) and sends each one over its own connection, from port portNum + i
+     * to remotePort + i
+     */
+    public static boolean runSenders(int portNum, String remoteIP, int remotePort, String fileName,
+                                    int mtu, int sws, int numStreams, boolean resume, boolean compress, int fecBlockSize,
+                                    boolean fastOpen) {
+        long fileSize = new File(fileName).length();
+        if(fileSize > TCP.MAX_STREAM_END) {
+            System.out.println(String.format("Unable to send %s: it has %d bytes, sequence numbers only reach %d", 
+                                            fileName, fileSize, TCP.MAX_STREAM_END));
+            return false;
+        }
+        long rangeSize = rangeSize(fileSize, mtu, numStreams);
+
+        TCPsender[] senders = new TCPsender[numStreams];
+        for(int i = 0; i < numStreams; i++) {
+            long offset = Math.min(i * rangeSize, fileSize);
+            senders[i] = new TCPsender(portNum + i, remoteIP, remotePort + i, fileName, mtu, sws,
+                                        offset, Math.min(rangeSize, fileSize - offset));
+            senders[i].setResume(resume);
+            senders[i].setCompress(compress);
+            senders[i].setFec(fecBlockSize);
+            senders[i].setFastOpen(fastOpen);
+            System.out.println("Created Sender with => " + senders[i]);
         }
+
+        long start = System.nanoTime();
+        boolean[] results = runAll(senders.length, i -> senders[i].run());
+        double seconds = (System.nanoTime() - start) / 1e+9;
+
+        long totalBytes = 0;
+        boolean success = true;
+        for(int i = 0; i < numStreams; i++) {
+            totalBytes += senders[i].getNumBytes();
+            success &= results[i];
+        }
+
+        System.out.print(String.format("Aggregate: %d streams, %d bytes in %.3f s (%.1f KB/s)\n",
+                                        numStreams, totalBytes, seconds, (totalBytes / 1024.0) / seconds));
+        return success;
+    }
+
+    /**
+     * @return length of each stream's byte range (the last one may be shorter, or empty):
+     *         the file's segments split as evenly as possible
+     */
+    static long rangeSize(long fileSize, int mtu, int numStreams) {
+        long numSegments = (fileSize + mtu - 1) / mtu;
+        return ((numSegments + numStreams - 1) / numStreams) * mtu;
+    }
+
+    /**
+     * Multi-stream receiver: listens on ports portNum .. portNum + numStreams - 1 and
+     * has every stream write its byte range into the same output file (and checkpoint)
+     */
+    public static boolean runReceivers(int portNum, String fileName, int mtu, int sws, int numStreams, boolean resume) {
+        try (FileChannel outChannel = TCPreceiver.openOutput(fileName, resume)) {
+            Checkpoint checkpoint = resume ? Checkpoint.load(fileName) : Checkpoint.create(fileName);
+
+            TCPreceiver[] receivers = new TCPreceiver[numStreams];
+            for(int i = 0; i < numStreams; i++) {
+                receivers[i] = new TCPreceiver(portNum + i, mtu, sws, fileName, outChannel, checkpoint);
+                receivers[i].setResume(resume);
+                System.out.println("Created Receiver with => " + receivers[i]);
+            }
+
+            boolean[] results = runAll(receivers.length, i -> receivers[i].run());
+
+            long totalBytes = 0;
+            long fileEnd = 0;
+            boolean success = true;
+            for(int i = 0; i < numStreams; i++) {
+                totalBytes += receivers[i].getAmountDataReceived();
+                fileEnd = Math.max(fileEnd, receivers[i].getStreamEnd());
+                success &= results[i];
+            }
+            //Only the stream that ends last knows the file's length, a resumed file may be longer
+            if(success) success = TCPreceiver.truncateOutput(outChannel, fileEnd);
+
+            System.out.print(String.format("Aggregate: %d streams, %d bytes received\n", numStreams, totalBytes));
+            return success;
+
+        } catch(IOException e) {
+            System.out.println("Unable to open output file in TCPend runReceivers()");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /** A single stream of a multi-stream transfer */
+    private interface Stream {
+        boolean run(int index);
+    }
+
+    /**
+     * Runs every stream on a shared worker and waits for all of them. If the workers run out,
+     * the streams already started are interrupted (which closes their transport) and all fail
+     */
+    private static boolean[] runAll(int numStreams, Stream stream) {
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for(int i = 0; i < numStreams; i++) {
+            final int index = i;
+            try {
+                futures.add(Workers.start(() -> stream.run(index)));
+            } catch(RejectedExecutionException e) {
+                System.out.println("Unable to start stream " + i + " of " + numStreams + " in TCPend runAll()");
+                e.printStackTrace();
+                for(Future<Boolean> future : futures) future.cancel(true);
+                return new boolean[numStreams];
+            }
+        }
+
+        boolean[] results = new boolean[numStreams];
+        for(int i = 0; i < numStreams; i++) results[i] = Boolean.TRUE.equals(Workers.join(futures.get(i)));
+        return results;
     }
 
     public static void printUsage() {
         System.out.print("Usage:\n" +
-                        "Sender: java TCPend -p <port> -s <remote IP> -a <remote port> f <file name> -m <mtu> -c <sws>\n" +
-                        "Receiver: java TCPend -p <port> -m <mtu> -c <sws> -f <file name>\n");
+                        "Sender: java TCPend -p <port> -s <remote IP> -a <remote port> -f <file name> -m <mtu> -c <sws> [-n <streams>] [-r] [-z] [-e <fec block>] [-o]\n" +
+                        "Receiver: java TCPend -p <port> -m <mtu> -c <sws> -f <file name> [-n <streams>] [-r]\n" +
+                        "With -n, stream i uses local port <port> + i and remote port <remote port> + i (at most " + MAX_STREAMS + " streams)\n" +
+                        "With -r, a failed transfer resumes from the receiver's checkpoint (<file name>" + Checkpoint.SUFFIX + ")\n" +
+                        "With -z, the sender compresses segments if the receiver agrees\n" +
+                        "With -e K, the sender adds one XOR repair segment per K data segments (K <= " + Fec.MAX_BLOCK_SIZE + ")\n" +
+                        "With -o, the first segment rides on the SYN (fast open, no -r/-z/-e)\n");
     }
-}
\ No newline at end of file
+}
@@ -1,12 +1,11 @@
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.UnknownHostException;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32C;
 
 
 public class TCPreceiver {
@@ -16,184 +15,470 @@ public class TCPreceiver {
     protected int sws;
     protected String fileName;
 
-    private InetAddress remoteIP; //init when first SYN packet is received
-    private int remotePort;       //init when first SYN packet is received
-    private DatagramSocket socket;
+    private Transport transport; //Answers whoever sent the last packet, i.e. the sender once its SYN arrived
+    private Clock clock = Clock.SYSTEM;
 
     private int seqNum; //Double check, will change throughout
     private int ackNum; //Double check if needed
-
-    /** HashMap to keep track of received segments, i.e data buffer*/
-    private ConcurrentHashMap<Integer, byte[]> dataBuffer;
+    private int initialSeqNum; //Sender's SYN sequence number, which is also the file offset of its data
+    private boolean synReceived;
+    private final CountDownLatch synLatch; //Released by the first SYN, see awaitSyn()
+    private short synAckOptions; //Options we agreed to, repeated in every SYN-ACK
+    private long lastTimeStamp; //Timestamp of the last packet received, echoed in our answer so the sender can measure RTT
+    private long synAckTime; //When we last sent a SYN-ACK (0 if we never did)
+    private long rtt; //Measured from our SYN-ACK to the sender's next packet (0 until then)
+
+    /** Output file and its checkpoint, possibly shared with other receivers in multi-stream mode*/
+    private FileChannel outChannel;
+    private Checkpoint checkpoint;
+    private WritableByteChannel sink; //Instead of outChannel, in-order data is written here (no checkpoint)
+    private StreamBuffer output; //If sink is its writing side, we advertise its free space as our window
+    private int lastWindow; //Window we advertised last (output only)
+    private boolean aborted; //Set if data could not be written or read back, or a packet could not be sent, so we give up
+    private boolean ownsOutput; //True if we opened outChannel/checkpoint ourselves and have to close them
+    private boolean resume; //Honour resume requests from the sender using the checkpoint
+    private long lastCheckpointTime;
+
+    /** CRC32C of everything written so far, updated in order as segments are written*/
+    private CRC32C contentHash;
+    private boolean hashMismatch;
+    private long streamEnd; //File offset right after the last byte, known once the FIN arrived (-1 until then)
+    private boolean completed; //FIN arrived, its hash matched and the output file has its final length
+
+    /** Window of recent segments for rebuilding losses from repair segments (null unless the sender uses FEC)*/
+    private Fec fec;
+
+    /** FIN-ACK retry interval (in nanoseconds) if we could not measure the RTT (fast open)*/
+    private final static long FIN_ACK_TIME_OUT = (long)100e+6;
+
+    /** Minimum time between two checkpoints (in nanoseconds), each one forces the output file to disk*/
+    private final static long CHECKPOINT_INTERVAL = (long)1e+9;
+
+    /** Data received beyond ackNum, written out once the gaps before it are filled*/
+    private ReceiveBuffer receiveBuffer;
+
+    /** Bytes past ackNum we accept: sws full segments (of raw data, if they may be compressed)*/
+    private int window;
 
     /** Statistics of data transfer*/
     private int AMOUNT_DATA_REC;
     private int NUM_PACKETS_REC;
     private int NUM_PACKETS_DISCARDED_CHECKSUM;
-    private int NUM_PACKETS_DISCARDED_OUT_OF_SEQ;
+    private int NUM_PACKETS_DISCARDED_OUT_OF_SEQ; //Beyond the window
+    private int NUM_SEGMENTS_IN_ORDER;
+    private int NUM_SEGMENTS_OUT_OF_ORDER; //Buffered until the gap before them is filled
+    private int NUM_SEGMENTS_DUPLICATE;
+    private int NUM_SEGMENTS_RECOVERED;
 
     /**
      * Constructor for TCPreceiver
      */
     public TCPreceiver(int portNum, int mtu, int sws, String fileName) {
+        this(portNum, mtu, sws, fileName, null, null);
+    }
+
+    /**
+     * Constructor for TCPreceiver that writes into an already opened output file and
+     * checkpoint. Used by the multi-stream mode in TCPend, where every stream writes
+     * its own byte range of the same file
+     */
+    public TCPreceiver(int portNum, int mtu, int sws, String fileName, FileChannel outChannel, Checkpoint checkpoint) {
         this.portNum = portNum;
         this.mtu = mtu;
         this.sws = sws;
         this.fileName = fileName;
+        this.outChannel = outChannel;
+        this.checkpoint = checkpoint;
+        this.ownsOutput = (outChannel == null);
 
         this.seqNum = 0;
         this.ackNum = 0;
-        this.dataBuffer = new ConcurrentHashMap<>();
+        this.receiveBuffer = new ReceiveBuffer(sws * mtu, 0);
+        this.contentHash = new CRC32C();
+        this.streamEnd = -1;
+        this.synLatch = new CountDownLatch(1);
+    }
+
+    /**
+     * Constructor for TCPreceiver that listens on an already open transport (a bound UdpTransport
+     * or a Simulator endpoint), runs on clock and writes the data in order to sink instead of a
+     * file. While sink blocks we stop acknowledging, so a sink that blocks for long loses the
+     * connection (see the StreamBuffer constructor for one that does not)
+     */
+    public TCPreceiver(Transport transport, Clock clock, int mtu, int sws, WritableByteChannel sink) {
+        this(transport.getLocalPort(), mtu, sws, null, null, null);
+        this.transport = transport;
+        this.clock = clock;
+        this.sink = sink;
+        this.ownsOutput = false;
+    }
+
+    /**
+     * Like the sink constructor, with flow control: the data goes to output, whose free space
+     * is the window in every ACK, so a reader that falls behind makes the sender wait for it
+     * (used by ReliableUdpServerSocket). The reader should wake transport when it frees up
+     * space (see StreamBuffer.setOnSpace()), so we can tell the sender
+     */
+    public TCPreceiver(Transport transport, Clock clock, int mtu, int sws, StreamBuffer output) {
+        this(transport, clock, mtu, sws, output.sink());
+        this.output = output;
+    }
+
+    /**
+     * Blocks until the first SYN arrived
+     * @return false if we gave up (run() returned) before that
+     */
+    public boolean awaitSyn() throws InterruptedException {
+        this.synLatch.await();
+        return this.synReceived;
+    }
+
+    /**
+     * Resume mode: keep what is already in the output file and let a resuming sender
+     * skip everything the checkpoint says is on disk
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Listens on transport on clock instead of binding portNum on the system clock, e.g. to run
+     * a stream of a multi-stream transfer on a Simulator endpoint
+     */
+    public void useTransport(Transport transport, Clock clock) {
+        this.transport = transport;
+        this.clock = clock;
+    }
+
+    /**
+     * Opens the output file (truncating it unless resuming) and loads its checkpoint
+     */
+    public static FileChannel openOutput(String fileName, boolean resume) throws IOException {
+        File outputFile = new File(fileName);
+        if(resume) //Also readable, the resumed part has to be hashed again
+            return FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        return FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE, 
+                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
     }
 
     /**
      * Runs our TCPreceiver through various phases
+     * @return true once the sender closed the connection and the data was written
      */
-    public void run(){
+    public boolean run(){
 
         //Passive open
         try {
-            this.socket = new DatagramSocket(this.portNum);
-        } catch(SocketException e1) {
+            if(this.transport == null) this.transport = UdpTransport.bind(this.portNum);
+        } catch(IOException e1) {
             System.out.println("Failed to create socket in TCPreceiver. Exiting");
             e1.printStackTrace();
-            return;
+            this.synLatch.countDown();
+            return false;
+        }
+
+        if(this.ownsOutput) {
+            try {
+                this.outChannel = openOutput(this.fileName, this.resume);
+                this.checkpoint = this.resume ? Checkpoint.load(this.fileName) : Checkpoint.create(this.fileName);
+            } catch(IOException e2) {
+                System.out.println("Unable to open output file in TCPreceiver. Exiting");
+                e2.printStackTrace();
+                this.transport.close();
+                this.synLatch.countDown();
+                return false;
+            }
         }
 
         boolean isRunning = true;
-        boolean terminationRequested = false;
         while(isRunning) {
             TCP receivePacket = receiveTCP();
-            if(receivePacket == null) continue;
+            if(receivePacket == null) {
+                //Woken up by the reader, which made room: tell a sender that is waiting for it
+                if(this.output != null && this.synReceived && this.lastWindow < this.mtu && advertisedWindow() >= this.mtu)
+                    sendAck();
+                if(this.transport.isOpen()) continue;
+                this.synLatch.countDown(); //Closed under us, nobody will connect any more
+                return false;
+            }
 
             byte flag = (byte)(receivePacket.getLength() & 0x07);
 
+            //The sender answers our SYN-ACK right away, which gives us an RTT for timing out our FIN-ACK
+            if((flag & TCP.SYN_FLAG) != TCP.SYN_FLAG && this.rtt == 0 && this.synAckTime != 0)
+                this.rtt = this.clock.nanoTime() - this.synAckTime;
+
             //Case 1: Syn Packet
             if((flag & TCP.SYN_FLAG) == TCP.SYN_FLAG) {
-                this.ackNum = receivePacket.getSequenceNum() + 1;
-                TCP synAckPacket = new TCP(this.seqNum, this.ackNum, System.nanoTime(), TCP.SYN_FLAG + TCP.ACK_FLAG, (short)0, null);
-                this.sendTCP(synAckPacket);
+                //A retransmitted SYN must not start the connection over, we only repeat our answer
+                if(!this.synReceived || receivePacket.getSequenceNum() != this.initialSeqNum)
+                    acceptSyn(receivePacket);
+                this.synLatch.countDown();
+
+                //Fast open: data starts right after the SYN, and its ACK doubles as our SYN-ACK
+                if(this.aborted) {
+                    //The earlier run's data could not be read back, we give up below without answering
+                } else if(receivePacket.hasOption(TCP.OPT_FAST_OPEN) && receivePacket.getData() != null) {
+                    byte[] data = receivePacket.getData();
+                    handleData(new TCP(receivePacket.getSequenceNum() + 1, receivePacket.getAcknowledge(), receivePacket.getTimeStamp(),
+                                        (data.length << 3) + TCP.ACK_FLAG, (short)0, data));
+                } else {
+                    TCP synAckPacket = newAck(TCP.SYN_FLAG + TCP.ACK_FLAG);
+                    this.sendTCP(synAckPacket.setOptions((short)(synAckPacket.getOptions() | this.synAckOptions)));
+                    this.synAckTime = this.clock.nanoTime();
+                }
             }
             //Case 2: Fin Packet
             else if((flag & TCP.FIN_FLAG) == TCP.FIN_FLAG) {
                 this.ackNum = receivePacket.getSequenceNum() + 1;
                 this.seqNum = receivePacket.getAcknowledge(); //Update sequence num here only, because receiver never sends data
+
+                //FIN carries the sender's hash of the stream, compare it with what we wrote
+                this.hashMismatch = !TCP.hashMatches(receivePacket.getData(), this.contentHash);
+                if(this.hashMismatch)
+                    System.out.println("Content hash mismatch for stream " + this.initialSeqNum + ", transfer failed");
+
+                //The data ends right before the FIN. A resumed file may still hold bytes of an earlier, longer one past that
+                this.streamEnd = receivePacket.getSequenceNum() - 1L;
+                this.completed = !this.hashMismatch && (!this.ownsOutput || truncateOutput(this.outChannel, this.streamEnd));
                 
                 //Call termination() method to handle closing of the socket
                 terminateConnection();
+                isRunning = false;
             }
-            //Case 3: Data Packet
-            else if((receivePacket.getLength() >>> 3) > 0) {
-     
-                this.ackNum = (receivePacket.getSequenceNum() == this.ackNum) ? receivePacket.getSequenceNum() + (receivePacket.getLength() >>> 3) : this.ackNum;
-                     
-                if(!dataBuffer.containsKey(receivePacket.getSequenceNum())) {
-                    dataBuffer.put(receivePacket.getSequenceNum(), receivePacket.getData());
-                    this.AMOUNT_DATA_REC += (receivePacket.getLength() >>> 3);
+            //Case 3: FEC repair for a block of data packets
+            else if(receivePacket.hasOption(TCP.OPT_FEC_REPAIR)) {
+                TCP recovered = (this.fec == null) ? null : this.fec.recover(receivePacket);
+                if(recovered != null && recovered.getSequenceNum() >= this.ackNum) {
+                    this.NUM_SEGMENTS_RECOVERED++;
+                    handleData(recovered);
                 }
+            }
+            //Case 4: Data Packet
+            else if((receivePacket.getLength() >>> 3) > 0) {
+                handleData(receivePacket);
+            }
+            //Case 5: Window probe, the sender waits for our window to open
+            else if(receivePacket.hasOption(TCP.OPT_WINDOW)) {
+                sendAck();
+            }
+            receivePacket.release(); //Whatever we keep of it was copied by now
+
+            //Nowhere to put the data or no way to answer, so there is no point in going on (the sender will
+            //give up). What did make it to disk stays in the checkpoint, so a later -r run resumes from there
+            if(this.aborted && isRunning) { //After the FIN, terminateConnection() already cleaned up
+                writeCheckpoint(false);
+                this.transport.close();
+                return false;
+            }
+        }
+        return this.completed;
+    }
 
-                //Update this.ackNum to account for gaps
-                while(dataBuffer.containsKey(this.ackNum)) { this.ackNum += dataBuffer.get(this.ackNum).length; }
+    /**
+     * Sets up the connection for a new SYN and works out which of the sender's options
+     * we agree to (sent back in the SYN-ACK)
+     */
+    private void acceptSyn(TCP synPacket) {
+        this.synReceived = true;
+        this.initialSeqNum = synPacket.getSequenceNum();
+        this.ackNum = synPacket.getSequenceNum() + 1;
+        this.synAckOptions = 0;
+
+        //Resume: ack everything the checkpoint says is already on disk
+        if(this.resume && this.checkpoint != null && synPacket.hasOption(TCP.OPT_RESUME)) {
+            this.ackNum = this.checkpoint.getNext(this.initialSeqNum);
+            this.synAckOptions |= TCP.OPT_RESUME;
+            System.out.println("Resuming stream " + this.initialSeqNum + " at " + this.ackNum);
+        }
+        //We can always decompress, so agree whenever the sender asks
+        if(synPacket.hasOption(TCP.OPT_COMPRESS))
+            this.synAckOptions |= TCP.OPT_COMPRESS;
+
+        //Same for repair segments, which only need a window of recent segments
+        if(synPacket.hasOption(TCP.OPT_FEC)) {
+            this.synAckOptions |= TCP.OPT_FEC;
+            if(this.fec == null) this.fec = new Fec();
+        }
 
-                TCP ackPacket = new TCP(this.seqNum, this.ackNum, System.nanoTime(), TCP.ACK_FLAG, (short)0, null);
-                this.sendTCP(ackPacket);
-            }
+        int maxRatio = ((this.synAckOptions & TCP.OPT_COMPRESS) != 0) ? TCP.MAX_COMPRESSION_RATIO : 1;
+        this.window = (int)Math.min((long)this.sws * this.mtu * maxRatio, ReceiveBuffer.MAX_CAPACITY);
+        this.receiveBuffer.reset(this.ackNum);
+        this.contentHash.reset();
+        if(this.ackNum > this.initialSeqNum + 1 && !hashExistingData()) this.aborted = true;
+    }
+
+    /**
+     * Classifies a data packet with range checks against ackNum and the window. New data is
+     * buffered, whatever became in-order is written out and acknowledged. Duplicates are only
+     * acknowledged again (our last ACK may have been lost), data beyond the window is dropped
+     * (and with flow control answered, so the sender learns the window)
+     */
+    private void handleData(TCP receivePacket) {
+        int sn = receivePacket.getSequenceNum();
+        boolean compressed = receivePacket.hasOption(TCP.OPT_COMPRESSED);
+
+        if(sn - this.ackNum >= advertisedWindow()) {
+            this.NUM_PACKETS_DISCARDED_OUT_OF_SEQ++;
+            if(this.output != null) sendAck();
+            return;
+        }
+        //Everything below ackNum is already on disk. A compressed segment starting there is not worth
+        //inflating, raw ones may still reach past ackNum when the sender re-segmented its data
+        int length = receivePacket.getLength() >>> 3;
+        if(compressed ? sn < this.ackNum : sn + length <= this.ackNum) {
+            this.NUM_SEGMENTS_DUPLICATE++;
+            sendAck();
+            return;
         }
+
+        //Raw data is copied straight from the datagram into the receive buffer
+        byte[] data = receivePacket.getDataArray();
+        int offset = receivePacket.getDataOffset();
+        if(compressed) {
+            data = TCP.decompress(data, offset, length);
+            if(data == null) return;
+            offset = 0;
+            length = data.length;
+        }
+
+        int added = this.receiveBuffer.add(sn, data, offset, length);
+        if(added == 0) {
+            this.NUM_SEGMENTS_DUPLICATE++;
+            sendAck();
+            return;
+        }
+        this.AMOUNT_DATA_REC += added;
+        if(sn <= this.ackNum) this.NUM_SEGMENTS_IN_ORDER++;
+        else this.NUM_SEGMENTS_OUT_OF_ORDER++;
+        if(this.fec != null) this.fec.add(receivePacket, length);
+
+        //Update this.ackNum to account for gaps, writing out the data that became in-order
+        if(!this.receiveBuffer.deliver(this::writeSegment)) { this.aborted = true; return; }
+        this.ackNum = this.receiveBuffer.getNext();
+        saveCheckpoint();
+        sendAck();
+    }
+
+    private void sendAck() {
+        this.sendTCP(newAck(TCP.ACK_FLAG));
     }
 
-    boolean connectionTerminated = false; //Placed here so it is visible in threads below
-    int numRetrans  = 0;
     /**
-     * Ends the connection with sender
+     * @return bytes past ackNum we accept: the receive window, and with flow control no more
+     *         than the reader has room for. Delivering data moves ackNum up as much as it takes
+     *         room, so the right edge never moves back
      */
-    public void terminateConnection() {
+    private int advertisedWindow() {
+        return (this.output == null) ? this.window : Math.min(this.window, this.output.getFree());
+    }
 
-        Thread listenThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while(!connectionTerminated && numRetrans < TCP.MAX_NUM_RETRANS) {
-                    TCP recPacket = receiveTCP();
-                    if((recPacket == null) || (recPacket.getAcknowledge() != seqNum + 1) || 
-                                ((recPacket.getLength() & TCP.ACK_FLAG) != TCP.ACK_FLAG)) continue;
+    /**
+     * @return an ACK (or SYN-ACK) with these flags, carrying our window if we do flow control
+     */
+    private TCP newAck(int flags) {
+        if(this.output == null) return new TCP(this.seqNum, this.ackNum, this.clock.nanoTime(), flags, (short)0, null);
 
-                    connectionTerminated = true; //Can terminate once we receive an ACK from the sender for the FIN-ACK we sent
-                }
-            }
-        });
-        listenThread.start();
+        this.lastWindow = advertisedWindow();
+        return new TCP(this.seqNum, this.ackNum, this.clock.nanoTime(), (TCP.SIZE_OF_WINDOW << 3) + flags, (short)0, 
+                        TCP.windowToBytes(this.lastWindow)).setOptions(TCP.OPT_WINDOW);
+    }
+
+    /**
+     * Ends the connection with sender. The FIN-ACK is repeated with exponential backoff starting
+     * at twice the RTT until the sender ACKs it, and we close as soon as it does
+     */
+    public void terminateConnection() {
 
-        while(!connectionTerminated && numRetrans < TCP.MAX_NUM_RETRANS) {
-            TCP finAckPacket = new TCP(this.seqNum, this.ackNum, System.nanoTime(), TCP.FIN_FLAG + TCP.ACK_FLAG, (short)0, null);
+        boolean finAckAcked = false;
+        long timeOut = (this.rtt > 0) ? TCP.clampTimeOut(2 * this.rtt) : FIN_ACK_TIME_OUT;
+        for(int numRetrans = 0; !finAckAcked && !this.aborted && numRetrans < TCP.MAX_NUM_RETRANS; numRetrans++) {
+            TCP finAckPacket = new TCP(this.seqNum, this.ackNum, this.clock.nanoTime(), TCP.FIN_FLAG + TCP.ACK_FLAG, (short)0, null);
+            if(this.hashMismatch) finAckPacket.setOptions(TCP.OPT_HASH_MISMATCH);
             this.sendTCP(finAckPacket);
-            numRetrans++;
-            try{ Thread.sleep((long)(100)); } catch(InterruptedException e) { continue; }
+
+            //Wait for the sender's ACK until timeOut expires, then send the FIN-ACK again
+            long deadline = this.clock.nanoTime() + timeOut;
+            while(!finAckAcked && this.clock.nanoTime() < deadline) {
+                TCP recPacket = receiveTCP(deadline - this.clock.nanoTime());
+                if(recPacket != null) recPacket.release(); //Only the header matters here
+                if((recPacket == null) || (recPacket.getAcknowledge() != this.seqNum + 1) || 
+                            ((recPacket.getLength() & TCP.ACK_FLAG) != TCP.ACK_FLAG)) continue;
+
+                finAckAcked = true; //Can terminate once we receive an ACK from the sender for the FIN-ACK we sent
+            }
+            timeOut = TCP.backOff(timeOut);
         }
 
-        //Lazy write
-        writeToFile();
+        //Everything was already written as it arrived, so the checkpoint is no longer needed once
+        //the FIN verified it (it is kept if only the truncation failed)
+        writeCheckpoint(this.completed);
+        if(this.ownsOutput) {
+            try { this.outChannel.close(); } catch(IOException e) { }
+        }
 
-        this.socket.close();
+        this.transport.close();
         this.printStats();
-        System.exit(0);
     }
 
     /**
-     * Simply sends the desired tcpPacket using DatagramSocket.
+     * Simply sends the desired tcpPacket through our transport.
      * Correct content is responsibility of caller
      */
     public void sendTCP(TCP tcpPacket) {
 
         tcpPacket.setAcknowledge(this.ackNum); //Set ack field (will change throughout)
 
-        tcpPacket.setTimeStamp(System.nanoTime()); //Set time field
+        tcpPacket.setTimeStamp(this.lastTimeStamp); //Echo the sender's time field, it measures RTT with it
 
         byte[] serialized = tcpPacket.serialize(); //Serialize (proper checksum will be added)
         
         //Send
         try {
-            DatagramPacket datagramPacket = new DatagramPacket(serialized, serialized.length, 
-                                        this.remoteIP, this.remotePort);
-
-            this.socket.send(datagramPacket);
+            this.transport.send(serialized, serialized.length);
 
             System.out.println("snd " + (tcpPacket.getTimeStamp() / 1000000000L) + " " + tcpPacket.getFlags() + 
                     tcpPacket.getSequenceNum() + " " + (tcpPacket.getLength() >>> 3) + " " + tcpPacket.getAcknowledge());
 
-        } catch(UnknownHostException e1) {
-            System.out.println("Failed to find host in sendTCP() of TCPreceiver");
-            e1.printStackTrace();
-            System.exit(1);
         } catch(IOException e2) {
             System.out.println("Failed to send packet in sendTCP() of TCPreceiver");
             e2.printStackTrace();
-            System.exit(1);
+            this.aborted = true; //Only this connection ends, see run()
         }
     }
 
     /**
-     * Receieves a TCP packet using DatagramSocket
+     * Receieves a TCP packet through our transport, waiting as long as it takes
      */
     public TCP receiveTCP() {
+        return receiveTCP(0);
+    }
 
-        try {
-            byte[] data = new byte[this.mtu + TCP.SIZE_OF_HEADER];
-            DatagramPacket receivePacket = new DatagramPacket(data, data.length);
-
-            this.socket.receive(receivePacket);
-
-            this.remoteIP = receivePacket.getAddress();
-            this.remotePort = receivePacket.getPort();
-            
-            TCP returnPacket = new TCP();
-            returnPacket.deserialize(data, 0, data.length);
+    /**
+     * Receieves a TCP packet through our transport, waiting at most timeOut nanoseconds (0 for no limit)
+     * @return null on timeout, for a corrupted packet or once the transport is closed
+     */
+    public TCP receiveTCP(long timeOut) {
 
-            short savedChecksum = returnPacket.getChecksum();
-            returnPacket.resetChecksum();
-            byte[] tempPacket = returnPacket.serialize();
-            returnPacket.deserialize(tempPacket, 0, tempPacket.length);
+        try {
+            byte[] data = BufferPool.acquire(Math.max(this.mtu, TCP.SIZE_OF_HASH) + Fec.SIZE_OF_REPAIR_HEADER + TCP.SIZE_OF_HEADER);
+            int length;
+            try {
+                length = this.transport.receive(data, timeOut);
+            } catch(IOException e) {
+                BufferPool.release(data);
+                throw e;
+            }
+            if(length < 0) {
+                BufferPool.release(data);
+                return null;
+            }
 
-            if(savedChecksum != returnPacket.getChecksum()) {
+            //The packet keeps data until the caller releases it
+            TCP returnPacket = TCP.wrap(data, length);
+            if(returnPacket == null || !returnPacket.checksumMatches()) {
                 this.NUM_PACKETS_DISCARDED_CHECKSUM++;
+                BufferPool.release(data);
                 return null;
             }
             
@@ -201,6 +486,7 @@ public class TCPreceiver {
                     returnPacket.getSequenceNum() + " " + (returnPacket.getLength() >>> 3) + " " + returnPacket.getAcknowledge());
                         
             this.NUM_PACKETS_REC++;
+            this.lastTimeStamp = returnPacket.getTimeStamp();
             return returnPacket;
 
         } catch (IOException e) {
@@ -209,28 +495,123 @@ public class TCPreceiver {
     }
 
     /**
-     * Helper method to write all contents from buffer to file
+     * Helper method to write in-order data to the file. Data with sequence
+     * number sn goes to file position sn - 1 (data starts right after the SYN).
+     * With a sink it is simply appended, since data arrives here in order
+     * @return false if the data could not be written
      */
-    public void writeToFile() {
+    public boolean writeSegment(int sequenceNum, byte[] segment, int off, int len) {
 
         try {
-            File outputFile = new File(this.fileName);
-            FileOutputStream outStream = new FileOutputStream(outputFile);
+            ByteBuffer buf = ByteBuffer.wrap(segment, off, len);
+            long position = sequenceNum - 1;
+            while(buf.hasRemaining()) {
+                if(this.sink != null) this.sink.write(buf);
+                else position += this.outChannel.write(buf, position);
+            }
+            this.contentHash.update(segment, off, len);
+            return true;
+
+        } catch(IOException e) {
+            System.out.println("Unable to write data in TCPreceiver writeSegment()");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * When resuming, the part of the stream written by an earlier run is only on disk,
+     * so read it back once to bring the content hash up to date
+     * @return false if it could not be read
+     */
+    private boolean hashExistingData() {
 
-            int byteIndex = 1;
-            while(dataBuffer.containsKey(byteIndex)) {
-                outStream.write(dataBuffer.get(byteIndex));
-                byteIndex += dataBuffer.get(byteIndex).length;
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            long position = this.initialSeqNum;
+            long end = this.ackNum - 1;
+            while(position < end) {
+                buf.clear().limit((int)Math.min(buf.capacity(), end - position));
+                int read = this.outChannel.read(buf, position);
+                if(read < 0) break;
+                buf.flip();
+                this.contentHash.update(buf);
+                position += read;
             }
-            outStream.close();
+            return true;
+
+        } catch(IOException e) {
+            System.out.println("Unable to read back output file in TCPreceiver hashExistingData()");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Cuts the output file at length, since a resumed one may still hold bytes of an earlier,
+     * longer file past it
+     * @return false if it could not be truncated
+     */
+    public static boolean truncateOutput(FileChannel outChannel, long length) {
+        try {
+            outChannel.truncate(length);
+            return true;
+        } catch(IOException e) {
+            System.out.println("Unable to truncate output file in TCPreceiver truncateOutput()");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Records how far this stream got in the checkpoint, at most once per CHECKPOINT_INTERVAL
+     */
+    private void saveCheckpoint() {
+        if(this.clock.nanoTime() - this.lastCheckpointTime < CHECKPOINT_INTERVAL) return;
+        writeCheckpoint(false);
+    }
 
+    /**
+     * Records how far this stream got in the checkpoint right away, or drops the stream from it
+     * once it is completed (or its content hash did not match). The output file is forced to
+     * disk first so the checkpoint never runs ahead of it
+     */
+    private void writeCheckpoint(boolean completed) {
+        if(this.checkpoint == null) return; //Writing to a sink, nothing to resume
+        this.lastCheckpointTime = this.clock.nanoTime();
+
+        try {
+            this.outChannel.force(false);
+            if(completed || this.hashMismatch) this.checkpoint.remove(this.initialSeqNum); //Nothing to resume or nothing to trust
+            else if(this.ackNum > this.initialSeqNum + 1) this.checkpoint.update(this.initialSeqNum, this.ackNum);
+            this.checkpoint.save();
         } catch(IOException e) {
-            System.out.println("Unable to write to file in TCPreceiver writeToFile()");
+            System.out.println("Unable to save checkpoint in TCPreceiver writeCheckpoint()");
             e.printStackTrace();
-            System.exit(1);
         }
     }
 
+    /**
+     * @return file offset right after the stream's last byte, or -1 if its FIN did not arrive
+     */
+    public long getStreamEnd() {
+        return this.streamEnd;
+    }
+
+    /**
+     * @return number of data bytes received (excluding duplicates)
+     */
+    public int getAmountDataReceived() {
+        return this.AMOUNT_DATA_REC;
+    }
+
+    /**
+     * @return number of lost segments rebuilt from repair segments
+     */
+    public int getNumSegmentsRecovered() {
+        return this.NUM_SEGMENTS_RECOVERED;
+    }
+
     /**
      * Prints statistics after a successful TCP sesssion 
      */
@@ -240,6 +621,12 @@ public class TCPreceiver {
                                         "Number of out-of-sequence packets discarded: %d\n" +
                                         "Number of packets discarded due to incorrect checksum: %d\n",
                                         this.AMOUNT_DATA_REC, this.NUM_PACKETS_REC, this.NUM_PACKETS_DISCARDED_OUT_OF_SEQ, this.NUM_PACKETS_DISCARDED_CHECKSUM));
+        System.out.print(String.format("Number of in-order segments: %d\n" +
+                                        "Number of out-of-order segments buffered: %d\n" +
+                                        "Number of duplicate segments: %d\n",
+                                        this.NUM_SEGMENTS_IN_ORDER, this.NUM_SEGMENTS_OUT_OF_ORDER, this.NUM_SEGMENTS_DUPLICATE));
+        if(this.fec != null)
+            System.out.print(String.format("Number of segments recovered by FEC: %d\n", this.NUM_SEGMENTS_RECOVERED));
     }
 
     @Override
@@ -1,17 +1,35 @@
 import java.io.File;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
+import java.lang.invoke.VarHandle;
 import java.net.UnknownHostException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
-
-
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+/**
+ * Sending end of a connection. The thread that calls run() is its I/O thread: it owns the
+ * transport and does every send and receive, through the handshake, the data phase and the
+ * teardown, and it is the only one touching the window and its bookkeeping. During the data
+ * phase a segmenter on a shared worker reads the source and builds the segments (compressed,
+ * with repair segments) and hands them over in order through a lock-free single-producer,
+ * single-consumer queue. Pin the thread that calls run() to pin the hot path to a core.
+ *
+ * Time comes from a Clock and datagrams go through a Transport, so a Simulator can run the
+ * sender on virtual time (see useTransport()).
+ *
+ * @author Prasoon Tandon
+ * @author John Lee
+ */
 public class TCPsender {
     
     protected int portNum;
@@ -20,357 +38,954 @@ public class TCPsender {
     protected String fileName;
     protected int mtu;
     protected int sws;
-
-    private DatagramSocket socket;
+    protected long offset; //First byte of the file this sender is responsible for
+    protected long rangeLength; //Number of bytes to send starting at offset (-1 for rest of file)
+    protected boolean resume; //Ask the receiver to skip whatever it already has on disk
+    protected boolean wantCompress; //Ask the receiver to accept compressed segments
+    private boolean compress; //Receiver agreed, so segments are compressed
+    protected boolean fastOpen; //Send the first segment with the SYN instead of waiting for the handshake
+    private TCP fastOpenSyn; //SYN carrying the first segment, until the receiver acknowledged it
+    protected int fecBlockSize; //Send a repair segment after every this many data segments (0 for none)
+    private int fecK; //Block size the receiver agreed to (0 for no FEC)
+    private List<TCP> block; //Data segments of the FEC block being built (segmenter only)
+
+    /** Data to send, read lazily as the window advances so a slow source holds us back (and not the other way around)*/
+    private ReadableByteChannel source; //Our range of the file, unless given to the constructor
+    private long sourceRemaining; //Bytes we may still read from source
+    private ByteBuffer readBuffer; //Read from source but not segmented yet, in [position, limit)
+    private volatile boolean sourceDone; //Set once the last segment has been built
+    private long numBytes; //Bytes read from source so far
+    private int firstSeqNum; //Sequence number of the first segment we built
+    private int nextSeqNum; //Sequence number of the next segment to build
+    private int rawEstimate; //How many raw bytes we expect to fit in one compressed segment
+    private int numReleased; //Packets below this index were acknowledged and dropped from allPackets
+    private long numCompacted; //Released packets removed from the front of allPackets, see releaseAcknowledged()
+
+    /** Handover from the segmenter to the I/O thread during the data phase (see transferData())*/
+    private SpscQueue<TCP> sendQueue; //Segments and repair segments in the order they are to be sent
+    private volatile boolean awaitingSegments; //I/O thread has room in the window and nothing to send
+    private volatile boolean segmenterWaiting; //Segmenter is parked on a full sendQueue
+    private volatile Thread segmenterThread;
+
+    private CRC32C contentHash; //Hash of our range, computed as segments are built and sent with the FIN
+    private volatile boolean hashMismatch; //Set if the receiver reports that its hash differs from ours
+
+    private Transport transport; //Leads to the receiver, the I/O thread waits on it for ACKs (and for segments while awaitingSegments)
+    private Clock clock = Clock.SYSTEM;
+    private boolean singleThreaded; //Segments are built on the I/O thread as the window needs them, no segmenter
     
     private int seqNum; //Double check, will change throughout
     private int ackNum; //Double check if needed
 
     private volatile boolean completed; //Keeps track of completion status of our whole process
+    private volatile boolean aborted; //Set if the data could not be delivered (or read)
     private long TIME_OUT; //Keeps track of timeout (in nanoseconds), which will vary throughout the process
   
+    /** Window and its bookkeeping, owned by the I/O thread*/
     private ArrayList<TCP> allPackets;
-    private volatile int swL; //Sliding window pointer (left)
-    private volatile int swR; //Sliding window pointer (right)
+    private int swL; //Sliding window pointer (left)
+    private int swR; //Sliding window pointer (right)
+
+    /** Flow control (see TCP.OPT_WINDOW), owned by the I/O thread*/
+    private long windowEnd = -1; //Sequence number right after the receiver's window, -1 while it advertised none (no limit)
+    private boolean windowClosed; //The next segment starts past windowEnd, so we wait for the window to open
+    private long probeTimeOut; //Interval between window probes, backs off while the window stays closed
+    private long nextProbe; //When the next probe is due (0 until the window closes with nothing in flight)
+    private int numProbes; //Probes the receiver has not answered
 
     /** HashMaps to keep track of important values relating to segments*/
-    private ConcurrentHashMap<Integer, Integer> numAcksMap;
-    private ConcurrentHashMap<Integer, Integer> numRetransMap;
-    private ConcurrentHashMap<Integer, Long> timeoutMap; 
+    private HashMap<Integer, Integer> numAcksMap;
+    private HashMap<Integer, Integer> numRetransMap;
+    private HashMap<Integer, Long> timeoutMap; 
     
     /** Statistics of data transfer*/
     private int AMOUNT_DATA_TRANS;
     private int NUM_PACKETS_SENT;
     private int NUM_RETRANS;
     private int NUM_DUPLICATE_ACKS;
+    private int NUM_REPAIRS_SENT;
+    private long transferTime; //Time (in nanoseconds) spent in transferData()
+    private long deliveryTime; //Time (in nanoseconds) from starting the connection until all data was acknowledged
 
     /**
-     * Constructor for TCPsender
+     * Constructor for TCPsender that sends the whole file
      */
     public TCPsender(int portNum, String remoteIP, int remotePort, String fileName, int mtu, int sws) {
+        this(portNum, remoteIP, remotePort, fileName, mtu, sws, 0, -1);
+    }
+
+    /**
+     * Constructor for TCPsender that only sends the byte range [offset, offset + rangeLength)
+     * of the file. The initial sequence number is the offset, so the receiver knows where in
+     * the output file each segment belongs (used by the multi-stream mode in TCPend)
+     */
+    public TCPsender(int portNum, String remoteIP, int remotePort, String fileName, int mtu, int sws,
+                        long offset, long rangeLength) {
         this.portNum = portNum;
         this.remoteIP = remoteIP;
         this.remotePort = remotePort;
         this.fileName = fileName;
         this.mtu = mtu;
         this.sws = sws;
+        this.offset = offset;
+        this.rangeLength = rangeLength;
 
         init();
     }
 
     /**
-     * Initialize the important data structures that will be used for bookeeping
-     * and read all the file contents to create all possible TCP packets 
+     * Constructor for TCPsender that sends whatever it reads from source until the end of
+     * the stream (used by ReliableUdpSocket). The stream is read as the window advances, so
+     * whoever writes into it is held back to the pace of the connection
+     */
+    public TCPsender(int portNum, String remoteIP, int remotePort, ReadableByteChannel source, int mtu, int sws) {
+        this(portNum, remoteIP, remotePort, (String)null, mtu, sws, 0, -1);
+        this.source = source;
+    }
+
+    /**
+     * Initialize the important data structures that will be used for bookeeping.
+     * The TCP packets themselves are only created as the data is read, once the
+     * handshake tells us where to start (see startSegments())
      */
     private void init() {
 
-        try {
-            //Get all the file contents as bytes
-            byte[] fileAsBytes = null;
-            File file = new File(this.fileName);
-            fileAsBytes = Files.readAllBytes(file.toPath());
-
-            int numSegments = (int)Math.ceil(((double)fileAsBytes.length)/(this.mtu));
-            this.completed = false;
-            this.seqNum = 0;
-            this.ackNum = 0;
-            this.TIME_OUT = (long)5e+9; //Per the instructions
-
-            //Init all data structures
-            this.allPackets = new ArrayList<>(numSegments);
-            this.swL = 0;
-            this.swR = 0; 
-
-            this.numAcksMap = new ConcurrentHashMap<>();
-            this.numRetransMap = new ConcurrentHashMap<>();
-            this.timeoutMap = new ConcurrentHashMap<>();
-
-            //Create all TCP packets
-            int finalSegmentSize = fileAsBytes.length - (this.mtu)*(numSegments - 1);
-            for(int s = 0; s < numSegments; s++) {
-                byte[] segment;
-                
-                if(s == numSegments - 1)
-                    segment = new byte[finalSegmentSize];
-                else
-                    segment = new byte[this.mtu];
-
-                for(int b = 0; b < segment.length; b++)
-                    segment[b] = fileAsBytes[(s*(this.mtu)) + b];
-                
-                int sn = s*(this.mtu) + 1; //+1 for 0th segment after ACK, assuming init sequenceNumber is 0
-                int ack = -1;
-                int len = (segment.length << 3) + TCP.ACK_FLAG;
-                TCP packet = new TCP(sn, ack, System.nanoTime(), len, (short)0, segment);
-                this.allPackets.add(packet);
+        this.completed = false;
+        this.seqNum = (int)this.offset;
+        this.ackNum = 0;
+        this.TIME_OUT = TCP.INITIAL_TIME_OUT;
+        this.sourceRemaining = (this.rangeLength < 0) ? Long.MAX_VALUE : this.rangeLength;
+
+        //Init all data structures
+        this.allPackets = new ArrayList<>();
+        this.block = new ArrayList<>();
+        this.swL = 0;
+        this.swR = 0; 
+
+        this.numAcksMap = new HashMap<>();
+        this.numRetransMap = new HashMap<>();
+        this.timeoutMap = new HashMap<>();
+    }
+
+    /**
+     * Prepares building segments starting at sequence number firstSeqNum. That is offset + 1
+     * for a fresh transfer, or the receiver's resume point, in which case the data before it
+     * is read only to bring the content hash up to date (the receiver hashes the whole stream)
+     */
+    private void startSegments(int firstSeqNum) throws IOException {
+        this.contentHash = new CRC32C();
+        this.readBuffer = ByteBuffer.allocate(this.compress ? this.mtu * TCP.MAX_COMPRESSION_RATIO : this.mtu);
+        this.readBuffer.flip(); //Nothing buffered yet
+        this.rawEstimate = this.mtu;
+        this.nextSeqNum = (int)this.offset + 1; //+1 for 0th segment after ACK, init sequenceNumber is the offset
+
+        while(this.nextSeqNum < firstSeqNum) {
+            int skipped = fillBuffer(Math.min(firstSeqNum - this.nextSeqNum, this.readBuffer.capacity()));
+            if(skipped == 0) break;
+            this.contentHash.update(this.readBuffer.array(), this.readBuffer.position(), skipped);
+            this.readBuffer.position(this.readBuffer.position() + skipped);
+            this.nextSeqNum += skipped;
+        }
+        this.firstSeqNum = this.nextSeqNum;
+    }
+
+    /**
+     * Reads from the source until up to want bytes are buffered. Only blocks while nothing
+     * is buffered, so data trickling in from a stream is sent as it comes
+     * @return number of bytes available in readBuffer, at most want (0 once the source is exhausted)
+     */
+    private int fillBuffer(int want) throws IOException {
+        if(this.readBuffer.remaining() < want && this.sourceRemaining > 0) {
+            this.readBuffer.compact();
+            do {
+                int limit = this.readBuffer.limit();
+                this.readBuffer.limit((int)Math.min(limit, this.readBuffer.position() + this.sourceRemaining));
+                int read = this.source.read(this.readBuffer);
+                this.readBuffer.limit(limit);
+
+                if(read < 0) this.sourceRemaining = 0;
+                else { this.sourceRemaining -= read; this.numBytes += read; }
+            } while(this.readBuffer.position() == 0 && this.sourceRemaining > 0);
+            this.readBuffer.flip();
+        }
+        return Math.min(want, this.readBuffer.remaining());
+    }
+
+    /**
+     * Builds the next TCP packet from the source. Sequence numbers always count raw bytes,
+     * even for compressed segments
+     * @return the packet, or null once the source is exhausted
+     */
+    private TCP nextSegment() throws IOException {
+        int available = fillBuffer(this.compress ? this.rawEstimate : this.mtu);
+        if(available == 0) return null;
+
+        byte[] buffered = this.readBuffer.array();
+        int position = this.readBuffer.position();
+        int rawLength = Math.min(this.mtu, available);
+        byte[] segment = null;
+        boolean isCompressed = false;
+
+        if(this.compress) {
+            //Try a block that should compress to about one mtu, halving it until it fits
+            int blockLength = available;
+            while(blockLength > 0) {
+                byte[] compressed = TCP.compress(buffered, position, blockLength);
+                if(compressed.length <= this.mtu && compressed.length < blockLength) {
+                    segment = compressed;
+                    rawLength = blockLength;
+                    isCompressed = true;
+                    this.rawEstimate = (int)Math.min((long)blockLength * this.mtu * 9 / (10 * Math.max(compressed.length, 1)), 
+                                                    (long)this.mtu * TCP.MAX_COMPRESSION_RATIO);
+                    this.rawEstimate = Math.max(this.rawEstimate, this.mtu);
+                    break;
+                }
+                if(blockLength <= this.mtu) break; //Does not compress, send it raw
+                blockLength /= 2;
             }
-        } catch(IOException e) {
-            System.out.println("Unable to init TCPsender in init()");
-            e.printStackTrace();
-            System.exit(1);
         }
+
+        if(segment == null)
+            segment = Arrays.copyOfRange(buffered, position, position + rawLength);
+        this.contentHash.update(buffered, position, rawLength);
+        this.readBuffer.position(position + rawLength);
+
+        int ack = -1;
+        int len = (segment.length << 3) + TCP.ACK_FLAG;
+        TCP packet = new TCP(this.nextSeqNum, ack, this.clock.nanoTime(), len, (short)0, segment);
+        if(isCompressed) packet.setOptions(TCP.OPT_COMPRESSED);
+        this.nextSeqNum += rawLength;
+        return packet;
+    }
+
+    /**
+     * Adds the packet just built to the current FEC block
+     * @return the block's repair segment once the block is complete, else null
+     */
+    private TCP addToBlock(TCP packet) {
+        if(this.fecK == 0) return null;
+        this.block.add(packet);
+        return (this.block.size() == this.fecK) ? finishBlock() : null;
+    }
+
+    /**
+     * Ends the current FEC block (the last one may be shorter)
+     * @return its repair segment, or null if it is empty
+     */
+    private TCP finishBlock() {
+        if(this.block.isEmpty()) return null;
+        int blockLength = this.nextSeqNum - this.block.get(0).getSequenceNum();
+        TCP repair = Fec.buildRepair(this.block, blockLength);
+        this.block.clear();
+        return repair;
+    }
+
+    /** Released packets allPackets may hold before they are removed from its front*/
+    private final static int COMPACT_THRESHOLD = 1024;
+
+    /**
+     * Drops acknowledged packets so that memory does not grow with the length of the stream.
+     * Once they make up most of allPackets, they are removed from its front and the window
+     * indices shift down, so the list stays within about a window plus COMPACT_THRESHOLD
+     */
+    private void releaseAcknowledged() {
+        for(; this.numReleased < this.swL; this.numReleased++) {
+            int sn = this.allPackets.set(this.numReleased, null).getSequenceNum();
+            this.numAcksMap.remove(sn);
+            this.numRetransMap.remove(sn);
+            this.timeoutMap.remove(sn);
+        }
+
+        if(this.numReleased >= COMPACT_THRESHOLD && 2 * this.numReleased >= this.allPackets.size()) {
+            this.allPackets.subList(0, this.numReleased).clear();
+            this.swL -= this.numReleased;
+            this.swR -= this.numReleased;
+            this.numCompacted += this.numReleased;
+            this.numReleased = 0;
+        }
+    }
+
+    /**
+     * Fast open mode: carry the first segment on the SYN and send the rest of the first
+     * window right away, so a small transfer completes in about one RTT. Options that have
+     * to be negotiated (resume, compression, FEC) need the handshake, so with any of them
+     * fast open is turned off (and we say so). A receiver that ignores the data on the SYN
+     * gets the first segment again once it answered
+     */
+    public void setFastOpen(boolean fastOpen) {
+        this.fastOpen = fastOpen;
+    }
+
+    /**
+     * FEC mode: ask the receiver (in the SYN) to accept one XOR repair segment after every
+     * blockSize data segments, i.e. an overhead of 1/blockSize (0 turns FEC off)
+     */
+    public void setFec(int blockSize) {
+        this.fecBlockSize = Math.min(Math.max(blockSize, 0), Fec.MAX_BLOCK_SIZE);
+    }
+
+    /**
+     * Compression mode: ask the receiver (in the SYN) to accept Deflate compressed segments
+     */
+    public void setCompress(boolean compress) {
+        this.wantCompress = compress;
+    }
+
+    /**
+     * Resume mode: ask the receiver (in the SYN) to skip whatever its checkpoint says
+     * is already on disk
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Runs over transport (which already leads to the receiver) on clock, instead of a UDP socket
+     * and the system clock. Segments are then built on the I/O thread as well, so the sender uses
+     * no other thread and only ever waits in the transport (a Simulator relies on that)
+     */
+    public void useTransport(Transport transport, Clock clock) {
+        this.transport = transport;
+        this.clock = clock;
+        this.singleThreaded = true;
+    }
+
+    /**
+     * Opens the file positioned at our offset, the range length is enforced by sourceRemaining
+     */
+    private ReadableByteChannel openSource() throws IOException {
+        File file = new File(this.fileName);
+        FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        fileChannel.position(this.offset);
+        return fileChannel;
     }
 
     /**
      * Runs our TCPsender through various phases
+     * @return true if the whole range was delivered and the connection closed cleanly
      */
-    public void run(){
+    public boolean run(){
         
-        //Establish connection (3-way handshake)
-        if(!this.establishConnection()) return;
+        long start = this.clock.nanoTime();
+
+        try {
+            if(this.source == null) this.source = openSource();
+        } catch(IOException e) {
+            System.out.println("Unable to open " + this.fileName + " in TCPsender run()");
+            e.printStackTrace();
+            return false;
+        }
+        if(this.transport == null && !this.openTransport()) { closeSource(); return false; }
+
+        try {
+            boolean fastOpened = false;
+            if(this.fastOpen && (this.resume || this.wantCompress || this.fecBlockSize > 0)) {
+                System.out.println("Fast open disabled: resume, compression and FEC are negotiated in the handshake");
+            } else if(this.fastOpen) {
+                //Fast open: no handshake, the first segment goes out with the SYN and the rest of
+                //the first window right behind it
+                this.startSegments(this.seqNum + 1);
+                TCP synPacket = this.nextSegment();
+                fastOpened = (synPacket != null);
+                if(fastOpened) {
+                    synPacket.setSequenceNum(this.seqNum).setLength((synPacket.getLength() & ~0x07) + TCP.SYN_FLAG)
+                            .setOptions(TCP.OPT_FAST_OPEN);
+                    this.allPackets.add(synPacket); //Goes out first, as part of the first window
+                    this.fastOpenSyn = synPacket;
+                }
+            }
+            if(!fastOpened) {
+                //Establish connection (3-way handshake)
+                if(!this.establishConnection()) { closeSource(); return false; }
+
+                //Segment our range, starting wherever the receiver told us to
+                this.startSegments(this.seqNum);
+            }
+        } catch(IOException e) {
+            System.out.println("Unable to read data in TCPsender run()");
+            e.printStackTrace();
+            closeTransport();
+            closeSource();
+            return false;
+        }
 
         //Begin transmitting data
+        long transferStart = this.clock.nanoTime();
         this.transferData();
+        this.transferTime = this.clock.nanoTime() - transferStart;
+        this.deliveryTime = this.clock.nanoTime() - start;
+        closeSource();
+
+        if(this.aborted) {
+            closeTransport();
+            return false;
+        }
+        if(this.compress)
+            System.out.println(String.format("Compressed %d bytes into %d segments", 
+                                this.nextSeqNum - this.firstSeqNum, this.numCompacted + this.allPackets.size()));
 
         //Terminate connection
-        if(!this.terminateConnection()) return;
+        if(!this.terminateConnection()) return false;
+
+        if(this.hashMismatch) {
+            System.out.println("Receiver reported a content hash mismatch, transfer failed");
+            return false;
+        }
 
-        //Print statistics only when everything goes well
-        try{ Thread.sleep((long)(500)); } catch(InterruptedException e) {}
+        //Print statistics only when everything goes well (the segmenter is done by now)
         this.printStats();
+        return true;
     }
 
-    boolean connectionEstablished = false; //Placed here so it is visible in threads below
-    int numRetrans = 0;  
     /**
-     * Establish connection with the receiver using 3-way handshake
+     * Opens a UDP transport connected to the receiver
      */
-    public boolean establishConnection() {
+    private boolean openTransport() {
 
         try {
-            this.socket = new DatagramSocket(this.portNum);
-        } catch(SocketException e1) {
-            System.out.println("Failed to create socket in TCPsender. Exiting");
+            this.transport = UdpTransport.connect(this.portNum, this.remoteIP, this.remotePort);
+        } catch(UnknownHostException e1) {
+            System.out.println("Failed to find host in openTransport() of TCPsender. Exiting");
             e1.printStackTrace();
             return false;
+        } catch(IOException e2) {
+            System.out.println("Failed to create socket in TCPsender. Exiting");
+            e2.printStackTrace();
+            return false;
         }
+        return true;
+    }
 
-        Thread listenThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while(!connectionEstablished && numRetrans < TCP.MAX_NUM_RETRANS) {
-                    TCP recPacket = receiveTCP();
-                    if((recPacket == null) || (((recPacket.getLength() & TCP.SYN_FLAG) != TCP.SYN_FLAG) && 
-                                            ((recPacket.getLength() & TCP.ACK_FLAG) != TCP.ACK_FLAG))) continue;
-
-                    seqNum = recPacket.getAcknowledge(); //Update sequence number because syn counts as "1 byte"
-                    TCP ackPacket = new TCP(seqNum, ackNum, System.nanoTime(), (int)TCP.ACK_FLAG, (short)0, null);
-                    connectionEstablished = true;
-                    sendTCP(ackPacket);
-                }
-            }
-        });
+    /** Longest time (in milliseconds) receiveTCP() blocks, so the reader notices when we are done*/
+    private final static int RECEIVE_POLL_MILLIS = 100;
 
-        listenThread.start();
+    /**
+     * Establish connection with the receiver using 3-way handshake. The SYN is repeated with
+     * exponential backoff until the SYN-ACK arrives, and we move on as soon as it does
+     */
+    public boolean establishConnection() {
 
-        while(!connectionEstablished && numRetrans < TCP.MAX_NUM_RETRANS) {
-            TCP synPacket = new TCP(this.seqNum, this.ackNum, System.nanoTime(), (int)TCP.SYN_FLAG, (short)0, null);
+        boolean connectionEstablished = false;
+        int numSyns = 0;
+        long timeOut = TCP.clampTimeOut(this.TIME_OUT);
+        while(!connectionEstablished && numSyns < TCP.MAX_NUM_RETRANS) {
+            TCP synPacket = new TCP(this.seqNum, this.ackNum, this.clock.nanoTime(), (int)TCP.SYN_FLAG, (short)0, null);
+            if(this.resume) synPacket.setOptions((short)(synPacket.getOptions() | TCP.OPT_RESUME));
+            if(this.wantCompress) synPacket.setOptions((short)(synPacket.getOptions() | TCP.OPT_COMPRESS));
+            if(this.fecBlockSize > 0) synPacket.setOptions((short)(synPacket.getOptions() | TCP.OPT_FEC));
             this.sendTCP(synPacket);
-            numRetrans++;
-            try{ Thread.sleep((long)(this.TIME_OUT/1e+6)); } catch(InterruptedException e) { continue; }
+            numSyns++;
+
+            //Wait for the SYN-ACK until timeOut expires, then send the SYN again
+            long deadline = this.clock.nanoTime() + timeOut;
+            while(!connectionEstablished && this.clock.nanoTime() < deadline) {
+                TCP recPacket = receiveTCP(deadline - this.clock.nanoTime());
+                if((recPacket == null) || (((recPacket.getLength() & TCP.SYN_FLAG) != TCP.SYN_FLAG) && 
+                                        ((recPacket.getLength() & TCP.ACK_FLAG) != TCP.ACK_FLAG))) continue;
+
+                this.seqNum = recPacket.getAcknowledge(); //Update sequence number because syn counts as "1 byte" (or resume point)
+                if(recPacket.hasOption(TCP.OPT_RESUME)) 
+                    System.out.println("Receiver resumes at " + this.seqNum + " (skipping " + (this.seqNum - this.offset - 1) + " bytes)");
+                this.compress = this.wantCompress && recPacket.hasOption(TCP.OPT_COMPRESS);
+                this.fecK = recPacket.hasOption(TCP.OPT_FEC) ? this.fecBlockSize : 0;
+                updateWindow(recPacket);
+                TCP ackPacket = new TCP(this.seqNum, this.ackNum, this.clock.nanoTime(), (int)TCP.ACK_FLAG, (short)0, null);
+                this.sendTCP(ackPacket);
+                connectionEstablished = true;
+            }
+            timeOut = TCP.backOff(timeOut);
         }
 
-        if(numRetrans >= TCP.MAX_NUM_RETRANS) { this.socket.close(); return connectionEstablished; }
+        if(!connectionEstablished) closeTransport();
 
-        this.NUM_RETRANS += numRetrans - 1;
-
-        numRetrans = TCP.MAX_NUM_RETRANS; //This line prevents the listenThread from continuously running when socket is closed immediately
+        this.NUM_RETRANS += numSyns - 1;
         return connectionEstablished;
     }
 
+    /** Time (in nanoseconds) between two checks for segments to retransmit*/
+    private final static long RETRANSMIT_CHECK_INTERVAL = (long)1e+9;
+
     /**
-     * Transfer all data packets
+     * Transfer all data packets. We stay the I/O thread: the window is filled from sendQueue,
+     * ACKs are handled as they arrive and timed out segments are retransmitted, all without
+     * locks since nobody else touches the window. The segmenter fills sendQueue meanwhile
+     * (unless singleThreaded, then fillWindow() builds segments itself)
      */
     public boolean transferData() {
+        this.sendQueue = new SpscQueue<>(2 * this.sws + 2); //A window of segments plus their repair segments
+
+        Future<Void> segmenter = null;
+        if(!this.singleThreaded) {
+            try {
+                segmenter = Workers.start(this::buildSegments);
+            } catch(RejectedExecutionException e) {
+                System.out.println("Unable to start segmenter in TCPsender transferData()");
+                e.printStackTrace();
+                abort();
+                return false;
+            }
+        }
+        long nextCheck = this.clock.nanoTime();
+        try {
+            while(!this.completed) {
+                fillWindow();
+                if(this.sourceDone && this.sendQueue.isEmpty() && this.swL >= this.swR) {
+                    this.completed = true;
+                    break;
+                }
 
-        Thread writerThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
+                if(this.clock.nanoTime() >= nextCheck) {
+                    checkRetransmissions();
+                    if(this.windowClosed && this.swL == this.swR) probeWindow();
+                    nextCheck = this.clock.nanoTime() + RETRANSMIT_CHECK_INTERVAL;
+                }
 
-                while(!completed || swR < swL) {
+                TCP ackPacket = awaitEvents(Math.max(1, nextCheck - this.clock.nanoTime()));
+                if(ackPacket != null) handleAck(ackPacket);
+            }
+        } finally {
+            this.completed = true;
+            Thread segmenterThread = this.segmenterThread;
+            if(segmenterThread != null) LockSupport.unpark(segmenterThread);
+            if(segmenter != null) Workers.join(segmenter);
+        }
+        return !this.aborted;
+    }
 
-                    while(swR - swL == sws) {}
-                    if(swR >= allPackets.size()) return;
+    /**
+     * Segmenter: reads the source and queues every segment (and repair segment) in order for
+     * the I/O thread. sendQueue is bounded, so it reads at most about a window ahead
+     */
+    private Void buildSegments() {
+        this.segmenterThread = Thread.currentThread();
 
-                    TCP sendPacket = allPackets.get(swR);
-                    sendTCP(sendPacket);
+        try {
+            while(!this.completed && buildNext());
+        } catch(IOException e) {
+            if(this.aborted) return null; //Source was closed because we gave up
+            System.out.println("Unable to read data in TCPsender buildSegments()");
+            e.printStackTrace();
+            abort();
+        }
+        return null;
+    }
 
-                    AMOUNT_DATA_TRANS += (sendPacket.getLength() >>> 3);
-                    numAcksMap.put(sendPacket.getSequenceNum(), 0);
-                    numRetransMap.put(sendPacket.getSequenceNum(), 0);
-                    timeoutMap.put(sendPacket.getSequenceNum(), TIME_OUT); //add the current TIME_OUT value for the segment
+    /**
+     * Queues the next segment, and the repair segment of its block if that is complete now
+     * @return false once the last segment is queued (sourceDone is set then) or the transfer ended
+     */
+    private boolean buildNext() throws IOException {
+        TCP packet = nextSegment();
+        if(packet == null) {
+            TCP repair = finishBlock();
+            if(repair != null && !enqueue(repair)) return false;
+
+            this.sourceDone = true;
+            wakeIo();
+            return false;
+        }
+
+        if(!enqueue(packet)) return false;
+        TCP repair = addToBlock(packet);
+        return repair == null || enqueue(repair);
+    }
+
+    /**
+     * Builds the next segment on the I/O thread (singleThreaded only). sendQueue is empty
+     * then, so enqueue() never has to wait
+     * @return false if there was nothing left to build
+     */
+    private boolean buildInline() {
+        if(this.sourceDone || this.completed) return false;
+        try {
+            buildNext();
+            return true;
+        } catch(IOException e) {
+            System.out.println("Unable to read data in TCPsender buildInline()");
+            e.printStackTrace();
+            abort();
+            return false;
+        }
+    }
+
+    /**
+     * Hands packet to the I/O thread, parking while sendQueue is full
+     * @return false if the transfer ended meanwhile
+     */
+    private boolean enqueue(TCP packet) {
+        while(!this.sendQueue.offer(packet)) {
+            this.segmenterWaiting = true;
+            if(this.sendQueue.isFull() && !this.completed) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(RECEIVE_POLL_MILLIS));
+            this.segmenterWaiting = false;
+            if(this.completed) return false;
+        }
+        wakeIo();
+        return !this.completed;
+    }
+
+    /**
+     * Wakes the I/O thread if it waits for segments (segmenter only)
+     */
+    private void wakeIo() {
+        VarHandle.fullFence(); //What we queued must be visible before we look at the flag
+        if(this.awaitingSegments) this.transport.wakeup();
+    }
 
-                    swR++;
+    /**
+     * Sends new segments while the window has room, and the receiver's window too (a segment
+     * has to start inside it). A repair segment goes out as soon as it is at the head of
+     * sendQueue, i.e. right after the last segment of its block
+     */
+    private void fillWindow() {
+        this.windowClosed = false;
+        while(true) {
+            TCP sendPacket;
+            if(this.swR == this.allPackets.size()) {
+                sendPacket = this.sendQueue.peek();
+                if(sendPacket == null) {
+                    if(this.singleThreaded && buildInline()) continue;
+                    break;
                 }
-            }
-        });
-
-        Thread readerThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while(!completed) {
-                    TCP receivePacket = receiveTCP();
-
-                    int numAck = 0;
-                    if(numAcksMap.containsKey(receivePacket.getAcknowledge())) {
-                        numAck = numAcksMap.get(receivePacket.getAcknowledge()) + 1;
-                        if(numAck > 1) { NUM_DUPLICATE_ACKS++; }
-                    }
-                    numAcksMap.put(receivePacket.getAcknowledge(), numAck);
-                    
-                    seqNum = receivePacket.getAcknowledge();
-
-                    while(swL < allPackets.size() && allPackets.get(swL).getSequenceNum() < seqNum) swL++;
-
-                    if(swL >= allPackets.size()) completed = true;
+                if(sendPacket.hasOption(TCP.OPT_FEC_REPAIR)) {
+                    sendRepair(this.sendQueue.poll());
+                    continue;
                 }
+            } else {
+                sendPacket = this.allPackets.get(this.swR);
             }
-        });
-
-        TimerTask reTransTask = new TimerTask() {
-            @Override
-            public void run() {
-                for(int i = swL; i < swR; i++) {
-                    TCP currPacket = allPackets.get(i);
-
-                    //If numRetrans exceeded for any packet, we exit
-                    if (numRetransMap.get(currPacket.getSequenceNum()) >= 16) {
-                        System.out.println("Number of Retransmission exceeded for " + currPacket);
-                        System.exit(1);
-                    }
-                    //Check if timeout
-                    else if(System.nanoTime() - currPacket.getTimeStamp() > timeoutMap.get(currPacket.getSequenceNum())) {
-                        sendTCP(currPacket);
-                        NUM_RETRANS++;
-                        numRetransMap.put(currPacket.getSequenceNum(), numRetransMap.get(currPacket.getSequenceNum()) + 1);
-                    }
-                    //Check if ackNum exceeded
-                    else if(numAcksMap.get(currPacket.getSequenceNum()) >= 3) {
-                        sendTCP(currPacket);
-                        NUM_RETRANS++;
-                        numRetransMap.put(currPacket.getSequenceNum(), numRetransMap.get(currPacket.getSequenceNum()) + 1);
-                    }
-                }
+            if(this.swR - this.swL >= this.sws) break;
+            if(this.windowEnd >= 0 && sendPacket.getSequenceNum() >= this.windowEnd) {
+                this.windowClosed = true;
+                break;
             }
-        };
+            if(this.swR == this.allPackets.size()) this.allPackets.add(this.sendQueue.poll());
 
-        writerThread.start();
-        readerThread.start();
-        
-        Timer timer = new Timer(true); //isDaemon flag is set so that task runs in background
-        timer.schedule(reTransTask, 0 , 1000);
+            sendTCP(sendPacket);
 
-        while(!completed){}
-        return true;
+            AMOUNT_DATA_TRANS += (sendPacket.getLength() >>> 3);
+            numAcksMap.put(sendPacket.getSequenceNum(), 0);
+            numRetransMap.put(sendPacket.getSequenceNum(), 0);
+            timeoutMap.put(sendPacket.getSequenceNum(), TIME_OUT); //add the current TIME_OUT value for the segment
+            this.swR++;
+        }
+
+        //We took from sendQueue, so a segmenter waiting for room can go on
+        VarHandle.fullFence(); //Our polls must be visible before we look at the flag
+        if(this.segmenterWaiting) LockSupport.unpark(this.segmenterThread);
     }
 
-    boolean connectionTerminated = false; //Placed here so it is visible in threads below
     /**
-     * Ends the connection with receiver
+     * Blocks until an ACK arrives, the segmenter queues something we can send right away,
+     * or timeOut nanoseconds passed
+     * @return the ACK, or null if there is none
      */
-    public boolean terminateConnection() {
+    private TCP awaitEvents(long timeOut) {
+        boolean canSend = (this.swR - this.swL < this.sws) && !this.windowClosed && !this.sourceDone;
+        if(canSend) {
+            this.awaitingSegments = true;
+            if(!this.sendQueue.isEmpty() || this.sourceDone) {
+                this.awaitingSegments = false;
+                return null;
+            }
+        }
+        TCP ackPacket = receiveTCP(timeOut);
+        this.awaitingSegments = false;
 
-        this.numRetrans = 0; //Last seen in establishConnection()
+        if(ackPacket == null && !this.transport.isOpen()) {
+            System.out.println("Transport closed in TCPsender awaitEvents()");
+            abort();
+        }
+        return ackPacket;
+    }
+
+    /**
+     * Slides the window past everything the ACK covers
+     */
+    private void handleAck(TCP ackPacket) {
+        if(this.fastOpenSyn != null) checkFastOpen(ackPacket);
 
-        Thread listenThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                int expectedSeqNum = seqNum + 1;
-                while(true) {
-                    TCP recPacket = receiveTCP(); //Listen for FIN-ACK from receiver (may need to do this multiple times)
+        int numAck = 0;
+        if(numAcksMap.containsKey(ackPacket.getAcknowledge())) {
+            numAck = numAcksMap.get(ackPacket.getAcknowledge()) + 1;
+            if(numAck > 1) { NUM_DUPLICATE_ACKS++; }
+        }
+        numAcksMap.put(ackPacket.getAcknowledge(), numAck);
 
-                    if(recPacket == null) break;
+        seqNum = ackPacket.getAcknowledge();
+        updateWindow(ackPacket);
 
-                    else if((recPacket.getAcknowledge() != expectedSeqNum) || (((recPacket.getLength() & TCP.FIN_FLAG) != TCP.FIN_FLAG) && 
-                                            ((recPacket.getLength() & TCP.ACK_FLAG) != TCP.ACK_FLAG))) continue;
+        while(swL < swR && allPackets.get(swL).getSequenceNum() < seqNum) swL++;
+        releaseAcknowledged();
+    }
 
-                    seqNum = recPacket.getAcknowledge(); //Update sequence number because fin counts as "1 byte"
-                    TCP ackPacket = new TCP(seqNum, ackNum, System.nanoTime(), (int)TCP.ACK_FLAG, (short)0, null);
-                    connectionTerminated = true; //From our perspective, we are good to close socket b/c FIN-ACK received
-                    sendTCP(ackPacket);
-                }
+    /**
+     * Fast open only: a receiver that took the data on our SYN acknowledges it, one that ignored
+     * it answers with a plain SYN-ACK for the SYN alone. The SYN's segment then has to go out
+     * again as the ordinary first segment, or the ACK would slide the window past it
+     */
+    private void checkFastOpen(TCP ackPacket) {
+        TCP syn = this.fastOpenSyn;
+        int synSeqNum = syn.getSequenceNum();
+        if((ackPacket.getLength() & TCP.SYN_FLAG) != TCP.SYN_FLAG || ackPacket.getAcknowledge() != synSeqNum + 1) {
+            if(ackPacket.getAcknowledge() > synSeqNum + 1) this.fastOpenSyn = null; //Data taken
+            return;
+        }
+
+        System.out.println("Receiver ignored fast open, sending the first segment again");
+        this.fastOpenSyn = null;
+        this.numAcksMap.remove(synSeqNum);
+        this.numRetransMap.remove(synSeqNum);
+        this.timeoutMap.remove(synSeqNum);
+        syn.setSequenceNum(synSeqNum + 1).setLength((syn.getLength() & ~0x07) + TCP.ACK_FLAG)
+                .setOptions((short)(syn.getOptions() & ~TCP.OPT_FAST_OPEN));
+        sendTCP(syn);
+        this.numAcksMap.put(synSeqNum + 1, 0);
+        this.numRetransMap.put(synSeqNum + 1, 0);
+        this.timeoutMap.put(synSeqNum + 1, TIME_OUT);
+    }
+
+    /**
+     * Moves windowEnd to the right edge the receiver advertises in packet (if it does). It
+     * never moves back, so an old ACK arriving late changes nothing
+     */
+    private void updateWindow(TCP packet) {
+        this.numProbes = 0; //Whatever it says, the receiver is still there
+        int window = packet.getWindow();
+        if(window < 0) return;
+
+        long end = (packet.getAcknowledge() & 0xFFFFFFFFL) + window;
+        if(end > this.windowEnd) {
+            this.windowEnd = end;
+            this.nextProbe = 0;
+        }
+    }
+
+    /**
+     * Asks the receiver for its window while it is closed and nothing is in flight. It tells us
+     * by itself once its reader made room, the probes are for when that ACK got lost. They back
+     * off like retransmissions, and the receiver has to answer them: if it stops answering for
+     * MAX_NUM_RETRANS probes, we give up as we would on a segment
+     */
+    private void probeWindow() {
+        long now = this.clock.nanoTime();
+        if(this.nextProbe == 0) {
+            this.probeTimeOut = TCP.clampTimeOut(this.TIME_OUT);
+            this.nextProbe = now + this.probeTimeOut;
+            return;
+        }
+        if(now < this.nextProbe) return;
+
+        if(this.numProbes >= TCP.MAX_NUM_RETRANS) {
+            System.out.println("Receiver stopped answering window probes");
+            abort();
+            return;
+        }
+        TCP probe = new TCP(this.seqNum, this.ackNum, now, (int)TCP.ACK_FLAG, (short)0, null).setOptions(TCP.OPT_WINDOW);
+        sendTCP(probe);
+        this.numProbes++;
+        this.probeTimeOut = TCP.backOff(this.probeTimeOut);
+        this.nextProbe = now + this.probeTimeOut;
+    }
+
+    /**
+     * Retransmits every segment in the window that timed out (or got 3 duplicate ACKs),
+     * giving up once one of them was retransmitted too often
+     */
+    private void checkRetransmissions() {
+        for(int i = swL; i < swR; i++) {
+            TCP currPacket = allPackets.get(i);
+            int sn = currPacket.getSequenceNum();
+
+            //If numRetrans exceeded for any packet, we give up
+            if (numRetransMap.getOrDefault(sn, 0) >= TCP.MAX_NUM_RETRANS) {
+                System.out.println("Number of Retransmission exceeded for " + currPacket);
+                abort();
+                return;
             }
-        });
-        listenThread.start();
+            //Check if timeout
+            else if(this.clock.nanoTime() - currPacket.getTimeStamp() > timeoutMap.getOrDefault(sn, TIME_OUT)) {
+                sendTCP(currPacket);
+                NUM_RETRANS++;
+                numRetransMap.put(sn, numRetransMap.getOrDefault(sn, 0) + 1);
+            }
+            //Check if ackNum exceeded
+            else if(numAcksMap.getOrDefault(sn, 0) >= 3) {
+                sendTCP(currPacket);
+                NUM_RETRANS++;
+                numRetransMap.put(sn, numRetransMap.getOrDefault(sn, 0) + 1);
+            }
+        }
+    }
 
-        while(!connectionTerminated && numRetrans < TCP.MAX_NUM_RETRANS) {
-            TCP finPacket = new TCP(this.seqNum, this.ackNum, System.nanoTime(), (int)TCP.FIN_FLAG, (short)0, null);
+    /**
+     * Sends a repair segment once, after which we no longer need it
+     */
+    private void sendRepair(TCP repair) {
+        sendTCP(repair);
+        NUM_REPAIRS_SENT++;
+    }
+
+    /**
+     * Gives up on the transfer: stops the data phase and closes the source, so anyone
+     * writing into it (or the segmenter waiting on it) is released
+     */
+    private void abort() {
+        this.aborted = true;
+        this.completed = true;
+        if(this.transport != null) this.transport.wakeup();
+        Thread segmenterThread = this.segmenterThread;
+        if(segmenterThread != null) LockSupport.unpark(segmenterThread);
+        closeSource();
+    }
+
+    /**
+     * Closes the source, which also unblocks a writer waiting for more data from it
+     */
+    private void closeSource() {
+        try {
+            this.source.close();
+        } catch(IOException e) {
+            //Nothing left to do with it anyway
+        }
+    }
+
+    /**
+     * Ends the connection with receiver. The FIN is repeated with exponential backoff starting
+     * at the RTO until the FIN-ACK arrives. After that we linger for a few RTOs (TIME_WAIT) so
+     * a retransmitted FIN-ACK still gets our ACK, in case the first one was lost
+     */
+    public boolean terminateConnection() {
+
+        int expectedSeqNum = this.seqNum + 1;
+        boolean connectionTerminated = false;
+        int numFins = 0;
+        long timeOut = TCP.clampTimeOut(this.TIME_OUT);
+        while(!connectionTerminated && numFins < TCP.MAX_NUM_RETRANS) {
+            //FIN carries the hash of everything we sent, so the receiver can verify it without re-reading the file
+            TCP finPacket = new TCP(this.seqNum, this.ackNum, this.clock.nanoTime(), (TCP.SIZE_OF_HASH << 3) + TCP.FIN_FLAG, 
+                                    (short)0, TCP.hashToBytes(this.contentHash));
             this.sendTCP(finPacket);
-            numRetrans++;
-            try{ Thread.sleep((long)(1000)); } catch(InterruptedException e) { continue; }
+            numFins++;
+
+            connectionTerminated = answerFinAcks(expectedSeqNum, timeOut, true);
+            timeOut = TCP.backOff(timeOut);
         }
 
-        if(numRetrans >= TCP.MAX_NUM_RETRANS) { 
-            this.socket.close(); 
-            return connectionTerminated; 
+        if(connectionTerminated) {
+            //TIME_WAIT, long enough for the receiver to time out and repeat its FIN-ACK a couple of times
+            answerFinAcks(expectedSeqNum, TIME_WAIT_RTOS * TCP.clampTimeOut(this.TIME_OUT), false);
+            this.NUM_RETRANS += numFins - 1;
         }
-        else {
-            try{ Thread.sleep((long)(5000)); } catch(InterruptedException e) { }
-            this.socket.close(); //We can close after waiting for a while, in-case final ACk from sender is lost
+        closeTransport();
+        return connectionTerminated;
+    }
+
+    /** Length of TIME_WAIT in RTOs*/
+    private final static int TIME_WAIT_RTOS = 3;
+
+    /**
+     * Listens for FIN-ACKs (acknowledging sequence number expectedSeqNum) for up to timeOut
+     * nanoseconds and answers each one with an ACK
+     * @param untilFirst return right after the first one instead of waiting out timeOut
+     * @return true if a FIN-ACK arrived
+     */
+    private boolean answerFinAcks(int expectedSeqNum, long timeOut, boolean untilFirst) {
+        boolean finAckReceived = false;
+        long deadline = this.clock.nanoTime() + timeOut;
+
+        while(!(untilFirst && finAckReceived) && this.clock.nanoTime() < deadline) {
+            TCP recPacket = receiveTCP(deadline - this.clock.nanoTime()); //Listen for FIN-ACK from receiver (may need to do this multiple times)
 
-            this.NUM_RETRANS += numRetrans - 1;
-            return connectionTerminated;
+            if((recPacket == null) || (recPacket.getAcknowledge() != expectedSeqNum) || (((recPacket.getLength() & TCP.FIN_FLAG) != TCP.FIN_FLAG) && 
+                                    ((recPacket.getLength() & TCP.ACK_FLAG) != TCP.ACK_FLAG))) continue;
+
+            this.seqNum = recPacket.getAcknowledge(); //Update sequence number because fin counts as "1 byte"
+            if(recPacket.hasOption(TCP.OPT_HASH_MISMATCH)) this.hashMismatch = true;
+            TCP ackPacket = new TCP(this.seqNum, this.ackNum, this.clock.nanoTime(), (int)TCP.ACK_FLAG, (short)0, null);
+            this.sendTCP(ackPacket);
+            finAckReceived = true; //From our perspective, we are good to close socket b/c FIN-ACK received
         }
+        return finAckReceived;
+    }
+
+    /**
+     * Closes the transport, which also unblocks any thread waiting in receiveTCP()
+     */
+    private void closeTransport() {
+        this.transport.close();
     }
 
     /**
-     * Simply sends the desired tcpPacket using DatagramSocket.
+     * Simply sends the desired tcpPacket through our transport.
      * Correct content is responsibility of caller
      */
     public void sendTCP(TCP tcpPacket) {
 
         tcpPacket.setAcknowledge(this.ackNum); //Set ack field (which rarely changes)
 
-        tcpPacket.setTimeStamp(System.nanoTime()); //Set time field
+        tcpPacket.setTimeStamp(this.clock.nanoTime()); //Set time field
 
         byte[] serialized = tcpPacket.serialize(); //Serialize (proper checksum will be added)
         
-        //Send
+        //Send (the transport is already connected, so no per-packet address lookup)
         try {
-            DatagramPacket datagramPacket = new DatagramPacket(serialized, serialized.length, 
-                                        InetAddress.getByName(this.remoteIP), this.remotePort);
-
-            this.socket.send(datagramPacket);
+            this.transport.send(serialized, serialized.length);
             
             this.NUM_PACKETS_SENT++;
 
             System.out.println("snd " + (tcpPacket.getTimeStamp() / 1000000000L) + " " + tcpPacket.getFlags() + 
                     tcpPacket.getSequenceNum() + " " + (tcpPacket.getLength() >>> 3) + " " + tcpPacket.getAcknowledge());
 
-        } catch(UnknownHostException e1) {
-            System.out.println("Failed to find host in sendTCP() of TCPsender");
-            e1.printStackTrace();
-            System.exit(1);
-        } catch(IOException e2) {
+        } catch(IOException e) {
             //Do nothing, since retransmission limit will take care of it
         }
     }
 
     /**
-     * Receieves a TCP packet using DatagramSocket
+     * Receieves a TCP packet through our transport, waiting at most RECEIVE_POLL_MILLIS
+     * @return null on timeout or once the transport is closed
      */
     public TCP receiveTCP() {
+        return receiveTCP(TimeUnit.MILLISECONDS.toNanos(RECEIVE_POLL_MILLIS));
+    }
 
+    /**
+     * Receieves a TCP packet through our transport, waiting at most timeOut nanoseconds
+     * @return null on timeout, on wakeup() or once the transport is closed
+     */
+    public TCP receiveTCP(long timeOut) {
+        byte[] data = BufferPool.acquire(this.mtu + TCP.SIZE_OF_HEADER);
         try {
-            byte[] data = new byte[this.mtu + TCP.SIZE_OF_HEADER];
-            DatagramPacket receivePacket = new DatagramPacket(data, data.length);
-            this.socket.receive(receivePacket);
-            
-            TCP returnPacket = new TCP();
-            returnPacket.deserialize(data, 0, data.length);
-
-            System.out.println("rcv " + (returnPacket.getTimeStamp() / 1000000000L) + " " + returnPacket.getFlags() + 
-                    returnPacket.getSequenceNum() + " " + (returnPacket.getLength() >>> 3) + " " + returnPacket.getAcknowledge());
-            
-         
-            this.ackNum = returnPacket.getSequenceNum() + 1; //Repeatedly sets ackNum (not necessary but easy)
-            calcTimeout(returnPacket);
-
-            return returnPacket;
+            int length = this.transport.receive(data, timeOut);
+            if(length >= 0) return received(data, length);
+        } catch(IOException e) {
+            //E.g. the receiver is not up yet, retransmission takes care of it
+        }
+        BufferPool.release(data);
+        return null;
+    }
 
-        } catch (IOException e) {
+    /**
+     * Parses a datagram received into data (from BufferPool, which it goes back to) and
+     * updates our RTT estimate with it
+     * @return null if it is truncated
+     */
+    private TCP received(byte[] data, int length) {
+        //The receiver only sends headers (and windows, see updateWindow()), so copying its data is cheap
+        TCP returnPacket = TCP.wrap(data, length);
+        if(returnPacket == null) {
+            BufferPool.release(data);
             return null;
         }
+        returnPacket.detach();
+
+        System.out.println("rcv " + (returnPacket.getTimeStamp() / 1000000000L) + " " + returnPacket.getFlags() + 
+                returnPacket.getSequenceNum() + " " + (returnPacket.getLength() >>> 3) + " " + returnPacket.getAcknowledge());
+
+        this.ackNum = returnPacket.getSequenceNum() + 1; //Repeatedly sets ackNum (not necessary but easy)
+        calcTimeout(returnPacket);
+
+        return returnPacket;
     }
 
     /** Vars for calculating TIME_OUT (placed here for convenience)*/
@@ -379,27 +994,52 @@ public class TCPsender {
     private long SRTT;
     private long SDEV;
 
+    private boolean rttSampled; //False until the first RTT sample
+
     /**
      * Calculates timeout using a simple exponentially weighted average algorithm.
-     * This method should be called whenever 
+     * This method should be called whenever a packet arrives, since the receiver echoes
+     * the timestamp of the packet it is answering (so the sample is in our own clock)
      */
     private void calcTimeout(TCP tcpPacket) {
         double a = 0.875;
         double b = 0.75;
         
-        if(tcpPacket.getSequenceNum() == 0) {
-            ERTT = System.nanoTime() - tcpPacket.getTimeStamp();
+        if(!rttSampled) {
+            ERTT = this.clock.nanoTime() - tcpPacket.getTimeStamp();
             EDEV = 0;
-            this.TIME_OUT = 2 * ERTT;
+            this.TIME_OUT = TCP.clampTimeOut(2 * ERTT);
+            rttSampled = true;
         } else {
-            SRTT = System.nanoTime() - tcpPacket.getTimeStamp();
+            SRTT = this.clock.nanoTime() - tcpPacket.getTimeStamp();
             SDEV = Math.abs(SRTT - ERTT);
             ERTT = (long)(a*ERTT + (1-a)*SRTT);
             EDEV = (long)(b*EDEV + (1-b)*SDEV);
-            this.TIME_OUT = ERTT + 4*EDEV;
+            this.TIME_OUT = TCP.clampTimeOut(ERTT + 4*EDEV);
         }
     }
 
+    /**
+     * @return number of data bytes read from our range (or stream) so far
+     */
+    public long getNumBytes() {
+        return this.numBytes;
+    }
+
+    /**
+     * @return time (in nanoseconds) from starting the connection until all data was acknowledged
+     */
+    public long getDeliveryTime() {
+        return this.deliveryTime;
+    }
+
+    /**
+     * @return time (in nanoseconds) from the first data segment until everything was acknowledged
+     */
+    public long getTransferTime() {
+        return this.transferTime;
+    }
+
     /**
      * Prints statistics after a successful TCP sesssion 
      */
@@ -410,11 +1050,13 @@ public class TCPsender {
                                         "Number of retransmissions: %d\n" + 
                                         "Number of duplicate acknowledgements: %d\n", 
                                         this.AMOUNT_DATA_TRANS, this.NUM_PACKETS_SENT, this.NUM_RETRANS, this.NUM_DUPLICATE_ACKS));
+        if(this.fecK > 0)
+            System.out.print(String.format("Number of repair segments sent: %d\n", this.NUM_REPAIRS_SENT));
     }
 
     @Override
     public String toString() {
-        return String.format("portNum: %d | remoteIP: %s | remotePort: %d | filename: %s | mtu: %d | sws: %d", 
-                            portNum, remoteIP, remotePort, fileName, mtu, sws);
+        return String.format("portNum: %d | remoteIP: %s | remotePort: %d | filename: %s | mtu: %d | sws: %d | offset: %d", 
+                            portNum, remoteIP, remotePort, fileName, mtu, sws, offset);
     }
 }
\ No newline at end of file
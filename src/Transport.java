@@ -0,0 +1,41 @@
+import java.io.IOException;
+
+/**
+ * How an endpoint exchanges datagrams with its peer. A UdpTransport uses a real socket, a
+ * Simulator hands out simulated ones. Only the endpoint's own thread calls it, except for
+ * wakeup() and close().
+ *
+ * @author Prasoon Tandon
+ * @author John Lee
+ */
+public interface Transport {
+
+    /**
+     * Sends data[0, length) to the peer. A datagram may be lost like any other, so there is
+     * no error for that
+     */
+    void send(byte[] data, int length) throws IOException;
+
+    /**
+     * Waits at most timeOut nanoseconds (0 for no limit) for the next datagram and copies it into buf
+     * @return its length, or -1 if none arrived in time or wakeup() was called
+     */
+    int receive(byte[] buf, long timeOut) throws IOException;
+
+    /**
+     * Makes a receive() that is waiting (or else the next one) return right away. Any thread
+     */
+    void wakeup();
+
+    /**
+     * @return local port, or whatever identifies this end of the transport
+     */
+    int getLocalPort();
+
+    boolean isOpen();
+
+    /**
+     * Any thread, a receive() that is waiting returns (or throws)
+     */
+    void close();
+}
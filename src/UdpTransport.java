@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Transport over a real UDP socket: a non-blocking DatagramChannel that waits on its own
+ * Selector, so a receive() times out without a socket timeout and wakeup() interrupts it.
+ * A connected transport always sends to its remote address, a bound one answers whoever
+ * sent the last datagram (the receiver learns its sender from the SYN).
+ *
+ * @author Prasoon Tandon
+ * @author John Lee
+ */
+public class UdpTransport implements Transport {
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final boolean connected;
+    private SocketAddress peer; //Where send() goes, null until a bound transport received something
+
+    private UdpTransport(DatagramChannel channel, boolean connected) throws IOException {
+        this.channel = channel;
+        this.connected = connected;
+        this.peer = channel.getRemoteAddress();
+        try {
+            this.selector = Selector.open();
+            this.channel.configureBlocking(false);
+            this.channel.register(this.selector, SelectionKey.OP_READ);
+        } catch(IOException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Binds localPort (0 for any free one) and connects to remoteIP:remotePort
+     */
+    public static UdpTransport connect(int localPort, String remoteIP, int remotePort) throws IOException {
+        //Resolve the peer once and connect, so send() never has to look it up again
+        InetAddress remoteAddr = InetAddress.getByName(remoteIP);
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(localPort));
+            channel.connect(new InetSocketAddress(remoteAddr, remotePort));
+        } catch(IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new UdpTransport(channel, true);
+    }
+
+    /**
+     * Binds localPort (0 for any free one) and waits for a peer to send something
+     */
+    public static UdpTransport bind(int localPort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(localPort));
+        } catch(IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new UdpTransport(channel, false);
+    }
+
+    @Override
+    public void send(byte[] data, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+        if(this.connected) this.channel.write(buf);
+        else if(this.peer != null) this.channel.send(buf, this.peer);
+    }
+
+    @Override
+    public int receive(byte[] buf, long timeOut) throws IOException {
+        long deadline = System.nanoTime() + timeOut;
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        while(true) {
+            SocketAddress from;
+            try {
+                from = this.channel.receive(bb);
+            } catch(PortUnreachableException e) {
+                from = null; //The peer is not up (yet), it is up to the caller to try again
+            }
+            if(from != null) {
+                if(!this.connected) this.peer = from;
+                return bb.position();
+            }
+
+            long left = deadline - System.nanoTime();
+            if(timeOut > 0 && left <= 0) return -1;
+            try {
+                int ready = this.selector.select((timeOut > 0) ? TCP.toSoTimeout(left) : 0);
+                this.selector.selectedKeys().clear();
+                if(ready == 0) return -1; //Woken up (or timed out), the caller decides whether to wait again
+            } catch(ClosedSelectorException e) {
+                return -1; //Closed meanwhile, the next receive() fails on the channel
+            }
+        }
+    }
+
+    @Override
+    public void wakeup() {
+        this.selector.wakeup();
+    }
+
+    @Override
+    public int getLocalPort() {
+        try {
+            return ((InetSocketAddress)this.channel.getLocalAddress()).getPort();
+        } catch(IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.channel.isOpen();
+    }
+
+    @Override
+    public void close() {
+        //Closing the selector first wakes a receive() waiting on it and frees the port right away
+        try { this.selector.close(); } catch(IOException e) { }
+        try { this.channel.close(); } catch(IOException e) { }
+    }
+}
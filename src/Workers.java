@@ -0,0 +1,70 @@
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads shared by all connections in the JVM. Work that has to run next to a connection
+ * (the sender's segmenter, a ReliableUdpSocket end, a stream of a multi-stream transfer) is
+ * started on WORKERS, daemon threads that are reused once a connection ends and capped at
+ * MAX_WORKERS.
+ *
+ * Virtual threads (Java 21) would make a blocked connection cheaper still, this is the one
+ * place to switch to them once the build moves past Java 17.
+ *
+ * @author Prasoon Tandon
+ * @author John Lee
+ */
+public class Workers {
+
+    /** Starting more concurrent work than this fails with a RejectedExecutionException*/
+    public final static int MAX_WORKERS = 4096;
+
+    public final static ExecutorService WORKERS = new ThreadPoolExecutor(0, MAX_WORKERS, 30, TimeUnit.SECONDS,
+                                                    new SynchronousQueue<>(), daemonThreads("tcp-worker"));
+
+    /**
+     * Runs task on one of the shared workers
+     * @return its future, see join()
+     */
+    public static <T> Future<T> start(Callable<T> task) {
+        return WORKERS.submit(task);
+    }
+
+    /**
+     * Waits for a task started with start()
+     * @return its result, or null if it threw
+     */
+    public static <T> T join(Future<T> future) {
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    return future.get();
+                } catch(InterruptedException e) {
+                    interrupted = true; //The task still owns its connection, so we keep waiting for it
+                } catch(ExecutionException e) {
+                    System.out.println("Worker failed in Workers join()");
+                    e.getCause().printStackTrace();
+                    return null;
+                }
+            }
+        } finally {
+            if(interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true); //Never keeps the JVM alive, TCPend exits explicitly anyway
+            return thread;
+        };
+    }
+}